@@ -0,0 +1,66 @@
+package org.meicorl.unikernel.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.icedrobot.daneel.dex.DexFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DexFile.parse of a whole classes.dex, from a heap buffer and from a memory-mapped file.
+ * The file is mapped once per trial, DexFile.parse(File) would leak a file descriptor per
+ * call; every parse works on a fresh view of the mapping.
+ * @author MeiCorl
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DexParseBenchmark {
+	@Param(Fixtures.LINPACK)
+	public String apk;
+
+	private byte[]           dex;
+	private RandomAccessFile file;
+	private ByteBuffer       mapped;
+
+	@Setup
+	public void setup() throws IOException {
+		dex = Fixtures.readDex(apk);
+		File copy = Fixtures.writeDex(dex);
+		file = new RandomAccessFile(copy, "r");
+		mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, copy.length());
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		file.close();
+	}
+
+	@Benchmark
+	public DexFile heap() {
+		return DexFile.parse(dex);
+	}
+
+	@Benchmark
+	public DexFile mmap() {
+		return DexFile.parse(mapped.duplicate());
+	}
+}
@@ -0,0 +1,96 @@
+package org.meicorl.unikernel.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.icedrobot.daneel.dex.DexFile;
+
+/**
+ * The DEX files of the bundled sample apps the benchmarks run on. A fixture is an APK, of
+ * which classes.dex is used, or a plain DEX file; paths are relative to Unikernel-Bench.
+ * @author MeiCorl
+ */
+final class Fixtures {
+	/** Default of the apk parameter of all benchmarks, the only app built in the tree */
+	static final String LINPACK = "../Applications/Linpack/out/production/Linpack/Linpack.apk";
+
+	/** Swallows the reports of the Verifier */
+	static final Writer DISCARD = new Writer() {
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	};
+
+	private Fixtures() {
+	}
+
+	/**
+	 * @return the content of classes.dex of an APK, or of a DEX file
+	 */
+	static byte[] readDex(String path) throws IOException {
+		if (!path.endsWith(".apk")) {
+			try (InputStream in = new FileInputStream(path)) {
+				return readAll(in);
+			}
+		}
+		try (ZipFile apk = new ZipFile(path)) {
+			ZipEntry entry = apk.getEntry("classes.dex");
+			if (entry == null)
+				throw new IOException(path + " doesn't contain classes.dex");
+			try (InputStream in = apk.getInputStream(entry)) {
+				return readAll(in);
+			}
+		}
+	}
+
+	/**
+	 * Write classes.dex to a temporary file, for parsing it memory-mapped.
+	 */
+	static File writeDex(byte[] dex) throws IOException {
+		File file = File.createTempFile("bench", ".dex");
+		file.deleteOnExit();
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(dex);
+		}
+		return file;
+	}
+
+	/**
+	 * @return the binary names of all classes of the DEX file, sorted
+	 */
+	static List<String> classNames(DexFile dex) {
+		List<String> names = new ArrayList<>();
+		for (String desc : dex.getClassNames())
+			names.add(desc.substring(1, desc.length() - 1).replace('/', '.'));
+		Collections.sort(names);
+		return names;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1)
+			out.write(buffer, 0, n);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,74 @@
+package org.meicorl.unikernel.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.icedrobot.daneel.dex.DexFile;
+import org.icedrobot.daneel.loader.DaneelClassLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading all classes of the app with a new DaneelClassLoader per operation, as a linker
+ * does on its first request: reading the APK, parsing and indexing its DEX files,
+ * translating and defining every class. Classes are loaded without being initialised. The
+ * parent is the platform class loader, so that libraries the benchmark has on its class
+ * path too (e.g. Gson) are translated as well; classes of the Android framework are
+ * missing. Divide the scores by the number of translated classes printed at the start of
+ * the trial to get the cost per class.
+ * @author MeiCorl
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoaderBenchmark {
+	@Param(Fixtures.LINPACK)
+	public String apk;
+
+	private File         file;
+	private List<String> classes;
+
+	@Setup
+	public void setup() throws IOException {
+		file = new File(apk);
+		classes = Fixtures.classNames(DexFile.parse(Fixtures.readDex(apk)));
+		int translated = 0;
+		DaneelClassLoader loader = loadAll();
+		for (String name : classes) {
+			try {
+				if (loader.loadClass(name).getClassLoader() == loader)
+					translated++;
+			} catch (ClassNotFoundException | LinkageError | RuntimeException e) {
+				// not loadable, counted neither
+			}
+		}
+		System.out.println(translated + " of " + classes.size() + " classes translated per operation");
+	}
+
+	@Benchmark
+	public DaneelClassLoader loadAll() throws IOException {
+		DaneelClassLoader loader = new DaneelClassLoader(ClassLoader.getSystemClassLoader().getParent(), file);
+		for (String name : classes) {
+			try {
+				loader.loadClass(name);
+			} catch (ClassNotFoundException | LinkageError | RuntimeException e) {
+				// e.g. classes referring to the Android framework
+			}
+		}
+		return loader;
+	}
+}
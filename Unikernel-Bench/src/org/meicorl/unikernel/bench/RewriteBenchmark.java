@@ -0,0 +1,64 @@
+package org.meicorl.unikernel.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.icedrobot.daneel.dex.DexFile;
+import org.icedrobot.daneel.rewriter.DexRewriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DexRewriter.rewrite of one class per operation, going round all classes of the DEX file
+ * that can be translated, so the scores are per class. The DEX file is parsed once and
+ * keeps the decoded code of its classes, so this measures the translation itself; the
+ * first translation of a class, decoding included, is in LoaderBenchmark.
+ * @author MeiCorl
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RewriteBenchmark {
+	@Param(Fixtures.LINPACK)
+	public String apk;
+
+	private DexFile  dex;
+	private String[] classes;
+	private int      next = 0;
+
+	@Setup
+	public void setup() throws IOException {
+		dex = DexFile.parse(Fixtures.readDex(apk));
+		List<String> translatable = new ArrayList<>();
+		for (String name : Fixtures.classNames(dex)) {
+			try {
+				DexRewriter.rewrite(name, dex);
+				translatable.add(name);
+			} catch (ClassNotFoundException | RuntimeException e) {
+				System.out.println("Skipping " + name + ": " + e);
+			}
+		}
+		classes = translatable.toArray(new String[translatable.size()]);
+	}
+
+	@Benchmark
+	public byte[] rewrite() throws ClassNotFoundException {
+		String name = classes[next];
+		next = (next + 1) % classes.length;
+		return DexRewriter.rewrite(name, dex);
+	}
+}
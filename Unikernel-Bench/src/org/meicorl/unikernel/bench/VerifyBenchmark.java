@@ -0,0 +1,78 @@
+package org.meicorl.unikernel.bench;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.icedrobot.daneel.dex.DexFile;
+import org.icedrobot.daneel.loader.Verifier;
+import org.icedrobot.daneel.rewriter.DexRewriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Verifier.verify of the translated bytecode of one class per operation, going round all
+ * classes that pass it. Classes the Verifier complains about are left out, their report
+ * would be measured instead.
+ * @author MeiCorl
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VerifyBenchmark {
+	@Param(Fixtures.LINPACK)
+	public String apk;
+
+	private DexFile     dex;
+	private String[]    classes;
+	private byte[][]    bytecodes;
+	private PrintWriter writer;
+	private int         next = 0;
+
+	@Setup
+	public void setup() throws IOException {
+		dex = DexFile.parse(Fixtures.readDex(apk));
+		writer = new PrintWriter(Fixtures.DISCARD);
+		List<String> names = new ArrayList<>();
+		List<byte[]> translated = new ArrayList<>();
+		for (String name : Fixtures.classNames(dex)) {
+			try {
+				byte[] bytecode = DexRewriter.rewrite(name, dex);
+				StringWriter report = new StringWriter();
+				Verifier.verify(getClass().getClassLoader(), dex, name, bytecode, new PrintWriter(report));
+				if (report.getBuffer().length() == 0) {
+					names.add(name);
+					translated.add(bytecode);
+				} else {
+					System.out.println("Skipping " + name + ": rejected by the Verifier");
+				}
+			} catch (ClassNotFoundException | RuntimeException e) {
+				System.out.println("Skipping " + name + ": " + e);
+			}
+		}
+		classes = names.toArray(new String[names.size()]);
+		bytecodes = translated.toArray(new byte[translated.size()][]);
+	}
+
+	@Benchmark
+	public void verify() {
+		int i = next;
+		next = (next + 1) % classes.length;
+		Verifier.verify(getClass().getClassLoader(), dex, classes[i], bytecodes[i], writer);
+	}
+}
@@ -0,0 +1,193 @@
+package org.meicorl.unikernel.common;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logging off the request path, shared by the Scheduler, the NodeAgent and the
+ * DynamicLinker. Callers check the level before building a message and hand it to a
+ * lock-free ring; a background thread formats the messages and writes them out in
+ * batches. When the ring is full messages are dropped and counted rather than blocking
+ * a request.
+ *
+ * Each program calls {@link #init(String)} first thing with the prefix of its system
+ * properties: the level is then set with -D&lt;prefix&gt;.log.level (trace, debug, info,
+ * warn; default info) and the output goes to stdout or to the file given with
+ * -D&lt;prefix&gt;.log.file. Request payloads are only logged at trace level.
+ * @author MeiCorl
+ */
+public class AsyncLog {
+	public static final int TRACE = 0;
+	public static final int DEBUG = 1;
+	public static final int INFO  = 2;
+	public static final int WARN  = 3;
+
+	private static final String[] LEVEL_NAMES = { "TRACE", "DEBUG", "INFO", "WARN" };
+
+	private static final int    CAPACITY = 8192;	// a power of two
+	private static final int    MASK     = CAPACITY - 1;
+	// the drain thread sleeps this long when the ring is empty
+	private static final long   IDLE_NANOS = 10000000;
+
+	private static volatile int level = INFO;
+
+	private static class Entry {
+		final long     time = System.currentTimeMillis();
+		final int      level;
+		final String   thread = Thread.currentThread().getName();
+		final String   format;
+		final Object[] args;
+
+		Entry(int level, String format, Object[] args) {
+			this.level = level;
+			this.format = format;
+			this.args = args;
+		}
+	}
+
+	private static final AtomicReferenceArray<Entry> ring = new AtomicReferenceArray<>(CAPACITY);
+	// next slot to claim by a logging thread, and next slot to drain
+	private static final AtomicLong tail = new AtomicLong();
+	private static volatile long    head = 0;
+	private static final AtomicLong dropped = new AtomicLong();
+
+	// only used with the class lock held
+	private static PrintStream       out = openOutput(null);
+	private static final Thread      drainer = new Thread("log-drainer") {
+		@Override
+		public void run() {
+			while (true) {
+				if (drain() == 0)
+					LockSupport.parkNanos(IDLE_NANOS);
+			}
+		}
+	};
+
+	static {
+		drainer.setDaemon(true);
+		drainer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				drain();
+			}
+		});
+	}
+
+	private AsyncLog() {
+	}
+
+	/**
+	 * Read the level and the output from the system properties of the program.
+	 * @param prefix the prefix of the properties, e.g. "scheduler" for -Dscheduler.log.level
+	 */
+	public static void init(String prefix) {
+		level = parseLevel(System.getProperty(prefix + ".log.level", "info"));
+		String file = System.getProperty(prefix + ".log.file");
+		if (file != null) {
+			synchronized (AsyncLog.class) {
+				drain();
+				out = openOutput(file);
+			}
+		}
+	}
+
+	/**
+	 * @return true if messages of the level are logged, check before building an expensive message
+	 */
+	public static boolean enabled(int messageLevel) {
+		return messageLevel >= level;
+	}
+
+	public static void trace(String format, Object... args) {
+		log(TRACE, format, args);
+	}
+
+	public static void debug(String format, Object... args) {
+		log(DEBUG, format, args);
+	}
+
+	public static void info(String format, Object... args) {
+		log(INFO, format, args);
+	}
+
+	public static void warn(String format, Object... args) {
+		log(WARN, format, args);
+	}
+
+	/**
+	 * @param format a String.format pattern, formatted by the drain thread; the arguments
+	 * 		must not change after the call
+	 */
+	public static void log(int messageLevel, String format, Object... args) {
+		if (messageLevel < level)
+			return;
+		long slot;
+		do {
+			slot = tail.get();
+			if (slot - head >= CAPACITY) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!tail.compareAndSet(slot, slot + 1));
+		ring.set((int) (slot & MASK), new Entry(messageLevel, format, args));
+	}
+
+	/**
+	 * Write out everything logged so far, e.g. before the program goes away.
+	 */
+	public static void flush() {
+		drain();
+	}
+
+	/**
+	 * Write out what is in the ring.
+	 * @return the number of messages written
+	 */
+	private static synchronized int drain() {
+		int count = 0;
+		long next = head;
+		while (true) {
+			int index = (int) (next & MASK);
+			Entry e = ring.get(index);
+			if (e == null)
+				break;	// empty, or the slot is claimed but not filled yet
+			ring.set(index, null);
+			head = ++next;
+			out.print(String.format("%tT.%<tL %-5s [%s] ", e.time, LEVEL_NAMES[e.level], e.thread));
+			out.println(e.args.length == 0 ? e.format : String.format(e.format, e.args));
+			count++;
+		}
+		long lost = dropped.getAndSet(0);
+		if (lost > 0)
+			out.println("log ring full, dropped " + lost + " messages");
+		if (count > 0 || lost > 0)
+			out.flush();
+		return count;
+	}
+
+	private static int parseLevel(String name) {
+		for (int i = 0; i < LEVEL_NAMES.length; i++) {
+			if (LEVEL_NAMES[i].equalsIgnoreCase(name))
+				return i;
+		}
+		return INFO;
+	}
+
+	private static PrintStream openOutput(String file) {
+		if (file != null) {
+			try {
+				return new PrintStream(new BufferedOutputStream(new FileOutputStream(file, true), 65536), false);
+			} catch (FileNotFoundException e) {
+				e.printStackTrace();
+			}
+		}
+		return new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 65536), false);
+	}
+}
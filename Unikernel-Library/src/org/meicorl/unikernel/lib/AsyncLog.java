@@ -0,0 +1,198 @@
+package org.meicorl.unikernel.lib;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * Logging off the offloading path. Callers check the level before building a message
+ * and hand it to a lock-free ring; a background thread formats the messages for logcat.
+ * When the ring is full messages are dropped and counted rather than blocking the caller.
+ * Lines meant for files, e.g. the execution records of the Profiler, go through their own
+ * unbounded queue instead and are never dropped; the same thread appends them in one write
+ * per file and batch.
+ *
+ * Request payloads are only logged at TRACE level, which is off by default.
+ *
+ * @author MeiCorl
+ */
+public class AsyncLog {
+	public static final int TRACE = 0;
+	public static final int DEBUG = 1;
+	public static final int INFO  = 2;
+	public static final int WARN  = 3;
+
+	private static final String TAG = "AsyncLog";
+
+	private static final int  CAPACITY = 1024;	// a power of two
+	private static final int  MASK     = CAPACITY - 1;
+	// the drain thread wakes up this often, lines for files are written at most once per period
+	private static final long PERIOD_NANOS = 500000000L;
+
+	private static volatile int level = INFO;
+
+	private static class Entry {
+		final int      level;
+		final String   tag;
+		final String   format;
+		final Object[] args;
+
+		Entry(int level, String tag, String format, Object[] args) {
+			this.level = level;
+			this.tag = tag;
+			this.format = format;
+			this.args = args;
+		}
+
+		String message() {
+			return args.length == 0 ? format : String.format(format, args);
+		}
+	}
+
+	private static final AtomicReferenceArray<Entry> ring = new AtomicReferenceArray<Entry>(CAPACITY);
+	// next slot to claim by a logging thread, and next slot to drain
+	private static final AtomicLong tail = new AtomicLong();
+	private static volatile long    head = 0;
+	private static final AtomicLong dropped = new AtomicLong();
+
+	// lines to append, each as the file name and the line
+	private static final ConcurrentLinkedQueue<String[]> fileLines = new ConcurrentLinkedQueue<String[]>();
+
+	private static final Thread drainer = new Thread("AsyncLog") {
+		@Override
+		public void run() {
+			while (true) {
+				LockSupport.parkNanos(PERIOD_NANOS);
+				drain();
+			}
+		}
+	};
+
+	static {
+		drainer.setDaemon(true);
+		drainer.setPriority(Thread.MIN_PRIORITY);
+		drainer.start();
+	}
+
+	private AsyncLog() {
+	}
+
+	public static void setLevel(int newLevel) {
+		level = newLevel;
+	}
+
+	/**
+	 * @return true if messages of the level are logged, check before building an expensive message
+	 */
+	public static boolean enabled(int messageLevel) {
+		return messageLevel >= level;
+	}
+
+	public static void trace(String tag, String format, Object... args) {
+		log(TRACE, tag, format, args);
+	}
+
+	public static void debug(String tag, String format, Object... args) {
+		log(DEBUG, tag, format, args);
+	}
+
+	public static void info(String tag, String format, Object... args) {
+		log(INFO, tag, format, args);
+	}
+
+	public static void warn(String tag, String format, Object... args) {
+		log(WARN, tag, format, args);
+	}
+
+	/**
+	 * Append a line to a file, whatever the level and however full the ring is.
+	 */
+	public static void append(String fileName, String line) {
+		fileLines.add(new String[] { fileName, line });
+	}
+
+	/**
+	 * Write out everything logged so far, e.g. before the application goes away.
+	 */
+	public static void flush() {
+		drain();
+	}
+
+	/**
+	 * @param format a String.format pattern, formatted by the drain thread; the arguments
+	 *            must not change after the call
+	 */
+	private static void log(int messageLevel, String tag, String format, Object... args) {
+		if (messageLevel < level)
+			return;
+		long slot;
+		do {
+			slot = tail.get();
+			if (slot - head >= CAPACITY) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!tail.compareAndSet(slot, slot + 1));
+		ring.set((int) (slot & MASK), new Entry(messageLevel, tag, format, args));
+	}
+
+	private static synchronized void drain() {
+		long next = head;
+		while (true) {
+			int index = (int) (next & MASK);
+			Entry e = ring.get(index);
+			if (e == null)
+				break;	// empty, or the slot is claimed but not filled yet
+			ring.set(index, null);
+			head = ++next;
+			if (e.level == WARN) {
+				Log.w(e.tag, e.message());
+			} else if (e.level == INFO) {
+				Log.i(e.tag, e.message());
+			} else if (e.level == DEBUG) {
+				Log.d(e.tag, e.message());
+			} else {
+				Log.v(e.tag, e.message());
+			}
+		}
+		long lost = dropped.getAndSet(0);
+		if (lost > 0)
+			Log.w(TAG, "Log ring full, dropped " + lost + " messages");
+
+		Map<String, StringBuilder> files = new LinkedHashMap<String, StringBuilder>();
+		String[] line;
+		while ((line = fileLines.poll()) != null) {
+			StringBuilder lines = files.get(line[0]);
+			if (lines == null) {
+				lines = new StringBuilder();
+				files.put(line[0], lines);
+			}
+			lines.append(line[1]).append('\n');
+		}
+
+		for (Map.Entry<String, StringBuilder> file : files.entrySet()) {
+			FileWriter writer = null;
+			try {
+				writer = new FileWriter(file.getKey(), true);
+				writer.write(file.getValue().toString());
+			} catch (IOException e) {
+				Log.e(TAG, "Could not write to " + file.getKey() + ": " + e.getMessage());
+			} finally {
+				if (writer != null) {
+					try {
+						writer.close();
+					} catch (IOException e) {
+						// nothing more to do
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,389 @@
+package org.meicorl.unikernel.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.util.Log;
+
+/**
+ * Keeps one long-lived connection between the phone and the Scheduler.
+ *
+ * All connection work (first connect, keepalive pings and reconnects) runs on
+ * a single background thread. A broken connection is retried with exponential
+ * backoff, and every reconnect first tries to resume the previous session by
+ * its token so that the phone gets back the same warm unikernel without
+ * registering the apk again.
+ *
+ * Callers must hold the request lock ({@link #lock()}/{@link #unlock()})
+ * while they use the streams, so that keepalive pings never interleave with an
+ * offloaded request.
+ *
+ * @author MeiCorl
+ */
+public class ConnectionManager {
+
+	private static final String TAG = "ConnectionManager";
+
+	/** Idle time after which a PING is sent to keep the connection alive. */
+	private static final long KEEPALIVE_INTERVAL	= 15000;
+	/** How long to wait for the PONG before declaring the connection dead. */
+	private static final int  KEEPALIVE_TIMEOUT		= 5000;
+	private static final int  CONNECT_TIMEOUT		= 3000;
+	/** How long the Scheduler may take to answer a session resume. */
+	private static final int  RESUME_TIMEOUT		= 10000;
+	private static final long RECONNECT_MIN_DELAY	= 250;
+	private static final long RECONNECT_MAX_DELAY	= 30000;
+	/** Default for how long the Scheduler may keep a new session waiting for a free unikernel. */
+	private static final long ADMISSION_DEADLINE	= 2000;
+
+	/**
+	 * Notified on the connection thread whenever a session is set up or lost.
+	 */
+	public interface Listener {
+		/**
+		 * Called with the request lock held, before any request can use the
+		 * new connection.
+		 *
+		 * @param resumed <b>True</b> if the previous session (and its
+		 *            unikernel) was resumed, <b>False</b> if this is a brand
+		 *            new session which still has to register the apk.
+		 * @throws IOException if the session setup fails, the connection is
+		 *            then retried later.
+		 */
+		void onSessionEstablished(boolean resumed) throws IOException;
+
+		void onConnectionLost(String reason);
+	}
+
+	private final String				phoneId;
+	private final Listener				listener;
+
+	private final ReentrantLock			requestLock = new ReentrantLock();
+	private final Object				stateLock = new Object();
+	private final ScheduledExecutorService	connectionThread;
+
+	private Socket						socket;
+	private InputStream					inStream;
+	private OutputStream				outStream;
+	private ObjectInputStream			objInStream;
+	private ObjectOutputStream			objOutStream;
+
+	private String						sessionToken;
+	private volatile boolean			connected;
+	private volatile long				lastActivity;
+	private boolean						closed;
+
+	private long						reconnectDelay = RECONNECT_MIN_DELAY;
+	private volatile long				admissionDeadline = ADMISSION_DEADLINE;
+	// the app offloaded in the sessions, lets the Scheduler pick a worker that already has it loaded
+	private volatile String				appName;
+	private volatile String				apkVersion;
+	// the Scheduler asked us not to come back before this time
+	private long						busyUntil;
+	private ScheduledFuture<?>			pendingReconnect;
+
+	public ConnectionManager(String phoneId, Listener listener) {
+		this.phoneId = phoneId;
+		this.listener = listener;
+		this.connectionThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, TAG);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.connectionThread.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				keepAlive();
+			}
+		}, KEEPALIVE_INTERVAL, KEEPALIVE_INTERVAL / 2, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Start connecting to the Scheduler in the background.
+	 */
+	public void start() {
+		reconnectNow();
+	}
+
+	/**
+	 * Drop any pending backoff and try to connect right away, e.g. because the
+	 * network has just come back.
+	 */
+	public void reconnectNow() {
+		synchronized (stateLock) {
+			if (closed || connected)
+				return;
+			if (pendingReconnect != null)
+				pendingReconnect.cancel(false);
+			reconnectDelay = RECONNECT_MIN_DELAY;
+			// a busy Scheduler told us when a unikernel might be free again
+			long delay = Math.max(0, busyUntil - System.currentTimeMillis());
+			pendingReconnect = connectionThread.schedule(reconnectTask, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Wait until the connection is back up, for at most <code>timeout</code>
+	 * milliseconds. A reconnect attempt is triggered immediately if none is
+	 * running. Must not be called while holding the request lock.
+	 *
+	 * @return <b>True</b> if the phone is connected again.
+	 */
+	public boolean awaitConnection(long timeout) {
+		reconnectNow();
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (stateLock) {
+			long remaining = timeout;
+			while (!connected && !closed && remaining > 0) {
+				try {
+					stateLock.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				remaining = deadline - System.currentTimeMillis();
+			}
+			return connected;
+		}
+	}
+
+	/**
+	 * Report that the current connection failed while being used. The socket
+	 * is closed and a reconnect is scheduled.
+	 */
+	public void connectionBroken(String reason) {
+		synchronized (stateLock) {
+			if (!connected)
+				return;
+			connected = false;
+		}
+		Log.d(TAG, "Connection to the Scheduler lost: " + reason);
+		closeSocket();
+		listener.onConnectionLost(reason);
+		scheduleReconnect();
+	}
+
+	/**
+	 * Tell the Scheduler that the phone is leaving and stop reconnecting.
+	 */
+	public void close() {
+		synchronized (stateLock) {
+			closed = true;
+			if (pendingReconnect != null)
+				pendingReconnect.cancel(false);
+			stateLock.notifyAll();
+		}
+		connectionThread.shutdownNow();
+		boolean locked = false;
+		try {
+			// a request or a reconnect still waiting for the Scheduler is cut off by closing the socket
+			locked = requestLock.tryLock(KEEPALIVE_TIMEOUT, TimeUnit.MILLISECONDS);
+			if (locked && connected)
+				outStream.write(ControlMessages.PHONE_DISCONNECTION);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			connected = false;
+			closeSocket();
+			if (locked)
+				requestLock.unlock();
+		}
+	}
+
+	/**
+	 * Set how long a new session may wait on the Scheduler for a free
+	 * unikernel. If none is expected in time the Scheduler refuses the session
+	 * at once and requests run locally until the next reconnect.
+	 */
+	public void setAdmissionDeadline(long deadline) {
+		admissionDeadline = deadline;
+	}
+
+	/**
+	 * Name the app and apk version that sessions will offload, so that the
+	 * Scheduler can hand out a worker still warm from an earlier session of the
+	 * same app.
+	 */
+	public void setApp(String appName, String apkVersion) {
+		this.appName = appName;
+		this.apkVersion = apkVersion;
+	}
+
+	public void lock() {
+		requestLock.lock();
+	}
+
+	public void unlock() {
+		lastActivity = System.currentTimeMillis();
+		requestLock.unlock();
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+
+	public InputStream getInputStream() {
+		return inStream;
+	}
+
+	public OutputStream getOutputStream() {
+		return outStream;
+	}
+
+	public ObjectInputStream getObjectInputStream() {
+		return objInStream;
+	}
+
+	public ObjectOutputStream getObjectOutputStream() {
+		return objOutStream;
+	}
+
+	private final Runnable reconnectTask = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (stateLock) {
+				pendingReconnect = null;
+				if (closed || connected)
+					return;
+			}
+			// Keep requests out until the session is completely set up
+			requestLock.lock();
+			try {
+				boolean resumed = openSession();
+				Log.d(TAG, (resumed ? "Resumed session " : "Started session ") + sessionToken);
+				listener.onSessionEstablished(resumed);
+			} catch (Exception e) {
+				Log.d(TAG, "Connection setup to the Scheduler failed: " + e.getMessage());
+				closeSocket();
+				requestLock.unlock();
+				scheduleReconnect();
+				return;
+			}
+			lastActivity = System.currentTimeMillis();
+			synchronized (stateLock) {
+				connected = true;
+				reconnectDelay = RECONNECT_MIN_DELAY;
+				stateLock.notifyAll();
+			}
+			requestLock.unlock();
+		}
+	};
+
+	private void scheduleReconnect() {
+		synchronized (stateLock) {
+			if (closed || connected || pendingReconnect != null)
+				return;
+			long delay = Math.max(reconnectDelay, busyUntil - System.currentTimeMillis());
+			Log.d(TAG, "Reconnecting in " + delay + " ms");
+			pendingReconnect = connectionThread.schedule(reconnectTask, delay, TimeUnit.MILLISECONDS);
+			reconnectDelay = Math.min(reconnectDelay * 2, RECONNECT_MAX_DELAY);
+		}
+	}
+
+	/**
+	 * Open a socket to the Scheduler and either resume the previous session or
+	 * authenticate a new one.
+	 *
+	 * @return <b>True</b> if the previous session was resumed.
+	 */
+	private boolean openSession() throws IOException, ClassNotFoundException {
+		Configuration config = Configuration.parseConfigFile(ControlMessages.PHONE_CONFIG_FILE);
+
+		socket = new Socket();
+		socket.connect(new InetSocketAddress(config.getDirServiceIp(), config.getDirServicePort()), CONNECT_TIMEOUT);
+		socket.setTcpNoDelay(true);
+		outStream = socket.getOutputStream();
+		inStream = socket.getInputStream();
+
+		if (sessionToken != null) {
+			// a Scheduler that accepts but never answers must not hold the request lock forever
+			socket.setSoTimeout(RESUME_TIMEOUT);
+			outStream.write(ControlMessages.PHONE_RECONNECTION);
+			objOutStream = new ObjectOutputStream(outStream);
+			objInStream = new ObjectInputStream(inStream);
+			objOutStream.writeObject(sessionToken);
+			objOutStream.flush();
+			if (inStream.read() == ControlMessages.SESSION_RESUMED) {
+				socket.setSoTimeout(0);
+				return true;
+			}
+			Log.d(TAG, "Session " + sessionToken + " expired on the Scheduler");
+		} else {
+			outStream.write(ControlMessages.PHONE_CONNECTION);
+			objOutStream = new ObjectOutputStream(outStream);
+			objInStream = new ObjectInputStream(inStream);
+		}
+
+		// Send the id, how long we can wait for a unikernel and the app, then receive the token of the new session
+		long deadline = admissionDeadline;
+		outStream.write(ControlMessages.PHONE_AUTHENTICATION);
+		objOutStream.writeObject(phoneId);
+		objOutStream.writeObject(Long.valueOf(deadline));
+		objOutStream.writeObject(appName);
+		objOutStream.writeObject(apkVersion);
+		objOutStream.flush();
+		socket.setSoTimeout((int) deadline + KEEPALIVE_TIMEOUT);
+		int admission = inStream.read();
+		if (admission == ControlMessages.RUN_LOCALLY) {
+			long retryAfter = (Long) objInStream.readObject();
+			synchronized (stateLock) {
+				busyUntil = System.currentTimeMillis() + retryAfter;
+			}
+			throw new IOException("No unikernel available, retry in " + retryAfter + " ms");
+		}
+		if (admission != ControlMessages.ADMITTED)
+			throw new IOException("Unexpected admission response " + admission);
+		sessionToken = (String) objInStream.readObject();
+		socket.setSoTimeout(0);
+		return false;
+	}
+
+	/**
+	 * Ping the Scheduler if the connection has been idle for too long, so that
+	 * NATs keep the mapping and a dead link is noticed before the next request.
+	 */
+	private void keepAlive() {
+		if (!connected || System.currentTimeMillis() - lastActivity < KEEPALIVE_INTERVAL)
+			return;
+		if (!requestLock.tryLock())
+			return;
+		try {
+			socket.setSoTimeout(KEEPALIVE_TIMEOUT);
+			outStream.write(ControlMessages.PING);
+			if (inStream.read() != ControlMessages.PONG)
+				throw new IOException("Bad response to keepalive ping");
+			socket.setSoTimeout(0);
+			lastActivity = System.currentTimeMillis();
+		} catch (IOException e) {
+			requestLock.unlock();
+			connectionBroken("keepalive failed: " + e.getMessage());
+			return;
+		}
+		requestLock.unlock();
+	}
+
+	private void closeSocket() {
+		try {
+			if (socket != null)
+				socket.close();
+		} catch (IOException e) {
+			// Nothing to do, the socket is gone anyway
+		}
+	}
+}
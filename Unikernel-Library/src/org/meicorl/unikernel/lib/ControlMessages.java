@@ -43,10 +43,28 @@ public class ControlMessages {
 	public static final int 	PHONE_CONNECTION 				= 30;
 	public static final int 	PHONE_AUTHENTICATION			= 31;
 	public static final int     PHONE_DISCONNECTION             = 32;
+	public static final int     PHONE_RECONNECTION              = 33;
+	public static final int     SESSION_RESUMED                 = 34;
+	public static final int     SESSION_UNKNOWN                 = 35;
+	public static final int     ADMITTED                        = 36;
+	public static final int     RUN_LOCALLY                     = 37;
 
 	public static final int		PHONE_COMPUTATION_REQUEST		        = 40;
 	public static final int		PHONE_COMPUTATION_REQUEST_WITH_FILE		= 41;
 	public static final int		SEND_FILE_REQUEST			            = 42;
+	public static final int		PHONE_BATCH_COMPUTATION_REQUEST		    = 43;
+	public static final int		PHONE_FANOUT_COMPUTATION_REQUEST	    = 44;
+	public static final int		PHONE_CACHEABLE		                    = 45;
+
+	// Timings in nanoseconds sent after the result of a computation request: the
+	// relay by the Scheduler, its round trip to the worker and the phases of the worker
+	public static final int		TIMING_RELAY		                    = 0;
+	public static final int		TIMING_WORKER		                    = 1;
+	public static final int		TIMING_DESERIALISE	                    = 2;
+	public static final int		TIMING_CLASS_LOAD	                    = 3;
+	public static final int		TIMING_EXECUTE		                    = 4;
+	public static final int		TIMING_SERIALISE	                    = 5;
+	public static final int		TIMINGS				                    = 6;
 
 
 	/**
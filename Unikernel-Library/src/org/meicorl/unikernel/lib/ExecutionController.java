@@ -3,9 +3,10 @@ package org.meicorl.unikernel.lib;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 import android.provider.Settings;
 import org.meicorl.unikernel.lib.db.DatabaseQuery;
@@ -21,6 +22,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.ConnectivityManager;
@@ -39,9 +41,17 @@ public class ExecutionController {
 	public static final int 	REGIME_CLIENT = 1;
 	public static final int 	REGIME_SERVER = 2;
 
+	/** How long an idempotent call waits for the session to come back before running locally. */
+	private static final long	REPLAY_TIMEOUT = 5000;
+	/** Returned by a request the server answered without a result, the call then runs locally. */
+	private static final Object	FAILED_REMOTELY = new Object();
+
 	public LogRecord 			lastLogRecord;
 
 	private Long 				mPureExecutionDuration;
+	private long				mLastRequestId = 0;
+	// timings of the last remote execution as reported by the server, null if it did not answer
+	private long[]				mRemoteTimings;
 
 	private static int			mRegime;
 	private String				mAppName;
@@ -53,13 +63,10 @@ public class ExecutionController {
 	private DeviceProfiler		mDevProfiler;
 	private NetworkProfiler 	netProfiler;
 
-	private Configuration       config;
-	private OutputStream		mOutStream;
-	private ObjectOutputStream	mObjOutStream;
-	private InputStream			mInStream;
-	private ObjectInputStream	mObjInStream;
-	
-	private Socket				dirSocket;
+	private ConnectionManager	connection;
+	private BroadcastReceiver	networkStateReceiver;
+	private final Set<Method>	idempotentMethods = Collections.synchronizedSet(new HashSet<Method>());
+	private final Set<Method>	cacheableMethods = Collections.synchronizedSet(new HashSet<Method>());
 
 	private DatabaseQuery 		query;
 
@@ -88,22 +95,38 @@ public class ExecutionController {
 		netProfiler.registerNetworkStateTrackers();
 
 		mSolver = new ExecutionSolver(ExecutionSolver.EXECUTION_LOCATION_STATIC_REMOTE);
+		connection = new ConnectionManager(myId, new ConnectionManager.Listener() {
+			@Override
+			public void onSessionEstablished(boolean resumed) throws IOException {
+				if (resumed)
+					// Same unikernel as before, only the network may have changed
+					NetworkProfiler.rttPing(connection.getInputStream(), connection.getOutputStream());
+				else
+					testNetworkAndSendApk();
+				synchronized (ExecutionController.this) {
+					onLine = true;
+				}
+			}
+
+			@Override
+			public void onConnectionLost(String reason) {
+				fallBackToLocalExecution("Connection to server lost: " + reason);
+			}
+		});
+		try {
+			connection.setApp(mAppName, apkVersion());
+		} catch (NameNotFoundException e) {
+			Log.w(TAG, "Application not found: " + e.getMessage());
+		}
+		registerNetworkStateReceiver();
+
 		Runnable r = new Runnable() {
 			@Override
 			public void run() {
 				createNotOffloadedFile();
 
-				try {
-					establishConnection();
-				} catch (IOException e) {
-					e.printStackTrace();
-				} catch (ClassNotFoundException e) {
-					e.printStackTrace();
-				}
-
 				// connect to the scheduler
-				if((dirSocket != null) && dirSocket.isConnected())
-					testNetworkAndSendApk();
+				connection.start();
 
 				// Create the database
 				query = new DatabaseQuery(context);
@@ -142,61 +165,63 @@ public class ExecutionController {
 	}
 
 	/**
-	 * 1、Read the config file to get the IP and port for Scheduler.
-	 * 2、setup a tcp connection to the Scheduler,and get the I/O stream of the connection.
-	 * @throws IOException
-	 * @throws UnknownHostException
-	 * @throws ClassNotFoundException
+	 * Try to reconnect as soon as the network comes back instead of waiting
+	 * for the next backoff step.
 	 */
-	private void establishConnection() throws IOException, ClassNotFoundException {
-		config =  Configuration.parseConfigFile(ControlMessages.PHONE_CONFIG_FILE);
-
-		this.dirSocket = new Socket();
-		this.dirSocket.connect(new InetSocketAddress(config.getDirServiceIp(), config.getDirServicePort()), 3000);
-		this.mOutStream = this.dirSocket.getOutputStream();
-		this.mInStream = this.dirSocket.getInputStream();
-
-		mOutStream.write(ControlMessages.PHONE_CONNECTION);
-
-		mObjOutStream = new ObjectOutputStream(mOutStream);
-		mObjInStream = new ObjectInputStream(mInStream);
+	private void registerNetworkStateReceiver() {
+		final ConnectivityManager connectivityManager = (ConnectivityManager) mContext
+				.getSystemService(Context.CONNECTIVITY_SERVICE);
+		networkStateReceiver = new BroadcastReceiver() {
+			public void onReceive(Context context, Intent intent) {
+				NetworkInfo netInfo = connectivityManager.getActiveNetworkInfo();
+				if (netInfo != null && netInfo.isConnected()) {
+					Log.d(TAG, "Network back up, try reestablishing the connection");
+					connection.reconnectNow();
+				}
+			}
+		};
+		mContext.registerReceiver(networkStateReceiver,
+				new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+	}
 
-		// Send the name and id to DirService
-		mOutStream.write(ControlMessages.PHONE_AUTHENTICATION);
-		mObjOutStream.writeObject(ExecutionController.myId);
-		mObjOutStream.flush();
+	/**
+	 * Cached results and warm workers on the Scheduler are only valid for this
+	 * build of the apk.
+	 */
+	private String apkVersion() throws NameNotFoundException {
+		PackageInfo info = mPManager.getPackageInfo(mAppName, 0);
+		return info.versionCode + "-" + info.lastUpdateTime;
 	}
 
 	/**
-	 * Set up streams for the socket connection, perform initial communication
-	 * with the server: determine RTT, enquire if it has the required apk and
-	 * send it if not.
+	 * Perform initial communication with the server on a new session:
+	 * determine RTT, enquire if it has the required apk and send it if not.
+	 * Runs with the request lock of the connection held.
 	 */
-	private void testNetworkAndSendApk() {
-		try {
-			synchronized (this) {
-				onLine = true;
-			}
-			// Find rtt to the server
-			NetworkProfiler.rttPing(mInStream, mOutStream);
+	private void testNetworkAndSendApk() throws IOException {
+		InputStream in = connection.getInputStream();
+		OutputStream out = connection.getOutputStream();
+		ObjectOutputStream objOut = connection.getObjectOutputStream();
 
-			// send apk if neccessary
-			String apkName = mPManager.getApplicationInfo(mAppName, 0).sourceDir;
-			mOutStream.write(ControlMessages.APK_REGISTER);
-			mObjOutStream.writeObject(mAppName);
-			int response = mInStream.read();
+		// Find rtt to the server
+		NetworkProfiler.rttPing(in, out);
 
-			if (response == ControlMessages.APK_REQUEST) {
-				sendApk(apkName, mObjOutStream);
-			}
-		} catch (UnknownHostException e) {
-			fallBackToLocalExecution("Connection setup to server failed: " + e.getMessage());
-		} catch (IOException e) {
-			fallBackToLocalExecution("Connection setup to server failed: " + e.getMessage());
+		// send apk if neccessary
+		String apkName;
+		String apkVersion;
+		try {
+			apkName = mPManager.getApplicationInfo(mAppName, 0).sourceDir;
+			apkVersion = apkVersion();
 		} catch (NameNotFoundException e) {
-			fallBackToLocalExecution("Application not found: " + e.getMessage());
-		} catch (Exception e) {
-			fallBackToLocalExecution("Could not connect: " + e.getMessage());
+			throw new IOException("Application not found: " + e.getMessage());
+		}
+		out.write(ControlMessages.APK_REGISTER);
+		objOut.writeObject(mAppName);
+		objOut.writeObject(apkVersion);
+		int response = in.read();
+
+		if (response == ControlMessages.APK_REQUEST) {
+			sendApk(apkName, objOut);
 		}
 	}
 
@@ -207,18 +232,14 @@ public class ExecutionController {
 	 */
 	public void releaseConnection()
 	{
+		AsyncLog.flush();
 		mDevProfiler.onDestroy();
 		netProfiler.onDestroy();
-		try {
-			if(mOutStream != null){
-				mOutStream.write(ControlMessages.PHONE_DISCONNECTION);
-				this.mObjInStream.close();
-				this.mObjOutStream.close();
-				this.dirSocket.close();
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
+		if (networkStateReceiver != null) {
+			mContext.unregisterReceiver(networkStateReceiver);
+			networkStateReceiver = null;
 		}
+		connection.close();
 	}
 
 	private void fallBackToLocalExecution(String message) {
@@ -231,37 +252,40 @@ public class ExecutionController {
 			onLine = false;
 		}
 	}
-	
+
 	/**
-	 * For Connection repaire
+	 * Mark a remoteable method as idempotent. If the connection drops while
+	 * such a call is in flight, it is sent again as soon as the session has
+	 * been resumed instead of falling back to local execution.
+	 *
+	 * @param m
+	 *            the remoteable method, as passed to execute()
 	 */
-	private void reestablishConnection() {
-		try {
-			Configuration config = Configuration.parseConfigFile(ControlMessages.PHONE_CONFIG_FILE);
-
-			this.dirSocket  = new Socket(config.getDirServiceIp(), config.getDirServicePort());
-			this.mOutStream = this.dirSocket.getOutputStream();
-			this.mInStream = this.dirSocket.getInputStream();
-
-			mOutStream.write(ControlMessages.PHONE_CONNECTION);
+	public void registerIdempotent(Method m) {
+		idempotentMethods.add(m);
+	}
 
-			mObjOutStream = new ObjectOutputStream(mOutStream);
-			mObjInStream = new ObjectInputStream(mInStream);
+	/**
+	 * Set how long connecting may wait for a free unikernel when the Scheduler
+	 * is busy. Requests run locally while the phone is not connected.
+	 * 
+	 * @param deadline
+	 *            maximum wait in milliseconds
+	 */
+	public void setAdmissionDeadline(long deadline) {
+		connection.setAdmissionDeadline(deadline);
+	}
 
-			// Send the name and id to DirService
-			mOutStream.write(ControlMessages.PHONE_AUTHENTICATION);
-			mObjOutStream.writeObject(ExecutionController.myId);
-			mObjOutStream.flush();
-			
-			establishConnection();
-		} catch (UnknownHostException e) {
-			fallBackToLocalExecution("Connection setup to server failed: " + e.getMessage());
-		} catch (IOException e) {
-			fallBackToLocalExecution("Connection setup to server failed: " + e.getMessage());
-		} catch (Exception e) {
-			fallBackToLocalExecution("Could not connect: " + e.getMessage());
-		}
-		
+	/**
+	 * Mark a remoteable method as a pure function of its object and
+	 * parameters (and of the file sent with it). The Scheduler then keeps its
+	 * results and answers repeated calls without running them on a unikernel.
+	 * 
+	 * @param m
+	 *            the remoteable method, as passed to execute()
+	 */
+	public void registerCacheable(Method m) {
+		cacheableMethods.add(m);
 	}
 
 	/**
@@ -311,10 +335,15 @@ public class ExecutionController {
 
 				// Start tracking execution statistics for the method
 				profiler.startExecutionInfoTracking();
+				mRemoteTimings = null;
 				result = executeRemotely(m, pValues, o);
 				// Collect execution statistics
+				if (mRemoteTimings != null)
+					profiler.setRemoteTimings(mLastRequestId, mRemoteTimings);
 				profiler.stopAndLogExecutionInfoTracking(mPureExecutionDuration);
 				lastLogRecord = profiler.lastLogRecord;
+				if (mRemoteTimings != null)
+					mSolver.addRemoteSample(classMethodName, lastLogRecord);
 				return result;
 			} 
 			else 
@@ -362,10 +391,15 @@ public class ExecutionController {
 
 				// Start tracking execution statistics for the method
 				profiler.startExecutionInfoTracking();
+				mRemoteTimings = null;
 				result = executeRemotely(m, pValues, o, fileName);
 				// Collect execution statistics
+				if (mRemoteTimings != null)
+					profiler.setRemoteTimings(mLastRequestId, mRemoteTimings);
 				profiler.stopAndLogExecutionInfoTracking(mPureExecutionDuration);
 				lastLogRecord = profiler.lastLogRecord;
+				if (mRemoteTimings != null)
+					mSolver.addRemoteSample(classMethodName, lastLogRecord);
 				return result;
 			} else { // Execute locally
 				if(this.netProfiler.noConnectivity()){
@@ -391,6 +425,231 @@ public class ExecutionController {
 		}
 	}
 
+	/**
+	 * Execute many small independent calls on the same object. The offloading
+	 * decision and the profiling are done once for the whole batch and, when
+	 * offloaded, all calls travel in one request and their results come back
+	 * in one response. The calls may run in parallel on the server, so they
+	 * must not depend on each other.
+	 * 
+	 * @param methods
+	 *            method of each call
+	 * @param pValues
+	 *            parameter values of each call
+	 * @param o
+	 *            the object all calls are executed on
+	 * @return result of each call in the same order, or the exception of a
+	 *         call if it happened
+	 * @throws NoSuchMethodException
+	 * @throws ClassNotFoundException
+	 * @throws IllegalAccessException
+	 * @throws SecurityException
+	 * @throws IllegalArgumentException
+	 */
+	public Object[] executeBatch(final Method[] methods, final Object[][] pValues, final Object o)
+			throws IllegalArgumentException, SecurityException,
+			IllegalAccessException, ClassNotFoundException,
+			NoSuchMethodException {
+		if (methods.length == 0)
+			return new Object[0];
+		Object[] result;
+		String classMethodName = o.getClass().toString() + methods[0].getName() + "[batch]";
+		ProgramProfiler progProfiler = new ProgramProfiler(classMethodName);
+
+		try {
+			if (!this.netProfiler.noConnectivity() && mSolver.executeRemotely(mContext, classMethodName) ) {
+
+				Profiler profiler = new Profiler(mRegime, mContext, progProfiler, this.netProfiler, mDevProfiler);
+
+				// Start tracking execution statistics for the whole batch
+				profiler.startExecutionInfoTracking();
+				result = (Object[]) offload(new RemoteCall() {
+					@Override
+					public Object send() throws IOException, ClassNotFoundException {
+						Object[] results = sendBatch(methods, pValues, o);
+						return results == null ? FAILED_REMOTELY : results;
+					}
+
+					@Override
+					public Object runLocally() throws IllegalArgumentException, IllegalAccessException {
+						return executeBatchLocally(methods, pValues, o);
+					}
+
+					@Override
+					public boolean isIdempotent() {
+						for (Method m : methods)
+							if (!idempotentMethods.contains(m))
+								return false;
+						return true;
+					}
+
+					@Override
+					public String getName() {
+						return methods.length + " batched calls";
+					}
+				});
+				runFailedLocally(methods, pValues, o, result);
+				// Collect execution statistics
+				profiler.stopAndLogExecutionInfoTracking(mPureExecutionDuration);
+				lastLogRecord = profiler.lastLogRecord;
+				return result;
+			}
+			else
+			{
+				// Execute locally
+				if(this.netProfiler.noConnectivity()){
+					onLine =false;
+				}
+				Profiler profiler1 = new Profiler(mRegime, mContext, progProfiler, null, mDevProfiler);
+
+				// Start tracking execution statistics for the whole batch
+				profiler1.startExecutionInfoTracking();
+				result = executeBatchLocally(methods, pValues, o);
+				// Collect execution statistics
+				profiler1.stopAndLogExecutionInfoTracking(mPureExecutionDuration);
+				lastLogRecord = profiler1.lastLogRecord;
+				return result;
+			}
+
+		} catch (InvocationTargetException e) {
+			// Only thrown by single calls, the batch keeps exceptions per call
+			e.printStackTrace();
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Execute the same method over many independent shards of input, e.g. the
+	 * slices of a large computation. When offloaded, the Scheduler spreads the
+	 * shards over the unikernel of the session and up to
+	 * <code>maxWorkers - 1</code> extra unikernels, and streams the results
+	 * back as the shards finish. Shards that none of the workers could execute
+	 * are run locally.
+	 * 
+	 * @param m
+	 *            method executed on every shard
+	 * @param shards
+	 *            parameter values of each shard
+	 * @param o
+	 *            the object the method is executed on
+	 * @param maxWorkers
+	 *            the maximum number of unikernels working on the shards
+	 * @return result of each shard in the same order, or the exception of a
+	 *         shard if it happened
+	 * @throws NoSuchMethodException
+	 * @throws ClassNotFoundException
+	 * @throws IllegalAccessException
+	 * @throws SecurityException
+	 * @throws IllegalArgumentException
+	 */
+	public Object[] executeFanOut(final Method m, final Object[][] shards, final Object o, final int maxWorkers)
+			throws IllegalArgumentException, SecurityException,
+			IllegalAccessException, ClassNotFoundException,
+			NoSuchMethodException {
+		Object[] result;
+		String classMethodName = o.getClass().toString() + m.getName() + "[fan-out]";
+		ProgramProfiler progProfiler = new ProgramProfiler(classMethodName);
+		final Method[] methods = new Method[shards.length];
+		Arrays.fill(methods, m);
+
+		try {
+			if (!this.netProfiler.noConnectivity() && mSolver.executeRemotely(mContext, classMethodName) ) {
+
+				Profiler profiler = new Profiler(mRegime, mContext, progProfiler, this.netProfiler, mDevProfiler);
+
+				// Start tracking execution statistics for the whole job
+				profiler.startExecutionInfoTracking();
+				result = (Object[]) offload(new RemoteCall() {
+					@Override
+					public Object send() throws IOException, ClassNotFoundException {
+						return sendFanOut(m, shards, o, maxWorkers);
+					}
+
+					@Override
+					public Object runLocally() throws IllegalArgumentException, IllegalAccessException {
+						return executeBatchLocally(methods, shards, o);
+					}
+
+					@Override
+					public boolean isIdempotent() {
+						return idempotentMethods.contains(m);
+					}
+
+					@Override
+					public String getName() {
+						return m.getName() + " over " + shards.length + " shards";
+					}
+				});
+				runFailedLocally(methods, shards, o, result);
+				// Collect execution statistics
+				profiler.stopAndLogExecutionInfoTracking(mPureExecutionDuration);
+				lastLogRecord = profiler.lastLogRecord;
+				return result;
+			}
+			else
+			{
+				// Execute locally
+				if(this.netProfiler.noConnectivity()){
+					onLine =false;
+				}
+				Profiler profiler1 = new Profiler(mRegime, mContext, progProfiler, null, mDevProfiler);
+
+				// Start tracking execution statistics for the whole job
+				profiler1.startExecutionInfoTracking();
+				result = executeBatchLocally(methods, shards, o);
+				// Collect execution statistics
+				profiler1.stopAndLogExecutionInfoTracking(mPureExecutionDuration);
+				lastLogRecord = profiler1.lastLogRecord;
+				return result;
+			}
+
+		} catch (InvocationTargetException e) {
+			// Only thrown by single calls, the job keeps exceptions per shard
+			e.printStackTrace();
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Run the calls of a batch or fan-out the server could not execute. Called
+	 * after the request lock is released, so that the keepalive and other
+	 * offloads are not held up by local work.
+	 */
+	private void runFailedLocally(Method[] methods, Object[][] pValues, Object o, Object[] results)
+			throws IllegalArgumentException {
+		for (int i = 0; i < results.length; i++) {
+			if (results[i] != FAILED_REMOTELY)
+				continue;
+			try {
+				results[i] = executeLocally(methods[i], pValues[i], o);
+			} catch (InvocationTargetException e) {
+				results[i] = e;
+			} catch (IllegalAccessException e) {
+				results[i] = e;
+			}
+		}
+	}
+
+	/**
+	 * Execute a batch of calls locally, one after the other.
+	 */
+	private Object[] executeBatchLocally(Method[] methods, Object[][] pValues, Object o)
+			throws IllegalArgumentException, IllegalAccessException {
+		Object[] results = new Object[methods.length];
+		long pureDuration = 0;
+		for (int i = 0; i < methods.length; i++) {
+			try {
+				results[i] = executeLocally(methods[i], pValues[i], o);
+			} catch (InvocationTargetException e) {
+				Log.d(TAG, "InvocationTargetException " + e);
+				results[i] = e;
+			}
+			pureDuration += mPureExecutionDuration;
+		}
+		mPureExecutionDuration = pureDuration;
+		return results;
+	}
+
 	/**
 	 * Execute the method locally
 	 * 
@@ -411,9 +670,8 @@ public class ExecutionController {
 		m.setAccessible(true);
 		result = m.invoke(o, pValues); // Access it
 		mPureExecutionDuration = System.nanoTime() - startTime;
-		Log.d("ExecutionLocation", "LOCAL " + m.getName()
-				+ ": Actual Invocation duration - " + mPureExecutionDuration
-				/ 1000000 + "ms");
+		AsyncLog.debug("ExecutionLocation", "LOCAL %s: Actual Invocation duration - %dms",
+				m.getName(), mPureExecutionDuration / 1000000);
 		return result;
 	}
 
@@ -431,44 +689,13 @@ public class ExecutionController {
 	 * @throws ClassNotFoundException
 	 * @throws SecurityException
 	 */
-	private Object
-	executeRemotely(Method m, Object[] pValues, Object o)
+	private Object executeRemotely(Method m, Object[] pValues, Object o)
 			throws IllegalArgumentException, IllegalAccessException,
 			InvocationTargetException, SecurityException,
 			ClassNotFoundException, NoSuchMethodException {
-		Object result = null;
-		try {
-			Long startTime = System.nanoTime();
-			mOutStream.write(ControlMessages.PHONE_COMPUTATION_REQUEST);
-			result = sendAndExecute(m, pValues, o, mObjInStream, mObjOutStream);
-
-			Long duration = System.nanoTime() - startTime;
-			Log.d("ExecutionLocation", "REMOTE " + m.getName()
-					+ ": Actual Send-Receive duration - " + duration / 1000000
-					+ "ms");
-		} catch (NullPointerException e){
-			// establish failed so that mOutStream is null, execute locally
-			Log.e(TAG, "ERROR " + m.getName() + ": " + e);
-			result = executeLocally(m, pValues, o);
-			ConnectionRepair repair = new ConnectionRepair();
-			repair.start();
-		} catch (UnknownHostException e) {
-			// No such host exists, execute locally
-			Log.e(TAG, "ERROR " + m.getName() + ": " + e);
-			result = executeLocally(m, pValues, o);
-			ConnectionRepair repair = new ConnectionRepair();
-			repair.start();
-		} catch (IOException e) {
-			// Connection broken, execute locally
-			Log.e(TAG, "ERROR " + m.getName() + ": " + e);
-			result = executeLocally(m, pValues, o);
-			ConnectionRepair repair = new ConnectionRepair();
-			repair.start();
-		}
-
-		return result;
+		return executeRemotely(m, pValues, o, null);
 	}
-	
+
 	/**
 	 * Execute method remotely with file sent first
 	 * 
@@ -476,6 +703,7 @@ public class ExecutionController {
 	 * @param pValues
 	 * @param o
 	 * @param filename
+	 *            file to send before the call, or null
 	 * @return
 	 * @throws IllegalArgumentException
 	 * @throws IllegalAccessException
@@ -484,52 +712,139 @@ public class ExecutionController {
 	 * @throws ClassNotFoundException
 	 * @throws SecurityException
 	 */
-	private Object executeRemotely(Method m, Object[] pValues, Object o, String filename)
+	private Object executeRemotely(final Method m, final Object[] pValues, final Object o, final String filename)
 			throws IllegalArgumentException, IllegalAccessException,
 			InvocationTargetException, SecurityException,
 			ClassNotFoundException, NoSuchMethodException {
-		Object result = null;
-		try {
-			Long startTime = System.nanoTime();
-			
-			mOutStream.write(ControlMessages.PHONE_COMPUTATION_REQUEST_WITH_FILE);
-			
-			mObjOutStream.writeObject(filename);
-			int response = mInStream.read();
+		return offload(new RemoteCall() {
+			@Override
+			public Object send() throws IOException, IllegalArgumentException,
+					IllegalAccessException, InvocationTargetException,
+					ClassNotFoundException, NoSuchMethodException {
+				return sendRequest(m, pValues, o, filename);
+			}
+
+			@Override
+			public Object runLocally() throws IllegalArgumentException,
+					IllegalAccessException, InvocationTargetException {
+				return executeLocally(m, pValues, o);
+			}
+
+			@Override
+			public boolean isIdempotent() {
+				return idempotentMethods.contains(m);
+			}
+
+			@Override
+			public String getName() {
+				return m.getName();
+			}
+		});
+	}
+
+	/**
+	 * A request to the server which can also be run locally when the
+	 * connection is lost.
+	 */
+	private interface RemoteCall {
+		/** Send the request and wait for its result, with the request lock held. */
+		Object send() throws IOException, IllegalArgumentException,
+				IllegalAccessException, InvocationTargetException,
+				ClassNotFoundException, NoSuchMethodException;
+
+		Object runLocally() throws IllegalArgumentException,
+				IllegalAccessException, InvocationTargetException;
+
+		/** Whether the request may be sent again after it was lost in flight. */
+		boolean isIdempotent();
+
+		String getName();
+	}
+
+	/**
+	 * Send a request over the managed connection. If the connection breaks
+	 * the request is executed locally, unless it is idempotent and the
+	 * session can be resumed quickly, in which case it is sent again. A
+	 * request the server could not execute is executed locally as well.
+	 */
+	private Object offload(RemoteCall call)
+			throws IllegalArgumentException, IllegalAccessException,
+			InvocationTargetException, ClassNotFoundException,
+			NoSuchMethodException {
+		boolean replayed = false;
+		while (true) {
+			boolean wasConnected = false;
+			IOException failure = null;
+			connection.lock();
+			try {
+				wasConnected = connection.isConnected();
+				if (!wasConnected)
+					throw new IOException("Not connected to the Scheduler");
+				Object result = call.send();
+				if (result != FAILED_REMOTELY)
+					return result;
+			} catch (IOException e) {
+				failure = e;
+			} finally {
+				connection.unlock();
+			}
+
+			if (failure == null) {
+				// e.g. the worker failed, the Scheduler closes the session afterwards
+				Log.e(TAG, "ERROR " + call.getName() + " was not executed by the server, running it locally");
+				return call.runLocally();
+			}
+
+			// Connection broken, execute locally
+			Log.e(TAG, "ERROR " + call.getName() + ": " + failure);
+			connection.connectionBroken(failure.getMessage());
+
+			// Only idempotent calls may be sent twice, the lost one could
+			// have been executed already
+			if (!wasConnected || replayed || !call.isIdempotent()
+					|| !connection.awaitConnection(REPLAY_TIMEOUT))
+				return call.runLocally();
+
+			Log.d(TAG, "Replaying " + call.getName() + " on the resumed session");
+			replayed = true;
+		}
+	}
+
+	/**
+	 * Send one computation request over the current connection and wait for
+	 * its result. Must be called with the request lock held.
+	 */
+	private Object sendRequest(Method m, Object[] pValues, Object o, String filename)
+			throws IOException, IllegalArgumentException, IllegalAccessException,
+			InvocationTargetException, SecurityException,
+			ClassNotFoundException, NoSuchMethodException {
+		InputStream in = connection.getInputStream();
+		OutputStream out = connection.getOutputStream();
+		ObjectInputStream objIn = connection.getObjectInputStream();
+		ObjectOutputStream objOut = connection.getObjectOutputStream();
+
+		Long startTime = System.nanoTime();
+		if (cacheableMethods.contains(m))
+			out.write(ControlMessages.PHONE_CACHEABLE);
+		if (filename == null) {
+			out.write(ControlMessages.PHONE_COMPUTATION_REQUEST);
+		} else {
+			out.write(ControlMessages.PHONE_COMPUTATION_REQUEST_WITH_FILE);
+
+			objOut.writeObject(filename);
+			int response = in.read();
 
 			if (response == ControlMessages.SEND_FILE_REQUEST) {
 				// Send the APK file if needed
-				sendFile(filename, mObjOutStream);
+				sendFile(filename, objOut);
 			}
-			
-			result = sendAndExecute(m, pValues, o, mObjInStream, mObjOutStream);
-
-			Long duration = System.nanoTime() - startTime;
-			Log.d("ExecutionLocation", "REMOTE " + m.getName()
-					+ ": Actual Send-Receive duration - " + duration / 1000000
-					+ "ms");
-		} catch (NullPointerException e){
-			// establish failed so that mOutStream is null, execute locally
-			Log.e(TAG, "ERROR " + m.getName() + ": " + e);
-			e.printStackTrace();
-			result = executeLocally(m, pValues, o);
-			ConnectionRepair repair = new ConnectionRepair();
-			repair.start();
-		} catch (UnknownHostException e) {
-			// No such host exists, execute locally
-			Log.e(TAG, "ERROR " + m.getName() + ": " + e);
-			e.printStackTrace();
-			result = executeLocally(m, pValues, o);
-			ConnectionRepair repair = new ConnectionRepair();
-			repair.start();
-		} catch (IOException e) {
-			// Connection broken, execute locally
-			Log.e(TAG, "ERROR " + m.getName() + ": " + e);
-			e.printStackTrace();
-			result = executeLocally(m, pValues, o);
-			ConnectionRepair repair = new ConnectionRepair();
-			repair.start();
 		}
+
+		Object result = sendAndExecute(++mLastRequestId, m, pValues, o, objIn, objOut);
+
+		Long duration = System.nanoTime() - startTime;
+		AsyncLog.debug("ExecutionLocation", "REMOTE %s: Actual Send-Receive duration - %dms",
+				m.getName(), duration / 1000000);
 		return result;
 	}
 
@@ -609,38 +924,42 @@ public class ExecutionController {
 	 * Send the object (along with method and parameters) to the remote server
 	 * for execution
 	 * 
+	 * @param requestId
+	 *            identifies the request in the logs of the Scheduler and the worker
 	 * @param o
 	 * @param m
 	 * @param pValues
 	 * @param objOut
 	 * @throws IOException
 	 */
-	private void sendObject(Object o, Method m, Object[] pValues, ObjectOutputStream objOut) throws IOException {
+	private void sendObject(long requestId, Object o, Method m, Object[] pValues, ObjectOutputStream objOut)
+			throws IOException {
 		objOut.reset();
-		Log.d(TAG, "Write Object and data");
+		AsyncLog.debug(TAG, "Write Object and data");
 		Long startSend = System.nanoTime();
 		Long startRx = NetworkProfiler.getProcessRxBytes();
 		Long startTx = NetworkProfiler.getProcessTxBytes();
 		
+		objOut.writeObject(Long.valueOf(requestId));
 		objOut.writeObject(o.getClass().getName());
-		Log.d(TAG, "Write classname: " + o.getClass().getName());
+		AsyncLog.debug(TAG, "Write classname: %s", o.getClass().getName());
 		
 		// Send object for execution
 		Gson gson = new Gson();
 		//String serial = toString((Serializable)o);
 		String objStr = gson.toJson(o);
-		Log.d(TAG, "object string : " + objStr);
+		AsyncLog.trace(TAG, "object string : %s", objStr);
 		objOut.writeObject(objStr);
 
 		// Send the method to be executed
-		Log.d(TAG, "Write Method - " + m.getName());
+		AsyncLog.debug(TAG, "Write Method - %s", m.getName());
 		objOut.writeObject(m.getName());
 
-		Log.d(TAG, "Write method parameter types");
+		AsyncLog.debug(TAG, "Write method parameter types");
 		Class<?>[] paramType = m.getParameterTypes();
 		String[] paramTypeName = new String[paramType.length]; 
 		for(int i = 0; i < paramType.length; i++){
-			Log.d(TAG, "paramTypename " + i + " : " + paramType[i].getName());
+			AsyncLog.trace(TAG, "paramTypename %d : %s", i, paramType[i].getName());
 			paramTypeName[i] = paramType[i].getName();
 	    }
 		objOut.writeObject(paramTypeName);
@@ -659,8 +978,11 @@ public class ExecutionController {
 	
 	/**
 	 * Send the object, the method to be executed and parameter values to the
-	 * remote server for execution.
+	 * remote server for execution. The server answers with the result and the
+	 * time spent on each part of the execution, kept in mRemoteTimings.
 	 * 
+	 * @param requestId
+	 *            identifies the request in the logs of the Scheduler and the worker
 	 * @param m
 	 *            method to be executed
 	 * @param pValues
@@ -681,7 +1003,7 @@ public class ExecutionController {
 	 * @throws SecurityException
 	 * @throws IllegalArgumentException
 	 */
-	private Object sendAndExecute(Method m, Object[] pValues, Object o,
+	private Object sendAndExecute(long requestId, Method m, Object[] pValues, Object o,
 			ObjectInputStream objIn, ObjectOutputStream objOut)
 					throws IOException, ClassNotFoundException,
 					IllegalArgumentException, SecurityException,
@@ -689,19 +1011,49 @@ public class ExecutionController {
 					NoSuchMethodException {
 
 		// Send the object itself
-		sendObject(o, m, pValues, objOut);
+		sendObject(requestId, o, m, pValues, objOut);
 
 		// Read the results from the server
-		Log.d(TAG, "Read Result");
+		AsyncLog.debug(TAG, "Read Result");
 		Long startSend = System.nanoTime();
 		Long startRx = NetworkProfiler.getProcessRxBytes();
 		Long startTx = NetworkProfiler.getProcessTxBytes();
 
-		Log.d(TAG, "Read Result 1");
 		
 		String retType = (String) objIn.readObject();
-		Log.d(TAG, "response type : " + retType);
+		AsyncLog.debug(TAG, "response type : %s", retType);
+		
+		String retVal = (String) objIn.readObject();
+		AsyncLog.trace(TAG, "response value : %s", retVal);
+
+		mRemoteTimings = (long[]) objIn.readObject();
+		if (retType == null) {
+			// the call failed on the server
+			mRemoteTimings = null;
+			return FAILED_REMOTELY;
+		}
+		mPureExecutionDuration = mRemoteTimings[ControlMessages.TIMING_EXECUTE];
+		AsyncLog.debug(TAG, "Request %d relay %dms, worker %dms, execute %dms", requestId,
+				mRemoteTimings[ControlMessages.TIMING_RELAY] / 1000000,
+				mRemoteTimings[ControlMessages.TIMING_WORKER] / 1000000, mPureExecutionDuration / 1000000);
+		
+		// Estimate the perceived bandwidth
+		NetworkProfiler.addNewBandwidthEstimate(NetworkProfiler
+				.getProcessRxBytes()
+				- startRx + NetworkProfiler.getProcessTxBytes() - startTx,
+				System.nanoTime() - startSend);
 		
+		return decodeResult(new Gson(), retType, retVal);
+	}
+
+	/**
+	 * Convert a result sent back by the server to an object of its return type.
+	 */
+	private static Object decodeResult(Gson gson, String retType, String retVal)
+			throws ClassNotFoundException {
+		if (retType == null || retVal == null)
+			return null;
+
 		if(retType.equals("int")){
 			retType = "java.lang.Integer";
 		}else if(retType.equals("double")){
@@ -709,66 +1061,140 @@ public class ExecutionController {
 		}else if(retType.equals("boolean")){
 			retType = "java.lang.Boolean";
 		}
-		
-		String retVal = (String) objIn.readObject();
-		Log.d(TAG, "response value : " + retVal);
-		
+
+		return gson.fromJson(retVal, Class.forName(retType));
+	}
+
+	/**
+	 * Send a batch of calls on the same object in one request and read all
+	 * their results from one response. Must be called with the request lock
+	 * held.
+	 * 
+	 * @return the results, with FAILED_REMOTELY for each call the server could
+	 *         not execute, or null if the server could not execute the batch
+	 */
+	private Object[] sendBatch(Method[] methods, Object[][] pValues, Object o)
+			throws IOException, ClassNotFoundException {
+		OutputStream out = connection.getOutputStream();
+		ObjectInputStream objIn = connection.getObjectInputStream();
+		ObjectOutputStream objOut = connection.getObjectOutputStream();
+
+		Long startTime = System.nanoTime();
+		Long startRx = NetworkProfiler.getProcessRxBytes();
+		Long startTx = NetworkProfiler.getProcessTxBytes();
+
+		out.write(ControlMessages.PHONE_BATCH_COMPUTATION_REQUEST);
+		objOut.reset();
+
+		Gson gson = new Gson();
+		String[] methodNames = new String[methods.length];
+		String[][] paramTypeNames = new String[methods.length][];
+		String[] pvalueStrs = new String[methods.length];
+		for (int i = 0; i < methods.length; i++) {
+			methodNames[i] = methods[i].getName();
+			Class<?>[] paramType = methods[i].getParameterTypes();
+			paramTypeNames[i] = new String[paramType.length];
+			for (int j = 0; j < paramType.length; j++)
+				paramTypeNames[i][j] = paramType[j].getName();
+			pvalueStrs[i] = gson.toJson(pValues[i]);
+		}
+		AsyncLog.debug(TAG, "Write batch of %d calls on %s", methods.length, o.getClass().getName());
+		objOut.writeObject(o.getClass().getName());
+		objOut.writeObject(gson.toJson(o));
+		objOut.writeObject(methodNames);
+		objOut.writeObject(paramTypeNames);
+		objOut.writeObject(pvalueStrs);
+		objOut.flush();
+
+		String[] retTypes = (String[]) objIn.readObject();
+		String[] retVals = (String[]) objIn.readObject();
+		if (retTypes == null || retVals == null)
+			return null;	// the worker failed, the whole batch runs locally
+
 		// Estimate the perceived bandwidth
 		NetworkProfiler.addNewBandwidthEstimate(NetworkProfiler
 				.getProcessRxBytes()
 				- startRx + NetworkProfiler.getProcessTxBytes() - startTx,
-				System.nanoTime() - startSend);
-		
-		Gson gson = new Gson();
-
-		Object result = gson.fromJson(retVal, Class.forName(retType));
+				System.nanoTime() - startTime);
+
+		Object[] results = new Object[methods.length];
+		int failed = 0;
+		for (int i = 0; i < methods.length; i++) {
+			if (retTypes[i] == null) {
+				results[i] = FAILED_REMOTELY;
+				failed++;
+			} else
+				results[i] = decodeResult(gson, retTypes[i], retVals[i]);
+		}
 
-		return result;
+		Long duration = System.nanoTime() - startTime;
+		AsyncLog.debug("ExecutionLocation", "REMOTE batch of %d: Actual Send-Receive duration - %dms, "
+				+ "%d calls left to run locally", methods.length, duration / 1000000, failed);
+		return results;
 	}
 
 	/**
-	 * Take care of a broken connection - try restarting it when something
-	 * breaks down immediately or alternativelylisten to changing network
-	 * conditions
-	 * 
-	 * @author MeiCorl
+	 * Send all shards in one request and read their results as the Scheduler
+	 * streams them back, in completion order. Must be called with the request
+	 * lock held.
 	 * 
+	 * @return the results, with FAILED_REMOTELY for each shard none of the
+	 *         workers could execute
 	 */
-	public class ConnectionRepair extends Thread {
-		/**
-		 * Simple reestablish the connection
-		 */
-		@Override
-		public void run() {
-			// Try simply restarting the connection
-			onLine = false;
-			Log.d(TAG,"Trying to reestablish connection to the server");
-			reestablishConnection();
-
-			// If still offline, establish intent listeners that would try to
-			// restart the connection when the service comes back up
-			synchronized (this) {
-				if (!onLine) {
-					Log.d(TAG, "Reestablishing failed - register listeners for reconnecting");
-					final ConnectivityManager connectivityManager = (ConnectivityManager) mContext
-							.getSystemService(Context.CONNECTIVITY_SERVICE);
-
-					BroadcastReceiver networkStateReceiver = new BroadcastReceiver() {
-						public void onReceive(Context context, Intent intent) {
-							context.unregisterReceiver(this);
-							NetworkInfo netInfo = connectivityManager.getActiveNetworkInfo();
-							if (netInfo != null) {
-								Log.d(TAG, "Network back up, try reestablishing the connection");
-								reestablishConnection();
-							} 
-						}
-					};
-					IntentFilter networkStateFilter = new IntentFilter(
-							ConnectivityManager.CONNECTIVITY_ACTION);
-					mContext.registerReceiver(networkStateReceiver,	networkStateFilter);
-				}
-			}
+	private Object[] sendFanOut(Method m, Object[][] shards, Object o, int maxWorkers)
+			throws IOException, ClassNotFoundException {
+		OutputStream out = connection.getOutputStream();
+		ObjectInputStream objIn = connection.getObjectInputStream();
+		ObjectOutputStream objOut = connection.getObjectOutputStream();
+
+		Long startTime = System.nanoTime();
+		Long startRx = NetworkProfiler.getProcessRxBytes();
+		Long startTx = NetworkProfiler.getProcessTxBytes();
+
+		out.write(ControlMessages.PHONE_FANOUT_COMPUTATION_REQUEST);
+		objOut.reset();
+
+		Gson gson = new Gson();
+		Class<?>[] paramType = m.getParameterTypes();
+		String[] paramTypeName = new String[paramType.length];
+		for (int i = 0; i < paramType.length; i++)
+			paramTypeName[i] = paramType[i].getName();
+		String[] shardStrs = new String[shards.length];
+		for (int i = 0; i < shards.length; i++)
+			shardStrs[i] = gson.toJson(shards[i]);
+
+		AsyncLog.debug(TAG, "Write fan-out of %s over %d shards", m.getName(), shards.length);
+		objOut.writeObject(o.getClass().getName());
+		objOut.writeObject(gson.toJson(o));
+		objOut.writeObject(m.getName());
+		objOut.writeObject(paramTypeName);
+		objOut.writeObject(shardStrs);
+		objOut.writeObject(Integer.valueOf(maxWorkers));
+		objOut.flush();
+
+		Object[] results = new Object[shards.length];
+		int failed = 0;
+		int index;
+		while ((index = (Integer) objIn.readObject()) >= 0) {
+			String retType = (String) objIn.readObject();
+			String retVal = (String) objIn.readObject();
+			if (retType == null) {
+				results[index] = FAILED_REMOTELY;
+				failed++;
+			} else
+				results[index] = decodeResult(gson, retType, retVal);
 		}
+
+		// Estimate the perceived bandwidth
+		NetworkProfiler.addNewBandwidthEstimate(NetworkProfiler
+				.getProcessRxBytes()
+				- startRx + NetworkProfiler.getProcessTxBytes() - startTx,
+				System.nanoTime() - startTime);
+
+		Long duration = System.nanoTime() - startTime;
+		AsyncLog.debug("ExecutionLocation", "REMOTE fan-out of %d: Actual Send-Receive duration - %dms, "
+				+ "%d shards left to run locally", shards.length, duration / 1000000, failed);
+		return results;
 	}
 
 	public void setUserChoice(int userChoice) {
@@ -1,7 +1,9 @@
 package org.meicorl.unikernel.lib;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import org.meicorl.unikernel.lib.db.DatabaseQuery;
+import org.meicorl.unikernel.lib.profilers.LogRecord;
 import org.meicorl.unikernel.lib.profilers.NetworkProfiler;
 
 import android.content.Context;
@@ -31,6 +33,48 @@ public class ExecutionSolver {
 	
 	public static boolean ShouldOffload;
 
+	// weight of the newest sample in the moving averages of the remote components
+	private static final double REMOTE_MODEL_WEIGHT		= 0.3;
+
+	/**
+	 * Moving averages of the parts of the remote executions of one method on one
+	 * type of network, in nanoseconds. The network part is kept without the round
+	 * trip time, so that a prediction follows the current round trip time at once.
+	 */
+	private static class RemoteModel {
+		double network;
+		double relay;
+		double workerNetwork;
+		double deserialise;
+		double classLoad;
+		double execute;
+		double serialise;
+		boolean empty = true;
+
+		void add(LogRecord r) {
+			long serverTime = r.deserialiseDuration + r.classLoadDuration + r.serverExecDuration
+					+ r.serialiseDuration;
+			network = average(network, Math.max(0, r.networkDuration - r.rtt));
+			relay = average(relay, r.relayDuration);
+			workerNetwork = average(workerNetwork, Math.max(0, r.workerDuration - serverTime));
+			deserialise = average(deserialise, r.deserialiseDuration);
+			classLoad = average(classLoad, r.classLoadDuration);
+			execute = average(execute, r.serverExecDuration);
+			serialise = average(serialise, r.serialiseDuration);
+			empty = false;
+		}
+
+		long predict(int rtt) {
+			return Math.round(rtt + network + relay + workerNetwork + deserialise + classLoad + execute + serialise);
+		}
+
+		private double average(double average, double sample) {
+			return empty ? sample : average * (1 - REMOTE_MODEL_WEIGHT) + sample * REMOTE_MODEL_WEIGHT;
+		}
+	}
+
+	private final HashMap<String, RemoteModel> remoteModels = new HashMap<String, RemoteModel>();
+
 	private String currentNetworkTypeName;
 	private String currentNetworkSubtypeName;
 	private ArrayList<String> queryString;
@@ -126,6 +170,11 @@ public class ExecutionSolver {
 			queryString.clear();
 		}
 		
+		// the components of the recent remote runs, if known, adapt quicker to the network and the server
+		long predictedRemotely = predictRemoteDuration(classMethodName);
+		if (predictedRemotely > 0)
+			meanExecDurationRemotely = predictedRemotely;
+
 		Log.d(TAG, "Method execLocal execRemote energyLocal energyRemote: "  + 
 				classMethodName + " " + meanExecDurationLocally + " " + meanExecDurationRemotely + " " + 
 				meanEnergyConsumptionLocally + " " + meanEnergyConsumptionRemotely);
@@ -164,6 +213,37 @@ public class ExecutionSolver {
 		}*/
 	}
 	
+	/**
+	 * Learn from the breakdown of a remote execution returned by the server.
+	 */
+	synchronized void addRemoteSample(String classMethodName, LogRecord record)
+	{
+		if (record == null || record.requestId == null)
+			return;
+		String key = classMethodName + "/" + record.networkType + "/" + record.networkSubtype;
+		RemoteModel model = remoteModels.get(key);
+		if (model == null) {
+			model = new RemoteModel();
+			remoteModels.put(key, model);
+		}
+		model.add(record);
+		Log.d(TAG, "Remote model of " + key + ": network " + Math.round(model.network) / 1000000
+				+ "ms, relay " + Math.round(model.relay + model.workerNetwork) / 1000000
+				+ "ms, class-load " + Math.round(model.classLoad) / 1000000
+				+ "ms, execute " + Math.round(model.execute) / 1000000 + "ms");
+	}
+
+	/**
+	 * @return the expected duration of a remote execution on the current network,
+	 *         0 if the method has not been executed remotely on this type of network yet
+	 */
+	private synchronized long predictRemoteDuration(String classMethodName)
+	{
+		RemoteModel model = remoteModels.get(classMethodName + "/" + currentNetworkTypeName + "/"
+				+ currentNetworkSubtypeName);
+		return model == null ? 0 : model.predict(NetworkProfiler.rtt);
+	}
+
 	public void setUserChoice(int userChoice)
 	{
 		this.userChoice = userChoice;
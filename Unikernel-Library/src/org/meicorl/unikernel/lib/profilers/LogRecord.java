@@ -1,5 +1,7 @@
 package org.meicorl.unikernel.lib.profilers;
 
+import org.meicorl.unikernel.lib.ControlMessages;
+
 /**
  * Log record of the profiler.
  * 
@@ -10,7 +12,11 @@ package org.meicorl.unikernel.lib.profilers;
  * Invocation Count,Thread Allocation Size,Garbage Collector invocation count
  * (thread),Garbage Collector invocation count (global),Current Network
  * Type,Current Network Subtype,Current RTT,Current Bandwidth, Bytes
- * Received(RX),Bytes Transmitted(TX),Battery Voltage Change,Timestamp
+ * Received(RX),Bytes Transmitted(TX),Battery Voltage Change,Timestamp,
+ * Request Id,Relay Duration,Worker Duration,Deserialise Duration,Class Load
+ * Duration,Server Execution Duration,Serialise Duration,Network Duration
+ * 
+ * The last fields break a remote execution down, they are empty for local ones.
  * 
  * @author Andrius
  * 
@@ -43,6 +49,18 @@ public class LogRecord {
 	public Long batteryVoltageChange;
 	public Long logRecordTime;
 
+	// Breakdown of a remote execution (nanoseconds): the relay by the Scheduler,
+	// its round trip to the worker, the phases on the worker and what is left
+	// for the network between phone and Scheduler
+	public Long requestId;
+	public Long relayDuration;
+	public Long workerDuration;
+	public Long deserialiseDuration;
+	public Long classLoadDuration;
+	public Long serverExecDuration;
+	public Long serialiseDuration;
+	public Long networkDuration;
+
 	/**
 	 * Collect readings of the different profilers together from the different
 	 * running profilers
@@ -82,6 +100,23 @@ public class LogRecord {
 		batteryVoltageChange = devProfiler.batteryVoltageDelta;
 	}
 
+	/**
+	 * Break the execution down with the timings reported by the server
+	 * 
+	 * @param timings
+	 *            indexed by the ControlMessages.TIMING_ constants
+	 */
+	public void setRemoteTimings(long requestId, long[] timings) {
+		this.requestId = requestId;
+		relayDuration = timings[ControlMessages.TIMING_RELAY];
+		workerDuration = timings[ControlMessages.TIMING_WORKER];
+		deserialiseDuration = timings[ControlMessages.TIMING_DESERIALISE];
+		classLoadDuration = timings[ControlMessages.TIMING_CLASS_LOAD];
+		serverExecDuration = timings[ControlMessages.TIMING_EXECUTE];
+		serialiseDuration = timings[ControlMessages.TIMING_SERIALISE];
+		networkDuration = Math.max(0, execDuration - relayDuration - workerDuration);
+	}
+
 	/**
 	 * Convert the log record to string for storing
 	 */
@@ -101,9 +136,16 @@ public class LogRecord {
 					+ "," + bandwidth + "," + rxBytes + "," + txBytes;
 
 		String devProfilerRecord = "" + batteryVoltageChange;
+
+		String remoteRecord = " , , , , , , , ";
+
+		if (requestId != null)
+			remoteRecord = requestId + "," + relayDuration + "," + workerDuration + ","
+					+ deserialiseDuration + "," + classLoadDuration + "," + serverExecDuration
+					+ "," + serialiseDuration + "," + networkDuration;
 		
 		return progProfilerRecord + "," + netProfilerRecord + ","
-				+ devProfilerRecord + "," + logRecordTime;
+				+ devProfilerRecord + "," + logRecordTime + "," + remoteRecord;
 		/*String Record = methodName + "," + execLocation + "," + execDuration/1000000 + " ms.";
 		return  Record;*/
 	}
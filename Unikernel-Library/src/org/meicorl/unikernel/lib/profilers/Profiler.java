@@ -1,10 +1,8 @@
 package org.meicorl.unikernel.lib.profilers;
 
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
 import java.util.ArrayList;
 
+import org.meicorl.unikernel.lib.AsyncLog;
 import org.meicorl.unikernel.lib.db.DatabaseQuery;
 
 import android.content.Context;
@@ -19,12 +17,15 @@ public class Profiler {
 	public static final int REGIME_CLIENT = 1;
 	public static final int REGIME_SERVER = 2;
 
+	// written in batches by AsyncLog
 	private static final String logFileName = "/sdcard/PowerDroid-performanceLog.txt";
-	private static FileWriter logFileWriter;
 
 	private String mLocation;
 
 	public LogRecord lastLogRecord;
+
+	private long remoteRequestId;
+	private long[] remoteTimings;
 	
 	private ArrayList<String> queryString;
 	private DatabaseQuery query;
@@ -49,19 +50,7 @@ public class Profiler {
 		this.mRegime = regime;
 
 		if(mRegime == REGIME_CLIENT)
-		{
 			this.devProfiler.trackBatteryLevel();
-
-			if (logFileWriter == null)
-				try {
-					File logFile = new File(logFileName);
-					logFile.createNewFile(); // Try creating new, if doesn't exist
-					logFileWriter = new FileWriter(logFile, true);
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-		}
 	}
 
 	public void startExecutionInfoTracking() {
@@ -72,14 +61,22 @@ public class Profiler {
 		} else {
 			mLocation = "LOCAL";
 		}
-		Log.d("PowerDroid-Client", mLocation + " " + progProfiler.methodName);
-		Log.d("PowerDroid-Profiler", mLocation + " " + progProfiler.methodName);
+		AsyncLog.debug("PowerDroid-Profiler", "%s %s", mLocation, progProfiler.methodName);
 		progProfiler.startExecutionInfoTracking();
 		
 		if(mRegime == REGIME_CLIENT)
 			devProfiler.startDeviceProfiling();
 	}
 
+	/**
+	 * Set the breakdown of a remote execution as reported by the server, to be
+	 * logged with the execution.
+	 */
+	public void setRemoteTimings(long requestId, long[] timings) {
+		this.remoteRequestId = requestId;
+		this.remoteTimings = timings;
+	}
+
 	/**
 	 * Stop running profilers and log current information
 	 * 
@@ -97,6 +94,8 @@ public class Profiler {
 		LogRecord record = new LogRecord(progProfiler, netProfiler, devProfiler);
 		record.pureDuration = pureExecTime;
 		record.execLocation = mLocation;
+		if (remoteTimings != null)
+			record.setRemoteTimings(remoteRequestId, remoteTimings);
 		
 		lastLogRecord = record;
 		
@@ -110,20 +109,9 @@ public class Profiler {
 			record.wifiEnergy = estimatedWiFiEnergy;
 			record.threeGEnergy = estimated3GEnergy;
 		
-			Log.d("PowerDroid-Profiler", "Log record - " + record.toString());
-			try {
-				if (logFileWriter == null) {
-					File logFile = new File(logFileName);
-					logFile.createNewFile(); // Try creating new, if doesn't exist
-					logFileWriter = new FileWriter(logFile, true);
-				}
-
-				logFileWriter.append(record.toString() + "\n");
-				logFileWriter.flush();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+			String line = record.toString();
+			AsyncLog.debug("PowerDroid-Profiler", "Log record - %s", line);
+			AsyncLog.append(logFileName, line);
 			
 			updateDB();
 		}
@@ -0,0 +1,31 @@
+package org.meicorl.unikernel.loadgen;
+
+/**
+ * The part of the phone protocol the simulated phones speak.
+ */
+class ControlMessages
+{
+    public static final int PING								= 11;
+    public static final int PONG								= 12;
+
+    public static final int APK_REGISTER 						= 21;
+    public static final int APK_PRESENT 						= 22;
+    public static final int APK_REQUEST 						= 23;
+
+    public static final int 	PHONE_CONNECTION 				= 30;
+    public static final int 	PHONE_AUTHENTICATION			= 31;
+    public static final int     PHONE_DISCONNECTION             = 32;
+    public static final int     ADMITTED                        = 36;
+    public static final int     RUN_LOCALLY                     = 37;
+
+    public static final int		PHONE_COMPUTATION_REQUEST		        = 40;
+    public static final int		PHONE_COMPUTATION_REQUEST_WITH_FILE		= 41;
+    public static final int		SEND_FILE_REQUEST			            = 42;
+
+    // timings in nanoseconds sent after the result of a computation request
+    public static final int		TIMING_RELAY		                    = 0;
+    public static final int		TIMING_WORKER		                    = 1;
+    public static final int		TIMING_EXECUTE		                    = 4;
+
+    public static final int		SCHEDULER_STATS		                    = 60;
+}
@@ -0,0 +1,74 @@
+package org.meicorl.unikernel.loadgen;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Latency samples per phase, kept in full so that the percentiles are exact.
+ * @author MeiCorl
+ */
+class LatencyRecorder {
+
+	private static class Samples {
+		long[] values = new long[1024];
+		int    count  = 0;
+
+		void add(long value) {
+			if (count == values.length)
+				values = Arrays.copyOf(values, count * 2);
+			values[count++] = value;
+		}
+	}
+
+	private final Map<String, Samples> phases = new LinkedHashMap<>();
+
+	/**
+	 * @param phase e.g. "connect" or "execute"
+	 * @param nanos duration of the phase
+	 */
+	synchronized void record(String phase, long nanos) {
+		Samples samples = phases.get(phase);
+		if (samples == null) {
+			samples = new Samples();
+			phases.put(phase, samples);
+		}
+		samples.add(nanos);
+	}
+
+	synchronized int count(String phase) {
+		Samples samples = phases.get(phase);
+		return samples == null ? 0 : samples.count;
+	}
+
+	/**
+	 * @return one line per phase with count, mean, p50, p99, p999 and max in milliseconds
+	 */
+	synchronized String report() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-12s %8s %9s %9s %9s %9s %9s%n", "phase", "count", "mean", "p50", "p99", "p999", "max"));
+		for (Map.Entry<String, Samples> e : phases.entrySet()) {
+			Samples s = e.getValue();
+			long[] sorted = Arrays.copyOf(s.values, s.count);
+			Arrays.sort(sorted);
+			long sum = 0;
+			for (long v : sorted)
+				sum += v;
+			sb.append(String.format("%-12s %8d %9.2f %9.2f %9.2f %9.2f %9.2f%n", e.getKey(), s.count,
+					ms(sum / Math.max(1, s.count)), ms(percentile(sorted, 0.5)), ms(percentile(sorted, 0.99)),
+					ms(percentile(sorted, 0.999)), ms(sorted.length == 0 ? 0 : sorted[sorted.length - 1])));
+		}
+		return sb.toString();
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0)
+			return 0;
+		int index = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+
+	private static double ms(long nanos) {
+		return nanos / 1e6;
+	}
+}
@@ -0,0 +1,193 @@
+package org.meicorl.unikernel.loadgen;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless load generator: many simulated phones offloading the calls of the bundled apps
+ * to a Scheduler, e.g. one running with the local unikernel driver. Reports throughput,
+ * latency percentiles per phase and the resource usage of the host during the run.
+ *
+ * Usage: java -jar Unikernel-LoadGen.jar [loadgen.properties]
+ * Every setting of the file can be overridden with -D.
+ * @author MeiCorl
+ */
+public class LoadGenerator {
+
+	static final AtomicLong sessions        = new AtomicLong();
+	static final AtomicLong sessionFailures = new AtomicLong();
+	static final AtomicLong rejected        = new AtomicLong();
+	static final AtomicLong completed       = new AtomicLong();
+	static final AtomicLong failed          = new AtomicLong();
+
+	static class Settings {
+		final InetSocketAddress scheduler;
+		final int  phones;
+		final long duration;
+		final long rampUp;
+		final long thinkTime;
+		final long admissionDeadline;
+		final int  timeout;
+
+		Settings(Properties props) {
+			String[] address = props.getProperty("loadgen.scheduler", "127.0.0.1:6035").split(":");
+			scheduler = new InetSocketAddress(address[0], Integer.parseInt(address[1]));
+			phones = Integer.parseInt(props.getProperty("loadgen.phones", "100"));
+			duration = Long.parseLong(props.getProperty("loadgen.duration", "60")) * 1000;
+			rampUp = Long.parseLong(props.getProperty("loadgen.rampup", "10")) * 1000;
+			thinkTime = Long.parseLong(props.getProperty("loadgen.think", "500"));
+			admissionDeadline = Long.parseLong(props.getProperty("loadgen.deadline", "2000"));
+			timeout = Integer.parseInt(props.getProperty("loadgen.timeout", "60000"));
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Properties props = new Properties();
+		try (InputStream in = new FileInputStream(args.length > 0 ? args[0] : "loadgen.properties")) {
+			props.load(in);
+		}
+		for (String key : System.getProperties().stringPropertyNames()) {
+			if (key.startsWith("loadgen.") || key.startsWith("workload"))
+				props.setProperty(key, System.getProperty(key));
+		}
+		Settings settings = new Settings(props);
+		List<Workload> workloads = Workload.load(props);
+		LatencyRecorder recorder = new LatencyRecorder();
+
+		System.out.println("Running " + settings.phones + " phones for " + settings.duration / 1000 + " s against "
+				+ settings.scheduler);
+		long start = System.currentTimeMillis();
+		long end = start + settings.duration;
+		ResourceSampler sampler = new ResourceSampler();
+		sampler.start();
+
+		List<Thread> phones = new ArrayList<>();
+		for (int i = 0; i < settings.phones; i++) {
+			Thread phone = new Thread(new SimulatedPhone(i, Workload.forPhone(workloads, i), settings.scheduler,
+					end, settings, recorder), "phone-" + i);
+			phone.start();
+			phones.add(phone);
+			Thread.sleep(settings.rampUp / Math.max(1, settings.phones));
+		}
+		for (Thread phone : phones)
+			phone.join();
+		long elapsed = System.currentTimeMillis() - start;
+		sampler.interrupt();
+		sampler.join();
+
+		System.out.println();
+		System.out.println(String.format("%d requests in %.1f s: %.1f requests/s, %d failed",
+				completed.get(), elapsed / 1000.0, completed.get() * 1000.0 / elapsed, failed.get()));
+		System.out.println(sessions.get() + " sessions, " + rejected.get() + " told to run locally, "
+				+ sessionFailures.get() + " broken");
+		System.out.println();
+		System.out.println("latency (ms):");
+		System.out.print(recorder.report());
+		System.out.println();
+		System.out.println(sampler.report());
+		System.out.println();
+		System.out.println(schedulerStats(settings.scheduler));
+	}
+
+	/**
+	 * @return the metrics report of the Scheduler
+	 */
+	private static String schedulerStats(InetSocketAddress scheduler) {
+		try (Socket socket = new Socket()) {
+			socket.connect(scheduler, 2000);
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write(ControlMessages.SCHEDULER_STATS);
+			return "scheduler:\n" + new ObjectInputStream(socket.getInputStream()).readObject();
+		} catch (IOException | ClassNotFoundException e) {
+			return "scheduler stats not available: " + e;
+		}
+	}
+
+	/**
+	 * Samples the CPU usage and load of this host once a second. The Scheduler and local
+	 * workers usually run here too.
+	 */
+	private static class ResourceSampler extends Thread {
+		private static final File STAT    = new File("/proc/stat");
+		private static final File LOADAVG = new File("/proc/loadavg");
+
+		private int    samples = 0;
+		private double cpuSum = 0;
+		private double cpuMax = 0;
+		private double loadMax = 0;
+
+		ResourceSampler() {
+			super("resource-sampler");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			if (!STAT.exists())
+				return;
+			try {
+				long[] last = readCpu();
+				while (!isInterrupted()) {
+					Thread.sleep(1000);
+					long[] now = readCpu();
+					long busy = now[0] - last[0];
+					long total = now[1] - last[1];
+					last = now;
+					if (total <= 0)
+						continue;
+					double cpu = 100.0 * busy / total;
+					double load = readLoad();
+					synchronized (this) {
+						samples++;
+						cpuSum += cpu;
+						cpuMax = Math.max(cpuMax, cpu);
+						loadMax = Math.max(loadMax, load);
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} catch (InterruptedException e) {
+				// run is over
+			}
+		}
+
+		synchronized String report() {
+			if (samples == 0)
+				return "host: no resource samples";
+			return String.format("host: cpu %.1f%% average, %.1f%% max, load %.2f max, %d cpus",
+					cpuSum / samples, cpuMax, loadMax, Runtime.getRuntime().availableProcessors());
+		}
+
+		/**
+		 * @return busy and total jiffies of all cpus
+		 */
+		private static long[] readCpu() throws IOException {
+			try (BufferedReader reader = new BufferedReader(new FileReader(STAT))) {
+				String[] fields = reader.readLine().trim().split("\\s+");
+				long total = 0;
+				for (int i = 1; i < fields.length; i++)
+					total += Long.parseLong(fields[i]);
+				// idle and iowait
+				long idle = Long.parseLong(fields[4]) + (fields.length > 5 ? Long.parseLong(fields[5]) : 0);
+				return new long[] { total - idle, total };
+			}
+		}
+
+		private static double readLoad() throws IOException {
+			try (BufferedReader reader = new BufferedReader(new FileReader(LOADAVG))) {
+				return Double.parseDouble(reader.readLine().split("\\s+")[0]);
+			}
+		}
+	}
+}
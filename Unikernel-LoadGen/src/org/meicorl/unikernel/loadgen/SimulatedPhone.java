@@ -0,0 +1,215 @@
+package org.meicorl.unikernel.loadgen;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Random;
+
+/**
+ * A phone that offloads the calls of one workload, the way ExecutionController does:
+ * connect and authenticate, register the apk, then send requests separated by an
+ * exponentially distributed think time until the run is over.
+ *
+ * Every request is timed in phases: "serialise" until the request is written out,
+ * "execute" until the first byte of the answer arrives and "return" until the result
+ * has been read. Sessions are timed in "connect" (including any wait for a free
+ * unikernel) and "apk". The timings the server returns with each result are recorded
+ * as "relay" (in the Scheduler), "worker" (round trip from the Scheduler to the worker)
+ * and "worker-exec".
+ * @author MeiCorl
+ */
+class SimulatedPhone implements Runnable {
+	private final int				id;
+	private final Workload			workload;
+	private final InetSocketAddress	scheduler;
+	private final long				endTime;
+	private final LoadGenerator.Settings settings;
+	private final LatencyRecorder	recorder;
+	private final Random			random;
+	private long					lastRequestId = 0;
+
+	SimulatedPhone(int id, Workload workload, InetSocketAddress scheduler, long endTime,
+				   LoadGenerator.Settings settings, LatencyRecorder recorder) {
+		this.id = id;
+		this.workload = workload;
+		this.scheduler = scheduler;
+		this.endTime = endTime;
+		this.settings = settings;
+		this.recorder = recorder;
+		this.random = new Random(id);
+	}
+
+	@Override
+	public void run() {
+		while (System.currentTimeMillis() < endTime) {
+			try {
+				runSession();
+			} catch (IOException | ClassNotFoundException | ClassCastException e) {
+				LoadGenerator.sessionFailures.incrementAndGet();
+				System.err.println("phone " + id + ": " + e);
+				sleep(1000);
+			}
+		}
+	}
+
+	private void runSession() throws IOException, ClassNotFoundException {
+		long start = System.nanoTime();
+		try (Socket socket = new Socket()) {
+			socket.connect(scheduler, settings.timeout);
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(settings.timeout);
+			OutputStream os = socket.getOutputStream();
+			TimingInputStream is = new TimingInputStream(socket.getInputStream());
+
+			os.write(ControlMessages.PHONE_CONNECTION);
+			ObjectOutputStream oos = new ObjectOutputStream(os);
+			ObjectInputStream ois = new ObjectInputStream(is);
+			os.write(ControlMessages.PHONE_AUTHENTICATION);
+			oos.writeObject("loadgen-" + id);
+			oos.writeObject(Long.valueOf(settings.admissionDeadline));
+			oos.writeObject(workload.appName);
+			oos.writeObject("loadgen");
+			oos.flush();
+			int admission = is.read();
+			if (admission == ControlMessages.RUN_LOCALLY) {
+				long retryAfter = (Long) ois.readObject();
+				LoadGenerator.rejected.incrementAndGet();
+				sleep(Math.max(retryAfter, 100));
+				return;
+			}
+			if (admission != ControlMessages.ADMITTED)
+				throw new IOException("Unexpected admission response " + admission);
+			ois.readObject();	// session token
+			recorder.record("connect", System.nanoTime() - start);
+			LoadGenerator.sessions.incrementAndGet();
+
+			os.write(ControlMessages.PING);
+			if (is.read() != ControlMessages.PONG)
+				throw new IOException("Bad response to ping");
+
+			start = System.nanoTime();
+			os.write(ControlMessages.APK_REGISTER);
+			oos.writeObject(workload.appName);
+			oos.writeObject("loadgen");
+			oos.flush();
+			if (is.read() == ControlMessages.APK_REQUEST) {
+				oos.writeInt(workload.apk.length);
+				oos.write(workload.apk);
+				oos.flush();
+			}
+			recorder.record("apk", System.nanoTime() - start);
+
+			while (true) {
+				sleep(thinkTime());
+				if (System.currentTimeMillis() >= endTime)
+					break;
+				request(os, is, oos, ois);
+			}
+			os.write(ControlMessages.PHONE_DISCONNECTION);
+			os.flush();
+		}
+	}
+
+	private void request(OutputStream os, TimingInputStream is, ObjectOutputStream oos, ObjectInputStream ois)
+			throws IOException, ClassNotFoundException {
+		long start = System.nanoTime();
+		if (workload.file == null) {
+			os.write(ControlMessages.PHONE_COMPUTATION_REQUEST);
+		} else {
+			os.write(ControlMessages.PHONE_COMPUTATION_REQUEST_WITH_FILE);
+			oos.writeObject(workload.file);
+			oos.flush();
+			if (is.read() == ControlMessages.SEND_FILE_REQUEST) {
+				oos.writeInt(workload.fileContent.length);
+				oos.write(workload.fileContent);
+			}
+		}
+		oos.reset();
+		oos.writeObject(Long.valueOf(++lastRequestId));
+		oos.writeObject(workload.className);
+		oos.writeObject(workload.receiver);
+		oos.writeObject(workload.methodName);
+		oos.writeObject(workload.paramTypes);
+		oos.writeObject(workload.paramValues);
+		is.arm();
+		oos.flush();
+		long sent = System.nanoTime();
+
+		String retType = (String) ois.readObject();
+		ois.readObject();	// the JSON of the result
+		long[] timings = (long[]) ois.readObject();
+		long done = System.nanoTime();
+		long firstByte = is.firstByteTime();
+
+		recorder.record("serialise", sent - start);
+		recorder.record("execute", firstByte - sent);
+		recorder.record("return", done - firstByte);
+		recorder.record("total", done - start);
+		recorder.record("total:" + workload.name, done - start);
+		recorder.record("relay", timings[ControlMessages.TIMING_RELAY]);
+		recorder.record("worker", timings[ControlMessages.TIMING_WORKER]);
+		recorder.record("worker-exec", timings[ControlMessages.TIMING_EXECUTE]);
+		if (retType == null)
+			LoadGenerator.failed.incrementAndGet();
+		else
+			LoadGenerator.completed.incrementAndGet();
+	}
+
+	private long thinkTime() {
+		return Math.round(-settings.thinkTime * Math.log(1 - random.nextDouble()));
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Notes when the first byte arrives after {@link #arm()}.
+	 */
+	private static class TimingInputStream extends FilterInputStream {
+		private boolean armed = false;
+		private long    firstByte;
+
+		TimingInputStream(InputStream in) {
+			super(in);
+		}
+
+		void arm() {
+			armed = true;
+		}
+
+		long firstByteTime() {
+			return firstByte;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			arrived();
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			arrived();
+			return n;
+		}
+
+		private void arrived() {
+			if (armed) {
+				firstByte = System.nanoTime();
+				armed = false;
+			}
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package org.meicorl.unikernel.loadgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * One kind of offloaded call, as an ExecutionController would send it: the app and its apk,
+ * the receiver class and its JSON state, the method, its parameter types and the JSON array
+ * of its parameter values. Optionally a file that is sent along with the call.
+ *
+ * Workloads are read from the properties "workload.&lt;name&gt;.*"; "weight" sets how many
+ * of the simulated phones run it relative to the other workloads.
+ * @author MeiCorl
+ */
+class Workload {
+	final String   name;
+	final String   appName;
+	final byte[]   apk;
+	final String   className;
+	final String   receiver;
+	final String   methodName;
+	final String[] paramTypes;
+	final String   paramValues;
+	final String   file;
+	final byte[]   fileContent;
+	final int      weight;
+
+	private Workload(String name, Properties props) throws IOException {
+		String prefix = "workload." + name + ".";
+		this.name = name;
+		this.appName = required(props, prefix + "app");
+		this.apk = Files.readAllBytes(new File(required(props, prefix + "apk")).toPath());
+		this.className = required(props, prefix + "class");
+		this.receiver = props.getProperty(prefix + "receiver", "{}");
+		this.methodName = required(props, prefix + "method");
+		String types = props.getProperty(prefix + "types", "").trim();
+		this.paramTypes = types.isEmpty() ? new String[0] : types.split("\\s*,\\s*");
+		this.paramValues = props.getProperty(prefix + "params", "[]");
+		this.file = props.getProperty(prefix + "file");
+		this.fileContent = file == null ? null : Files.readAllBytes(new File(file).toPath());
+		this.weight = Integer.parseInt(props.getProperty(prefix + "weight", "1"));
+	}
+
+	/**
+	 * @return the workloads listed in "workloads", comma separated
+	 */
+	static List<Workload> load(Properties props) throws IOException {
+		List<Workload> workloads = new ArrayList<>();
+		for (String name : required(props, "workloads").split("\\s*,\\s*"))
+			workloads.add(new Workload(name, props));
+		return workloads;
+	}
+
+	/**
+	 * @return the workload of the given phone, so that the phones are spread by weight
+	 */
+	static Workload forPhone(List<Workload> workloads, int phone) {
+		int total = 0;
+		for (Workload w : workloads)
+			total += w.weight;
+		int slot = phone % total;
+		for (Workload w : workloads) {
+			slot -= w.weight;
+			if (slot < 0)
+				return w;
+		}
+		return workloads.get(0);
+	}
+
+	private static String required(Properties props, String key) {
+		String value = props.getProperty(key);
+		if (value == null)
+			throw new IllegalArgumentException("Missing property " + key);
+		return value.trim();
+	}
+}
@@ -0,0 +1,472 @@
+package org.meicorl.unikernel.Scheduler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.meicorl.unikernel.common.AsyncLog;
+
+/**
+ * Admission of new phone sessions.
+ *
+ * A phone authenticates with its id and the longest time it is willing to wait for a
+ * unikernel. If one is free the session starts right away. Otherwise the phone waits in
+ * a bounded queue, unless the estimated wait already exceeds its deadline, in which case
+ * it is told to run locally at once. Waiting phones are served round-robin by phone id,
+ * so one phone opening many sessions cannot starve the others, and a phone that is
+ * still waiting when its deadline passes is told to run locally as well.
+ *
+ * The phone also names the app (package and apk version) it is about to offload. A
+ * worker parked warm for that app in the WarmPool is preferred over a cold unikernel,
+ * and when neither is free a worker parked for another app is powered off to make room.
+ * The queue capacity is set with -Dscheduler.queue.capacity.
+ * @author MeiCorl
+ */
+class AdmissionQueue {
+	private static final int    CAPACITY     = Integer.getInteger("scheduler.queue.capacity", 64);
+	// no phone keeps a queue slot longer than this
+	private static final long   MAX_DEADLINE = 60000;
+	private static final double EWMA_WEIGHT  = 0.2;
+	// nodes tried for one session before giving up
+	private static final int    BOOT_ATTEMPTS = 3;
+
+	private static class Waiter {
+		final String				phoneID;
+		final String				appKey;		// the app the phone offloads, null if not known
+		final Socket				socket;
+		final InputStream			is;
+		final OutputStream			os;
+		final ObjectInputStream		ois;
+		final ObjectOutputStream	oos;
+		final long					enqueued = System.currentTimeMillis();
+		ScheduledFuture<?>			timeout;
+		// where the unikernel of the session came from, so that it can go back there
+		boolean						warm;		// taken from the WarmPool
+		String						parkedKey;	// the key it was parked under, null for a spare
+
+		Waiter(String phoneID, String appKey, Socket socket, InputStream is, OutputStream os,
+			   ObjectInputStream ois, ObjectOutputStream oos) {
+			this.phoneID = phoneID;
+			this.appKey = appKey;
+			this.socket = socket;
+			this.is = is;
+			this.os = os;
+			this.ois = ois;
+			this.oos = oos;
+		}
+	}
+
+	// waiting phones in round-robin order, each with its own FIFO of sessions
+	private static final LinkedHashMap<String, ArrayDeque<Waiter>> queues = new LinkedHashMap<>();
+	private static int depth = 0;
+	// parked workers powered off for waiting phones that have not come back to the pool yet
+	private static int evicting = 0;
+
+	// dispatches freed unikernels and expires waiters, one thing at a time
+	private static final ScheduledExecutorService dispatcher = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "admission");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	// metrics
+	private static long   admittedAtOnce = 0;
+	private static long   admittedAfterWait = 0;
+	private static long   rejected = 0;
+	private static long   timedOut = 0;
+	private static int    maxDepth = 0;
+	private static long   maxWait = 0;
+	private static double ewmaWait = 0;
+	private static double ewmaReleaseInterval = 0;
+	private static long   lastRelease = 0;
+
+	private AdmissionQueue() {
+	}
+
+	/**
+	 * Authenticate a new phone connection and start its session as soon as a unikernel
+	 * is free. The handshake runs in its own thread so that a slow phone does not hold
+	 * up the Scheduler.
+	 * @param ois the object streams of the connection, or null if not created yet
+	 */
+	static void admit(final Socket socket, final InputStream is, final OutputStream os,
+					  final ObjectInputStream ois, final ObjectOutputStream oos) {
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					handshake(socket, is, os, ois, oos);
+				} catch (IOException | ClassNotFoundException | ClassCastException e) {
+					AsyncLog.info("Admission handshake failed: %s", e.getMessage());
+					closeQuietly(socket);
+				}
+			}
+		}.start();
+	}
+
+	/**
+	 * A unikernel went back to the pool, hand it to the next waiting phone.
+	 */
+	static void workerReleased() {
+		synchronized (AdmissionQueue.class) {
+			long now = System.currentTimeMillis();
+			if (lastRelease > 0)
+				ewmaReleaseInterval = ewma(ewmaReleaseInterval, now - lastRelease);
+			lastRelease = now;
+		}
+		dispatcher.execute(new Runnable() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		});
+	}
+
+	/**
+	 * A worker has been parked warm, a waiting phone may take it or have it evicted.
+	 */
+	static void workerParked() {
+		dispatcher.execute(new Runnable() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		});
+	}
+
+	/**
+	 * @return true if phones are waiting for a unikernel
+	 */
+	static synchronized boolean hasWaiters() {
+		return depth > 0;
+	}
+
+	static synchronized String stats() {
+		return "admission queue: " + depth + " waiting (max " + maxDepth + ", capacity " + CAPACITY + ") from "
+				+ queues.size() + " phones\n"
+				+ "admitted: " + admittedAtOnce + " at once, " + admittedAfterWait + " after waiting\n"
+				+ "run locally: " + rejected + " rejected, " + timedOut + " timed out\n"
+				+ "wait: " + Math.round(ewmaWait) + " ms average, " + maxWait + " ms max, "
+				+ "unikernel released every " + Math.round(ewmaReleaseInterval) + " ms";
+	}
+
+	private static void handshake(Socket socket, InputStream is, OutputStream os,
+								  ObjectInputStream ois, ObjectOutputStream oos)
+			throws IOException, ClassNotFoundException {
+		if (ois == null)
+			ois = new ObjectInputStream(is);
+		if (oos == null)
+			oos = new ObjectOutputStream(os);
+		if (is.read() != ControlMessages.PHONE_AUTHENTICATION) {
+			AsyncLog.warn("Phone did not authenticate!");
+			closeQuietly(socket);
+			return;
+		}
+		// Read the ID of the requesting phone and how long it may wait for a unikernel
+		String phoneID = (String) ois.readObject();
+		long deadline = Math.min((Long) ois.readObject(), MAX_DEADLINE);
+		// and the app it is going to offload
+		String packageName = (String) ois.readObject();
+		String apkVersion = (String) ois.readObject();
+		String appKey = packageName == null ? null : WarmPool.key(packageName, apkVersion);
+		final Waiter w = new Waiter(phoneID, appKey, socket, is, os, ois, oos);
+		PoolController.arrival(appKey);
+
+		Unikernel vm = null;
+		long estimate = 0;
+		boolean queued = false;
+		boolean evict = false;
+		long start = System.nanoTime();
+		synchronized (AdmissionQueue.class) {
+			// phones already waiting go first
+			if (depth == 0)
+				vm = acquire(w);
+			if (vm != null) {
+				admittedAtOnce++;
+				SchedulerMetrics.ACQUIRE.recordSince(start);
+			} else {
+				estimate = estimateWait(phoneID);
+				// a parked worker is freed right away for the first phone in the queue
+				evict = depth == 0 && WarmPool.evictable();
+				if (depth < CAPACITY && (estimate <= deadline || evict)) {
+					enqueue(w);
+					w.timeout = dispatcher.schedule(new Runnable() {
+						@Override
+						public void run() {
+							expire(w);
+						}
+					}, deadline, TimeUnit.MILLISECONDS);
+					queued = true;
+				} else {
+					rejected++;
+				}
+			}
+		}
+
+		if (vm != null) {
+			startSession(w, vm);
+		} else if (queued) {
+			AsyncLog.info("No unikernel available, phone %s is waiting", phoneID);
+			if (evict)
+				evictForWaiter();
+		} else {
+			AsyncLog.info("No unikernel available within %d ms, phone %s runs locally", deadline, phoneID);
+			runLocally(w, Math.max(estimate, deadline));
+		}
+	}
+
+	private static void dispatch() {
+		while (true) {
+			Waiter w;
+			Unikernel vm;
+			synchronized (AdmissionQueue.class) {
+				if (depth == 0)
+					return;
+				vm = acquire(peek());
+				if (vm == null)
+					break;
+				w = next();
+				w.timeout.cancel(false);
+				long waited = System.currentTimeMillis() - w.enqueued;
+				ewmaWait = ewma(ewmaWait, waited);
+				maxWait = Math.max(maxWait, waited);
+				SchedulerMetrics.ACQUIRE.record(TimeUnit.MILLISECONDS.toNanos(waited));
+				admittedAfterWait++;
+			}
+			startSessionLater(w, vm);
+		}
+		// phones are waiting and nothing is free, parked workers have to make room
+		while (evictForWaiter()) {
+			// one more worker on its way back to the pool
+		}
+	}
+
+	/**
+	 * Power off a parked worker to make room for a waiting phone, unless the workers
+	 * evicted so far already cover all waiting phones.
+	 * @return false if no worker was evicted
+	 */
+	private static boolean evictForWaiter() {
+		synchronized (AdmissionQueue.class) {
+			if (evicting >= depth)
+				return false;
+			evicting++;
+		}
+		if (WarmPool.evictOne())
+			return true;
+		synchronized (AdmissionQueue.class) {
+			if (evicting > 0)
+				evicting--;
+		}
+		return false;
+	}
+
+	/**
+	 * @return a worker parked warm for the app of the session, else a spare, else a cold
+	 * 		unikernel, or null if none is free
+	 */
+	private static Unikernel acquire(Waiter w) {
+		Unikernel vm = WarmPool.take(w.appKey);
+		if (vm != null) {
+			w.warm = true;
+			w.parkedKey = w.appKey;
+			return vm;
+		}
+		vm = WarmPool.takeSpare();
+		if (vm != null) {
+			w.warm = true;
+			w.parkedKey = null;
+			return vm;
+		}
+		vm = Scheduler.findAvailableUnikernel();
+		// most likely the worker evicted for this phone
+		if (vm != null && evicting > 0)
+			evicting--;
+		return vm;
+	}
+
+	private static void expire(Waiter w) {
+		synchronized (AdmissionQueue.class) {
+			ArrayDeque<Waiter> queue = queues.get(w.phoneID);
+			if (queue == null || !queue.remove(w))
+				return;	// admitted in the meantime
+			if (queue.isEmpty())
+				queues.remove(w.phoneID);
+			if (--depth == 0)
+				evicting = 0;	// whatever is still being powered off goes back to the pool
+			timedOut++;
+		}
+		AsyncLog.info("Phone %s waited too long, it runs locally", w.phoneID);
+		runLocally(w, Math.round(ewmaReleaseInterval));
+	}
+
+	private static void enqueue(Waiter w) {
+		ArrayDeque<Waiter> queue = queues.get(w.phoneID);
+		if (queue == null) {
+			queue = new ArrayDeque<>();
+			queues.put(w.phoneID, queue);
+		}
+		queue.add(w);
+		depth++;
+		maxDepth = Math.max(maxDepth, depth);
+	}
+
+	/**
+	 * @return the session that {@link #next()} returns
+	 */
+	private static Waiter peek() {
+		return queues.values().iterator().next().peek();
+	}
+
+	/**
+	 * @return the first session of the next phone in turn, the phone moves to the back
+	 */
+	private static Waiter next() {
+		Iterator<Map.Entry<String, ArrayDeque<Waiter>>> it = queues.entrySet().iterator();
+		Map.Entry<String, ArrayDeque<Waiter>> first = it.next();
+		it.remove();
+		ArrayDeque<Waiter> queue = first.getValue();
+		Waiter w = queue.poll();
+		if (!queue.isEmpty())
+			queues.put(first.getKey(), queue);
+		if (--depth == 0)
+			evicting = 0;	// whatever is still being powered off goes back to the pool
+		return w;
+	}
+
+	/**
+	 * Round-robin: a new session of a phone goes after one session of every other waiting
+	 * phone for each session this phone already has in the queue.
+	 * @return the expected wait in milliseconds, 0 while there is nothing to base it on
+	 */
+	private static long estimateWait(String phoneID) {
+		ArrayDeque<Waiter> own = queues.get(phoneID);
+		int others = queues.size() - (own == null ? 0 : 1);
+		int position = ((own == null ? 0 : own.size()) + 1) * (others + 1);
+		return Math.round(position * ewmaReleaseInterval);
+	}
+
+	/**
+	 * Start the session in its own thread, so that a boot does not hold up the dispatcher.
+	 */
+	private static void startSessionLater(final Waiter w, final Unikernel vm) {
+		new Thread("session-start") {
+			@Override
+			public void run() {
+				startSession(w, vm);
+			}
+		}.start();
+	}
+
+	/**
+	 * Boot the unikernel and start the session of the phone on it. If the phone has left
+	 * in the meantime, a worker taken from the WarmPool is parked again and a cold one
+	 * goes back to the pool.
+	 */
+	private static void startSession(Waiter w, Unikernel vm) {
+		Unikernel acquired = vm;
+		boolean running = vm.isRunning();
+		vm = boot(vm);
+		// a parked worker that had stopped came back cold, or was replaced by a cold one
+		if (vm != acquired || !running)
+			w.warm = false;
+		if (vm == null) {
+			AsyncLog.warn("No node could boot a unikernel, phone %s runs locally", w.phoneID);
+			runLocally(w, Math.round(ewmaReleaseInterval));
+			return;
+		}
+		try {
+			w.os.write(ControlMessages.ADMITTED);
+		} catch (IOException e) {
+			AsyncLog.info("Phone %s left before a unikernel was free", w.phoneID);
+			closeQuietly(w.socket);
+			putBack(w, vm);
+			return;
+		}
+		AsyncLog.info("Starting the ClientHandler for phone %s", w.phoneID);
+		SchedulerMetrics.sessions.incrementAndGet();
+		new Thread(new ClientHandler(w.socket, w.is, w.os, w.ois, w.oos, vm, w.phoneID)).start();
+	}
+
+	/**
+	 * Give the unikernel of a session that did not start back to where it came from.
+	 */
+	private static void putBack(Waiter w, Unikernel vm) {
+		if (!w.warm) {
+			vm.shutdown();
+		} else if (w.parkedKey == null) {
+			WarmPool.parkSpare(vm);
+			workerParked();
+		} else if (!WarmPool.park(vm, w.parkedKey)) {
+			vm.shutdown();
+		}
+	}
+
+	/**
+	 * Boot the unikernel unless it is parked warm and still running. If its node fails
+	 * to boot it, fall back to a unikernel on another node.
+	 * @return the running unikernel, or null if no node could boot one
+	 */
+	private static Unikernel boot(Unikernel vm) {
+		for (int attempt = 1; ; attempt++) {
+			if (vm.isRunning()) {
+				SchedulerMetrics.warmStarts.incrementAndGet();
+				return vm;
+			}
+			if (vm.start()) {
+				SchedulerMetrics.coldBoots.incrementAndGet();
+				return vm;
+			}
+			AsyncLog.warn("Node %s failed to boot %s", vm.getHost(), vm.getName());
+			Placement.nodeFailed(vm.getHost());
+			vm.shutdown();
+			if (attempt == BOOT_ATTEMPTS)
+				return null;
+			vm = Scheduler.findAvailableUnikernel();
+			if (vm == null)
+				return null;
+		}
+	}
+
+	/**
+	 * Tell the phone to execute locally, and when it is worth trying again.
+	 */
+	private static void runLocally(Waiter w, long retryAfter) {
+		try {
+			w.os.write(ControlMessages.RUN_LOCALLY);
+			w.oos.writeObject(Long.valueOf(retryAfter));
+			w.oos.flush();
+		} catch (IOException e) {
+			// the phone is gone anyway
+		}
+		closeQuietly(w.socket);
+	}
+
+	private static double ewma(double average, long sample) {
+		return average == 0 ? sample : average * (1 - EWMA_WEIGHT) + sample * EWMA_WEIGHT;
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// the connection is dead anyway
+		}
+	}
+}
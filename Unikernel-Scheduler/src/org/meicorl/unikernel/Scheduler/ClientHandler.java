@@ -3,15 +3,24 @@ package org.meicorl.unikernel.Scheduler;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
 import java.util.HashMap;
 
+import org.meicorl.unikernel.common.AsyncLog;
+
 /**
  * The Server program that runs as a unikernel
  * @author MeiCorl
  * @date  2017.05.13
  */
 public class ClientHandler implements Runnable {
-	private final Object mutex = new Object();
+	// how long a session waits for its phone to reconnect after the connection dropped
+	private static final long SESSION_RESUME_TIMEOUT = 30000;
+
+	// opened when the connection to the worker is set up (or has failed)
+	private final CountDownLatch workerConnected = new CountDownLatch(1);
+	private final Object resumeLock = new Object();
 
 	// phone-client connect socket
 	private Socket clientSocket = null;
@@ -21,6 +30,7 @@ public class ClientHandler implements Runnable {
 	private ObjectInputStream ois = null;
 	
 	// unikernel worker connect socket
+	private WorkerConnection		workerConnection = null;
 	private Socket 					conSocket = null;
 	private InputStream				conis = null;
 	private OutputStream			conos = null;
@@ -28,23 +38,43 @@ public class ClientHandler implements Runnable {
 	private ObjectInputStream		conois = null;
 	
 	private String					phoneID = null;
+	private String					sessionToken = null;
+	private boolean					sessionClosed = false;
+
+	// the new connection of a phone resuming this session, handed over by the Scheduler
+	private Socket					pendingSocket = null;
+	private InputStream				pendingIs = null;
+	private OutputStream			pendingOs = null;
+	private ObjectInputStream		pendingOis = null;
+	private ObjectOutputStream		pendingOos = null;
+
 	private String 					appName = null;						// the app name sent by the phone
+	private String					apkVersion = null;					// version of the apk, part of the result cache keys
+	private String					appKey = null;						// the key the worker is parked warm under
+	private boolean					cleanExit = false;					// the phone said goodbye, the worker is fine
+	private boolean					nextCacheable = false;				// the phone marked the next request as cacheable
 	private Unikernel				worker = null;
 
 	private String			        logFileName = null;
 	private FileWriter 			    logFileWriter = null;
 	private String 			        RequestLog = null;
+	private long[]                  timings = null;						// timings of the last request, sent after its result
 	private byte[]                  tempArray = null;
 
-	public ClientHandler(Socket clientSocket, InputStream is, OutputStream os, Unikernel worker) throws IOException {
+	/**
+	 * Serve a phone that has been admitted by the AdmissionQueue.
+	 */
+	public ClientHandler(Socket clientSocket, InputStream is, OutputStream os,
+						 ObjectInputStream ois, ObjectOutputStream oos, Unikernel worker, String phoneID) {
 		this.clientSocket 	= clientSocket;
 		this.is				= is;
 		this.os				= os;
-		this.ois = new ObjectInputStream(is);
-		this.oos = new ObjectOutputStream(os);
+		this.ois = ois;
+		this.oos = oos;
 
 		this.worker         = worker;
-		this.conSocket = new Socket();
+		this.phoneID        = phoneID;
+		this.workerConnection = new WorkerConnection(worker);
 		connectWorker();    // connect to the worker in a new thread.
 
 	 	this.logFileName = ControlMessages.LOG_FILE_PATH + "execrecord.txt";
@@ -63,132 +93,383 @@ public class ClientHandler implements Runnable {
 
 	@Override
 	public void run() {
-		System.out.println("Waiting for commands from the phone...");
+		try {
+			// give the phone a token for resuming the session
+			this.sessionToken = SessionRegistry.register(this);
+			try {
+				oos.writeObject(sessionToken);
+				oos.flush();
+			} catch (IOException e) {
+				AsyncLog.info("Phone %s left before its session started", phoneID);
+				return;
+			}
+			// keep the session (and the worker) as long as the phone comes back after connection drops
+			while (true) {
+				if (!serveClient()) {
+					closeSession();		// no reconnect may slip in once the session is over
+					break;
+				}
+				if (!awaitResume())
+					break;
+				AsyncLog.info("Session %s resumed", sessionToken);
+			}
+		} finally {
+			closeSession();
+			SessionRegistry.unregister(sessionToken);
+			releaseConnection();
+			releaseWorker();
+		}
+	}
+
+	/**
+	 * Serve the commands of the phone on its current connection.
+	 * @return true if the connection to the phone was lost while the session can
+	 * 		still be resumed, false if the session is over
+	 */
+	private boolean serveClient() {
+		AsyncLog.debug("Waiting for commands from the phone...");
 		int command = 0;
 		try{
 			HashMap<String, String> result;
-			while (command != -1)
+			while (true)
 			{
 				command = is.read();
-				System.out.println("Command: " + command);
+				AsyncLog.debug("Command: %d", command);
 				switch(command) {
 				case ControlMessages.CONNECTION_RELEASED:
+					AsyncLog.info("Connection to the phone %s lost!", phoneID);
+					return sessionToken != null;
+
 				case ControlMessages.PHONE_DISCONNECTION:
-					conos.write(ControlMessages.PHONE_DISCONNECTION);
-					System.out.println("Connection has been released!");
-					System.out.println("goodbye! ^-^");
-					return;
-
-				case ControlMessages.PHONE_AUTHENTICATION:
-					// Read the ID of the requesting phone
-					this.phoneID = (String)ois.readObject();
-					break;
-					
+					if (conos != null)
+						conos.write(ControlMessages.PHONE_DISCONNECTION);
+					AsyncLog.info("Connection of phone %s has been released!", phoneID);
+					cleanExit = true;
+					return false;
+
 				case ControlMessages.PING:
-					System.out.println("Reply to PING");
+					AsyncLog.debug("Reply to PING");
 					os.write(ControlMessages.PONG);
 					break;
 					
 				case ControlMessages.APK_REGISTER:
-					String[] fullAppName= ((String)ois.readObject()).split("\\.");
+					String packageName = (String)ois.readObject();
+					String[] fullAppName= packageName.split("\\.");
 					appName = fullAppName[fullAppName.length - 1] + ".apk";
+					apkVersion = (String)ois.readObject();
+					appKey = WarmPool.key(packageName, apkVersion);
 
 					// waiting for the worker be prepaired,and then send apk to worker if neccessary
-					System.out.println("waiting for sending apk!");
-					synchronized(mutex){
-						mutex.wait();
+					AsyncLog.debug("waiting for sending apk!");
+					awaitWorker();
+					long apkStart = System.nanoTime();
+					int res;
+					try {
+						conos.write(ControlMessages.APK_REGISTER);
+						conoos.writeObject(appName);
+						res = conis.read();
+					} catch (IOException e) {
+						throw new WorkerException("Registering the apk on worker " + worker.getIP() + " failed", e);
 					}
-					conos.write(ControlMessages.APK_REGISTER);
-					conoos.writeObject(appName);
-					int res = conis.read();
+					if (res == -1)
+						throw new WorkerException("Worker " + worker.getIP() + " closed the connection");
 					if(res != ControlMessages.APK_PRESENT) {
 						// receive apk
-						System.out.println("request APK :" + appName);
+						AsyncLog.debug("request APK :%s", appName);
 						os.write(ControlMessages.APK_REQUEST);
 						receiveFile(ois, true);
-						System.out.println("received APK");
+						AsyncLog.debug("received APK");
+						cacheApk(appName, tempArray);
 
 						// send apk
-						conoos.writeInt(tempArray.length);
-						conoos.write(tempArray);
-						conoos.flush();
-						System.out.println("Successfully send apk!");
+						try {
+							conoos.writeInt(tempArray.length);
+							conoos.write(tempArray);
+							conoos.flush();
+						} catch (IOException e) {
+							throw new WorkerException("Sending the apk to worker " + worker.getIP() + " failed", e);
+						}
+						AsyncLog.debug("Successfully send apk!");
+					}else if (!filePresent(ControlMessages.APK_CACHE_DIR + appName)) {
+						// the worker has the apk but the Scheduler does not, extra workers may need it
+						AsyncLog.debug("APK present on the worker, fetching a copy of %s", appName);
+						os.write(ControlMessages.APK_REQUEST);
+						receiveFile(ois, true);
+						cacheApk(appName, tempArray);
 					}else{
-						System.out.println("APK present :" + appName);
+						AsyncLog.debug("APK present :%s", appName);
 						os.write(ControlMessages.APK_PRESENT);
 					}
+					SchedulerMetrics.APK.recordSince(apkStart);
 					break;
 					
+				case ControlMessages.PHONE_CACHEABLE:
+					// the result of the next request only depends on its receiver and parameters
+					nextCacheable = true;
+					break;
+
 				case ControlMessages.PHONE_COMPUTATION_REQUEST:	
-					System.out.println("Execute request");
-					conos.write(ControlMessages.PHONE_COMPUTATION_REQUEST);
+					AsyncLog.debug("Execute request");
 					
 					//receive the object from phone-client ois and repost the request to Unikernel server
-					result = receiveAndRepost();
+					result = receiveAndRepost(ControlMessages.PHONE_COMPUTATION_REQUEST, null);
+					long resultStart = System.nanoTime();
 					try {
 						// Send back over the socket connection
-						System.out.println("Sending result back...");
-						System.out.println("Send retType is: " + result.get("retType"));
+						AsyncLog.debug("Sending result back...");
+						AsyncLog.trace("Send retType is: %s", result.get("retType"));
 						this.oos.writeObject(result.get("retType"));
-						System.out.println("Send retVal is: " + result.get("retVal"));
+						AsyncLog.trace("Send retVal is: %s", result.get("retVal"));
 						this.oos.writeObject(result.get("retVal"));
+						this.oos.writeObject(timings);
 						// Clear ObjectOutputCache - Java caching unsuitable
 						// in this case
 						this.oos.flush();
-						System.out.println("Result successfully sent");
+						AsyncLog.debug("Result successfully sent");
 					} catch (IOException e) {
-						System.out.println("Connection failed when sending result back");
+						AsyncLog.warn("Connection failed when sending result back");
 						e.printStackTrace();
-						return;
+						return sessionToken != null;
 					}
-					this.traceLog(this.RequestLog);
+					long resultTime = System.nanoTime() - resultStart;
+					SchedulerMetrics.RESULT.record(resultTime);
+					this.traceLog(this.RequestLog + String.format(" result %.3f", resultTime / 1e6));
 					this.RequestLog = "";
 					break;
 					
 				case ControlMessages.PHONE_COMPUTATION_REQUEST_WITH_FILE:					
-					System.out.println("Execute request with file,The offloading need to send file first");
-					conos.write(ControlMessages.PHONE_COMPUTATION_REQUEST_WITH_FILE);
+					AsyncLog.debug("Execute request with file,The offloading need to send file first");
 					
 					String filePath = (String) ois.readObject();
 					String fileName = filePath.substring(filePath.lastIndexOf("/")+1);
 					filePath = ControlMessages.DIRSERVICE_RESOURCE_DIR+ fileName;
 					//Actually we should always request the file.
-					System.out.println("request File " + filePath);
+					AsyncLog.debug("request File %s", filePath);
 					os.write(ControlMessages.SEND_FILE_REQUEST);
 					// Receive the files from the client
 					receiveFile(ois,false);
 					//send file
-					result = receiveAndRepost();
+					result = receiveAndRepost(ControlMessages.PHONE_COMPUTATION_REQUEST_WITH_FILE, tempArray);
+					resultStart = System.nanoTime();
 					try {
 						// Send back over the socket connection
-						System.out.println("Send result back");
+						AsyncLog.debug("Send result back");
 						this.oos.writeObject(result.get("retType"));
 						this.oos.writeObject(result.get("retVal"));
+						this.oos.writeObject(timings);
 						// Clear ObjectOutputCache - Java caching unsuitable
 						// in this case
 						this.oos.flush();
-						System.out.println("Result successfully sent");
+						AsyncLog.debug("Result successfully sent");
 					} catch (IOException e) {
-						System.out.println("Connection failed when sending result back");
+						AsyncLog.warn("Connection failed when sending result back");
 						e.printStackTrace();
-						return;
+						return sessionToken != null;
 					}
-					this.traceLog(this.RequestLog);
+					resultTime = System.nanoTime() - resultStart;
+					SchedulerMetrics.RESULT.record(resultTime);
+					this.traceLog(this.RequestLog + String.format(" result %.3f", resultTime / 1e6));
 					this.RequestLog = "";
 					break;
+
+				case ControlMessages.PHONE_BATCH_COMPUTATION_REQUEST:
+					AsyncLog.debug("Execute batch request");
+					Object[] batchResult = receiveAndRepostBatch();
+					long batchResultStart = System.nanoTime();
+					try {
+						// all results go back in one response
+						this.oos.writeObject(batchResult[0]);
+						this.oos.writeObject(batchResult[1]);
+						this.oos.flush();
+						SchedulerMetrics.RESULT.recordSince(batchResultStart);
+						AsyncLog.debug("Batch results successfully sent");
+					} catch (IOException e) {
+						AsyncLog.warn("Connection failed when sending result back");
+						e.printStackTrace();
+						return sessionToken != null;
+					}
+					break;
+
+				case ControlMessages.LINKER_STATS:
+					awaitWorker();
+					Object stats;
+					try {
+						conos.write(ControlMessages.LINKER_STATS);
+						conos.flush();
+						stats = conois.readObject();
+					} catch (IOException e) {
+						throw new WorkerException("Reading the statistics of worker " + worker.getIP() + " failed", e);
+					}
+					this.oos.writeObject(stats);
+					this.oos.flush();
+					break;
+
+				case ControlMessages.PHONE_FANOUT_COMPUTATION_REQUEST:
+					AsyncLog.debug("Execute fan-out request");
+					Object className    = ois.readObject();
+					Object objToExecute = ois.readObject();
+					Object methodName   = ois.readObject();
+					Object paramTypes   = ois.readObject();
+					String[] shards     = (String[]) ois.readObject();
+					int maxWorkers      = (Integer) ois.readObject();
+
+					// results are streamed back to the phone by the job as the shards finish
+					FanOutJob job = new FanOutJob(appName, appKey, loadCachedApk(appName), className, objToExecute,
+							methodName, paramTypes, shards, oos);
+					try {
+						awaitWorker();
+					} catch (WorkerException e) {
+						// no shard has run, the phone runs them all itself
+						job.finish();
+						throw e;
+					}
+					long fanOutStart = System.nanoTime();
+					job.run(workerConnection, maxWorkers);
+					SchedulerMetrics.FANOUT.recordSince(fanOutStart);
+					break;
 				}
 			}
+		} catch (WorkerException e) {
+			// the phone is still there and waits for its answer, the session is over
+			e.printStackTrace();
+			answerWorkerFailure(command);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
+			// the connection to the phone is lost, only worth waiting for it if the worker is still there
 			e.printStackTrace();
+			if (sessionToken != null && conSocket != null && conSocket.isConnected() && !conSocket.isClosed())
+				return true;
 		} catch (ClassNotFoundException e){
 			e.printStackTrace();
+		}
+		SchedulerMetrics.sessionFailures.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Wait until the connection to the worker is set up.
+	 * @throws WorkerException if the worker did not start
+	 */
+	private void awaitWorker() throws WorkerException {
+		try {
+			workerConnected.await();
 		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} finally {
-			releaseConnection();
-			shutdownWorker();
+			Thread.currentThread().interrupt();
+			throw new WorkerException("Interrupted while waiting for worker " + worker.getIP(), e);
+		}
+		if (conos == null)
+			throw new WorkerException("Worker " + worker.getIP() + " did not start");
+	}
+
+	/**
+	 * The worker failed while the phone waits for the answer to the command. A request is
+	 * answered with a null result, which makes the phone run it itself. The phone notices
+	 * the failure of the other commands when the session closes its connection.
+	 */
+	private void answerWorkerFailure(int command) {
+		try {
+			switch (command) {
+			case ControlMessages.PHONE_COMPUTATION_REQUEST:
+			case ControlMessages.PHONE_COMPUTATION_REQUEST_WITH_FILE:
+				this.oos.writeObject(null);
+				this.oos.writeObject(null);
+				this.oos.writeObject(new long[ControlMessages.TIMINGS]);
+				break;
+			case ControlMessages.PHONE_BATCH_COMPUTATION_REQUEST:
+				this.oos.writeObject(null);
+				this.oos.writeObject(null);
+				break;
+			default:
+				// the fan-out has sent its failed shards already
+				return;
+			}
+			this.oos.flush();
+		} catch (IOException e) {
+			AsyncLog.warn("Connection failed when sending the failure back");
+		}
+	}
+
+	/**
+	 * Hand a new connection of the phone over to this session. Called by the Scheduler
+	 * when a phone reconnects with the token of this session.
+	 * @return false if the session is already over
+	 */
+	boolean resume(Socket socket, InputStream is, OutputStream os, ObjectInputStream ois, ObjectOutputStream oos) {
+		Socket stale;
+		synchronized (resumeLock) {
+			if (sessionClosed)
+				return false;
+			closeQuietly(pendingSocket);
+			pendingSocket = socket;
+			pendingIs = is;
+			pendingOs = os;
+			pendingOis = ois;
+			pendingOos = oos;
+			stale = clientSocket;
+			resumeLock.notifyAll();
+		}
+		// the handler may still be blocked on the old connection if it has not noticed the drop
+		closeQuietly(stale);
+		return true;
+	}
+
+	/**
+	 * Refuse further reconnects and close a connection that was handed over but
+	 * never picked up by the handler.
+	 */
+	private void closeSession() {
+		synchronized (resumeLock) {
+			sessionClosed = true;
+			closeQuietly(pendingSocket);
+			pendingSocket = null;
+			pendingIs = null;
+			pendingOs = null;
+			pendingOis = null;
+			pendingOos = null;
+		}
+	}
+
+	/**
+	 * Keep the worker while waiting for the phone to reconnect with the session token.
+	 * @return true if the phone is back and the new connection is in place
+	 */
+	private boolean awaitResume() {
+		while (true) {
+			synchronized (resumeLock) {
+				AsyncLog.info("Waiting for the phone to resume session %s", sessionToken);
+				long deadline = System.currentTimeMillis() + SESSION_RESUME_TIMEOUT;
+				long remaining = SESSION_RESUME_TIMEOUT;
+				while (pendingSocket == null && remaining > 0) {
+					try {
+						resumeLock.wait(remaining);
+					} catch (InterruptedException e) {
+						break;
+					}
+					remaining = deadline - System.currentTimeMillis();
+				}
+				if (pendingSocket == null) {
+					AsyncLog.info("Session %s expired", sessionToken);
+					sessionClosed = true;
+					return false;
+				}
+				closeQuietly(clientSocket);
+				clientSocket = pendingSocket;
+				is = pendingIs;
+				os = pendingOs;
+				ois = pendingOis;
+				oos = pendingOos;
+				pendingSocket = null;
+				pendingIs = null;
+				pendingOs = null;
+				pendingOis = null;
+				pendingOos = null;
+			}
+			try {
+				os.write(ControlMessages.SESSION_RESUMED);
+				return true;
+			} catch (IOException e) {
+				// lost again already, keep waiting
+				e.printStackTrace();
+			}
 		}
 	}
 	
@@ -215,60 +496,177 @@ public class ClientHandler implements Runnable {
 		// Get the length of the file receiving
 		int fileLength = objIn.readInt();
 		if(isApk)
-			System.out.println("Read apkLength: " + fileLength);
+			AsyncLog.debug("Read apkLength: %d", fileLength);
 		else
-			System.out.println("Read fileLength: " + fileLength);
+			AsyncLog.debug("Read fileLength: %d", fileLength);
 
 		// read file content
 		tempArray = new byte[fileLength];
 		objIn.readFully(tempArray);
 	}
 
+	/**
+	 * Keep a copy of the apk so that extra workers borrowed by the session can be given it.
+	 */
+	private static void cacheApk(String appName, byte[] apk) {
+		File cacheDir = new File(ControlMessages.APK_CACHE_DIR);
+		if (!cacheDir.exists() && !cacheDir.mkdirs())
+			return;
+		try (FileOutputStream out = new FileOutputStream(new File(cacheDir, appName))) {
+			out.write(apk);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return the cached apk of the application, null if the Scheduler never received it
+	 */
+	private static byte[] loadCachedApk(String appName) {
+		if (appName == null)
+			return null;
+		File apk = new File(ControlMessages.APK_CACHE_DIR, appName);
+		if (!apk.exists())
+			return null;
+		try {
+			return Files.readAllBytes(apk.toPath());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
 	/**
 	 * Reads in the object to execute an operation on, name of the method to be
-	 * executed and repost it
+	 * executed and repost it, unless the result of a cacheable request is known already.
+	 * The timings of the worker, completed with those of the relay, are kept in
+	 * <code>timings</code> for the phone
+	 * @param command the request command for the Unikernel worker
+	 * @param file content of the file sent with the request, or null
+	 * @throws WorkerException if the request could not be relayed to the worker or it did not answer
+	 * @throws IOException if the connection to the phone failed
 	 * @author MeiCorl
 	 */
-	private HashMap<String ,String> receiveAndRepost() {
+	private HashMap<String ,String> receiveAndRepost(int command, byte[] file) throws IOException, ClassNotFoundException {
+		boolean cacheable = nextCacheable;
+		nextCacheable = false;
+		SchedulerMetrics.requests.incrementAndGet();
+		long start = System.nanoTime();
 		// Read the object in for execution
-		try {
-			// receive data from phone
-			System.out.println("Reading data from Phone...");
-			Object className    = ois.readObject();
-			Object objToExecute = ois.readObject();
-			Object methodName   = ois.readObject();
-			Object tempTypes    = ois.readObject();
-			Object pValuestr    = ois.readObject();
+		// receive data from phone
+		AsyncLog.debug("Reading data from Phone...");
+		Object requestId    = ois.readObject();
+		Object className    = ois.readObject();
+		Object objToExecute = ois.readObject();
+		Object methodName   = ois.readObject();
+		Object tempTypes    = ois.readObject();
+		Object pValuestr    = ois.readObject();
+
+		HashMap<String ,String> result = new HashMap<>();
+		String cacheKey = null;
+		if (cacheable) {
+			cacheKey = ResultCache.key(new Object[] { appName, apkVersion, className, methodName,
+					objToExecute, tempTypes, pValuestr }, file);
+			String[] cached = ResultCache.get(cacheKey);
+			if (cached != null) {
+				AsyncLog.debug("Answered %s from the result cache", methodName);
+				result.put("retType", cached[0]);
+				result.put("retVal", cached[1]);
+				timings = new long[ControlMessages.TIMINGS];
+				timings[ControlMessages.TIMING_RELAY] = System.nanoTime() - start;
+				RequestLog = String.format("%d %s %s %s %s.%s cached", System.currentTimeMillis(), phoneID,
+						requestId, appName, className, methodName);
+				return result;
+			}
+		}
 
+		awaitWorker();
+		try {
 			// write to the unikernel server
 			// firstly write the URL of the apk;
 			// unikernel will download the apk through http if necessary
-			System.out.println("Sending data to Unikernel-server...");
+			AsyncLog.debug("Sending data to Unikernel-server...");
+			conos.write(command);
+			// a fresh handle table for every request, or both ends keep every string relayed
+			conoos.reset();
+			conoos.writeObject(requestId);
 			conoos.writeObject(className);
 		 	conoos.writeObject(objToExecute);
 			conoos.writeObject(methodName);
 			conoos.writeObject(tempTypes);
 			conoos.writeObject(pValuestr);
 			conoos.flush();
+			long relayed = System.nanoTime();
 			
 			//waiting to retrieve result from container
-			System.out.println("Reading result from  Unikernel-server...");
-			HashMap<String ,String> result = new HashMap<>();
+			AsyncLog.debug("Reading result from  Unikernel-server...");
 			String retType = (String) conois.readObject();
 			result.put("retType", retType);
 			String response = (String) conois.readObject();
 			result.put("retVal", response);
+			timings = (long[]) conois.readObject();
+			long executed = System.nanoTime();
+			timings[ControlMessages.TIMING_RELAY] = relayed - start;
+			timings[ControlMessages.TIMING_WORKER] = executed - relayed;
+			SchedulerMetrics.RELAY.record(relayed - start);
+			SchedulerMetrics.EXECUTE.record(executed - relayed);
+			if (retType == null)
+				SchedulerMetrics.requestFailures.incrementAndGet();
+			else if (cacheKey != null)
+				ResultCache.put(cacheKey, retType, response);
+			// completed with the time to send the result back, all times in milliseconds
+			RequestLog = String.format("%d %s %s %s %s.%s relay %.3f worker %.3f deserialise %.3f class-load %.3f"
+					+ " execute %.3f serialise %.3f", System.currentTimeMillis(), phoneID, requestId, appName, className,
+					methodName, (relayed - start) / 1e6, (executed - relayed) / 1e6,
+					timings[ControlMessages.TIMING_DESERIALISE] / 1e6, timings[ControlMessages.TIMING_CLASS_LOAD] / 1e6,
+					timings[ControlMessages.TIMING_EXECUTE] / 1e6, timings[ControlMessages.TIMING_SERIALISE] / 1e6);
 			return result;
 		} catch (IOException | ClassNotFoundException e) {
-			// catch and return any exception since we do not know how to handle
-			// them on the server side
-			e.printStackTrace();
-			return null;
+			SchedulerMetrics.requestFailures.incrementAndGet();
+			throw new WorkerException("Relaying the request to worker " + worker.getIP() + " failed", e);
 		}
 	}
 	
 	/**
-	 * try to connect to the Unikernel worker until the worker starts completely.
+	 * Relay a batch of calls on one receiver to the Unikernel worker in a single frame.
+	 * The whole batch is read from the phone first, so that a failing worker leaves the
+	 * stream of the phone in sync.
+	 * @return the return types and the values of all calls
+	 * @throws WorkerException if the batch could not be relayed to the worker or it did not answer
+	 * @throws IOException if the connection to the phone failed
+	 */
+	private Object[] receiveAndRepostBatch() throws IOException, ClassNotFoundException {
+		// receiver class and object, then method names, parameter types and values of each call
+		AsyncLog.debug("Reading batch from Phone...");
+		SchedulerMetrics.requests.incrementAndGet();
+		long start = System.nanoTime();
+		Object[] batch = new Object[5];
+		for (int i = 0; i < batch.length; i++)
+			batch[i] = ois.readObject();
+
+		awaitWorker();
+		try {
+			conos.write(ControlMessages.PHONE_BATCH_COMPUTATION_REQUEST);
+			conoos.reset();
+			for (Object o : batch)
+				conoos.writeObject(o);
+			conoos.flush();
+			long relayed = System.nanoTime();
+			SchedulerMetrics.RELAY.record(relayed - start);
+
+			AsyncLog.debug("Reading batch results from Unikernel-server...");
+			Object retTypes = conois.readObject();
+			Object retVals = conois.readObject();
+			SchedulerMetrics.EXECUTE.recordSince(relayed);
+			return new Object[] { retTypes, retVals };
+		} catch (IOException | ClassNotFoundException e) {
+			SchedulerMetrics.requestFailures.incrementAndGet();
+			throw new WorkerException("Relaying the batch to worker " + worker.getIP() + " failed", e);
+		}
+	}
+
+	/**
+	 * Connect to the Unikernel worker as soon as it has started.
 	 * @author MeiCorl
 	 */
 	public void connectWorker() 
@@ -276,49 +674,20 @@ public class ClientHandler implements Runnable {
 		new Thread(){
 			@Override
 			public void run() {
-				// try to connect to the Unikernel worker
-				InetSocketAddress workerAddr = new InetSocketAddress(worker.getIP(), worker.getPort());
-				while(!conSocket.isConnected())
-				{
-					try {
-						try {
-							Thread.sleep(1000);
-							conSocket.connect(workerAddr, 2000);
-						} catch (ConnectException e) {
-							Thread.sleep(500);
-							System.out.println("Tring to connect to worker...");
-						} catch (NoRouteToHostException e) {
-							Thread.sleep(500);
-							System.out.println("Tring to connect to worker...");
-						} catch (SocketTimeoutException e) {
-							Thread.sleep(500);
-							System.out.println("Tring to connect to worker...");
-						} catch (UnknownHostException e) {
-							Thread.sleep(500);
-							System.out.println("Tring to connect to worker...");
-						} catch (IOException e) {
-							// TODO Auto-generated catch block
-							shutdownWorker();
-							e.printStackTrace();
-							return;
-						}
-					}catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-				}
-				System.out.println("connect to the worker Successfully!");
-			    try {
-					conis = conSocket.getInputStream();
-					conos = conSocket.getOutputStream();
-					conoos = new ObjectOutputStream(conos);
-					conois = new ObjectInputStream(conis);
+				try {
+					workerConnection.open(WorkerConnection.BOOT_TIMEOUT);
+					AsyncLog.info("connect to the worker %s Successfully!", worker.getIP());
+					conSocket = workerConnection.getSocket();
+					conis = workerConnection.getInputStream();
+					conos = workerConnection.getOutputStream();
+					conoos = workerConnection.getObjectOutputStream();
+					conois = workerConnection.getObjectInputStream();
 				} catch (IOException e) {
-					// TODO Auto-generated catch block
 					e.printStackTrace();
+					SchedulerMetrics.sessionFailures.incrementAndGet();
+					shutdownWorker();
 				} finally {
-					synchronized (mutex){
-						mutex.notify();
-					}
+					workerConnected.countDown();
 				}
 			}
 		}.start();
@@ -344,6 +713,29 @@ public class ClientHandler implements Runnable {
 		}
 	}
 	
+	private static void closeQuietly(Socket socket) {
+		if (socket == null)
+			return;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// the connection is dead anyway
+		}
+	}
+
+	/**
+	 * Park the worker warm for the next session of the app if this session ended cleanly
+	 * with the apk loaded, otherwise power it off.
+	 */
+	private void releaseWorker()
+	{
+		if (cleanExit && appKey != null && conSocket != null
+				&& this.worker.getStatus() == ControlMessages.UnikernelStatus_unAvailable
+				&& WarmPool.park(this.worker, appKey))
+			return;
+		shutdownWorker();
+	}
+
 	private void shutdownWorker()
 	{
 		// this the unikernel vm is still running, power it off
@@ -19,13 +19,42 @@ class ControlMessages
     public static final int 	PHONE_CONNECTION 				= 30;
     public static final int 	PHONE_AUTHENTICATION			= 31;
     public static final int     PHONE_DISCONNECTION             = 32;
+    public static final int     PHONE_RECONNECTION              = 33;
+    public static final int     SESSION_RESUMED                 = 34;
+    public static final int     SESSION_UNKNOWN                 = 35;
+    public static final int     ADMITTED                        = 36;
+    public static final int     RUN_LOCALLY                     = 37;
     public static final int     CONNECTION_RELEASED             = -1;
 
     public static final int		PHONE_COMPUTATION_REQUEST		        = 40;
     public static final int		PHONE_COMPUTATION_REQUEST_WITH_FILE		= 41;
     public static final int		SEND_FILE_REQUEST			            = 42;
+    public static final int		PHONE_BATCH_COMPUTATION_REQUEST		    = 43;
+    public static final int		PHONE_FANOUT_COMPUTATION_REQUEST	    = 44;
+    public static final int		PHONE_CACHEABLE		                    = 45;
+
+    // Timings in nanoseconds sent after the result of a computation request. The worker
+    // fills in its phases, the Scheduler the relay and the round trip to the worker.
+    public static final int		TIMING_RELAY		                    = 0;
+    public static final int		TIMING_WORKER		                    = 1;
+    public static final int		TIMING_DESERIALISE	                    = 2;
+    public static final int		TIMING_CLASS_LOAD	                    = 3;
+    public static final int		TIMING_EXECUTE		                    = 4;
+    public static final int		TIMING_SERIALISE	                    = 5;
+    public static final int		TIMINGS				                    = 6;
+
+    // Monitoring
+    public static final int		SCHEDULER_STATS		                    = 60;
+    // Phone -> worker, the translation statistics of its class loader as a String
+    public static final int		LINKER_STATS		                    = 61;
+
+    // Worker -> Scheduler, sent by a DynamicLinker as soon as it listens
+    public static final int		WORKER_READY		                    = 70;
+    // NodeAgent -> Scheduler, the state of a hypervisor node
+    public static final int		NODE_REPORT		                        = 71;
 
     public static final String  IMAGE_HUB                       = "/image_hub/";
     public static final String  DIRSERVICE_RESOURCE_DIR         = "/opt/lampp/htdocs/interpub/resources/";
+    public static final String  APK_CACHE_DIR                   = "/opt/lampp/htdocs/interpub/apks/";
     public static final String  LOG_FILE_PATH                   = "/opt/lampp/htdocs/interpub/ExecRecord/";
 }
@@ -0,0 +1,293 @@
+package org.meicorl.unikernel.Scheduler;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayDeque;
+
+import org.meicorl.unikernel.common.AsyncLog;
+
+/**
+ * Scatter/gather execution of one method over many independent shards of input.
+ *
+ * The shards are spread over the worker of the session and up to maxWorkers - 1
+ * extra unikernels, which join the job as soon as they are up. Workers parked warm
+ * for the app are taken first, then spares, then cold unikernels from the pool, and
+ * the extra workers are parked warm again afterwards. Workers pull shards from a
+ * shared queue; once it is empty, an idle worker runs a backup copy of the oldest
+ * shard still in flight, so that one slow worker cannot hold the whole job up. Results are streamed to the phone as they arrive
+ * (shard index, return type, return value) and the first copy of a shard wins.
+ * A shard index of -1 ends the stream; shards that no worker could execute are
+ * sent back with a null return type.
+ * @author MeiCorl
+ */
+class FanOutJob {
+	// at most this many copies of the same shard run at the same time
+	private static final int  MAX_COPIES = 2;
+
+	private final String				appName;
+	private final String				appKey;
+	private final byte[]				apk;
+	private final Object				className;
+	private final Object				objToExecute;
+	private final Object				methodName;
+	private final Object				paramTypes;
+	private final String[]				shards;
+	private final ObjectOutputStream	phoneOut;
+
+	private final Object				lock = new Object();
+	private final ArrayDeque<Integer>	pending = new ArrayDeque<>();
+	private final boolean[]				done;
+	private final int[]					copies;
+	private final long[]				startTime;
+	private int							remaining;
+	private int							activeWorkers;
+	private boolean						aborted = false;
+
+	/**
+	 * @param appKey the key workers of the application are parked warm under
+	 * @param apk the apk of the application for the extra workers, null if not available
+	 * @param phoneOut the stream the results are sent to
+	 */
+	FanOutJob(String appName, String appKey, byte[] apk, Object className, Object objToExecute, Object methodName,
+			  Object paramTypes, String[] shards, ObjectOutputStream phoneOut) {
+		this.appName = appName;
+		this.appKey = appKey;
+		this.apk = apk;
+		this.className = className;
+		this.objToExecute = objToExecute;
+		this.methodName = methodName;
+		this.paramTypes = paramTypes;
+		this.shards = shards;
+		this.phoneOut = phoneOut;
+		this.done = new boolean[shards.length];
+		this.copies = new int[shards.length];
+		this.startTime = new long[shards.length];
+		this.remaining = shards.length;
+		for (int i = 0; i < shards.length; i++)
+			pending.add(i);
+	}
+
+	/**
+	 * Run the job to completion.
+	 * @param primary the worker of the session, used on the calling thread
+	 * @param maxWorkers the number of workers the phone asked for, including the primary one
+	 * @throws WorkerException if the primary worker went away, the phone has its results
+	 * @throws IOException if the phone went away
+	 */
+	void run(WorkerConnection primary, int maxWorkers) throws IOException {
+		int helpers = Math.max(0, Math.min(maxWorkers, shards.length) - 1);
+		AsyncLog.info("Fan-out of %d shards over up to %d workers", shards.length, helpers + 1);
+		synchronized (lock) {
+			activeWorkers = helpers + 1;
+		}
+		for (int i = 0; i < helpers; i++) {
+			new Thread() {
+				@Override
+				public void run() {
+					runHelper();
+				}
+			}.start();
+		}
+
+		WorkerException primaryFailure = null;
+		try {
+			runWorker(primary);
+		} catch (IOException | ClassNotFoundException e) {
+			primaryFailure = new WorkerException("Worker " + primary.getWorker().getIP() + " failed during the fan-out", e);
+		} finally {
+			workerGone();
+		}
+
+		// the primary worker may have failed while helpers are still busy
+		synchronized (lock) {
+			while (remaining > 0 && activeWorkers > 0 && !aborted) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			aborted = true;
+			lock.notifyAll();
+		}
+
+		finish();
+		AsyncLog.info("Fan-out finished");
+		if (primaryFailure != null)
+			throw primaryFailure;
+	}
+
+	/**
+	 * Send the shards without a result back with a null return type, so that the phone
+	 * runs them itself, and end the stream. Also called instead of {@link #run} if the
+	 * worker of the session never came up.
+	 * @throws IOException if the phone went away
+	 */
+	void finish() throws IOException {
+		for (int i = 0; i < shards.length; i++) {
+			if (!done[i])
+				sendResult(i, null, null);
+		}
+		synchronized (phoneOut) {
+			phoneOut.writeObject(Integer.valueOf(-1));
+			phoneOut.flush();
+		}
+	}
+
+	/**
+	 * Take a worker, boot it unless it is still running and let it help with the job.
+	 */
+	private void runHelper() {
+		// phones waiting for their first unikernel go before extra workers for this job
+		Unikernel vm = AdmissionQueue.hasWaiters() ? null : acquire();
+		if (vm == null) {
+			AsyncLog.info("No unikernel available to help with the fan-out");
+			workerGone();
+			return;
+		}
+		WorkerConnection conn = new WorkerConnection(vm);
+		String parkKey = null;
+		try {
+			if (!vm.isRunning() && !vm.start()) {
+				Placement.nodeFailed(vm.getHost());
+				throw new IOException("Node " + vm.getHost() + " failed to boot " + vm.getName());
+			}
+			conn.open(WorkerConnection.BOOT_TIMEOUT);
+			if (!conn.registerApk(appName, apk)) {
+				AsyncLog.warn("No apk of %s for the extra worker %s", appName, vm.getIP());
+				return;
+			}
+			parkKey = appKey;
+			if (!isFinished())
+				runWorker(conn);
+		} catch (IOException | ClassNotFoundException e) {
+			parkKey = null;
+			e.printStackTrace();
+		} finally {
+			conn.release(parkKey);
+			workerGone();
+		}
+	}
+
+	/**
+	 * @return a worker parked warm for the app, else a spare, else a cold unikernel,
+	 * 		or null if none is free
+	 */
+	private Unikernel acquire() {
+		Unikernel vm = WarmPool.take(appKey);
+		if (vm == null)
+			vm = WarmPool.takeSpare();
+		if (vm == null)
+			vm = Scheduler.findAvailableUnikernel();
+		return vm;
+	}
+
+	private void runWorker(WorkerConnection conn) throws IOException, ClassNotFoundException {
+		int shard;
+		while ((shard = nextShard()) >= 0) {
+			String[] result;
+			try {
+				result = conn.execute("shard-" + shard, className, objToExecute, methodName, paramTypes, shards[shard]);
+			} catch (IOException | ClassNotFoundException e) {
+				giveBack(shard);
+				throw e;
+			}
+			if (complete(shard))
+				sendResult(shard, result[0], result[1]);
+		}
+	}
+
+	/**
+	 * @return the next shard for an idle worker, or -1 if the job is over
+	 */
+	private int nextShard() {
+		synchronized (lock) {
+			while (true) {
+				if (remaining == 0 || aborted)
+					return -1;
+				Integer next;
+				while ((next = pending.poll()) != null) {
+					if (!done[next]) {
+						if (copies[next]++ == 0)
+							startTime[next] = System.nanoTime();
+						return next;
+					}
+				}
+				// nothing left to hand out, back up the oldest straggler
+				int oldest = -1;
+				for (int i = 0; i < shards.length; i++) {
+					if (!done[i] && copies[i] > 0 && copies[i] < MAX_COPIES
+							&& (oldest < 0 || startTime[i] < startTime[oldest]))
+						oldest = i;
+				}
+				if (oldest >= 0) {
+					copies[oldest]++;
+					AsyncLog.info("Running a backup copy of shard %d", oldest);
+					return oldest;
+				}
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					return -1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if this is the first result of the shard
+	 */
+	private boolean complete(int shard) {
+		synchronized (lock) {
+			copies[shard]--;
+			if (done[shard])
+				return false;
+			done[shard] = true;
+			remaining--;
+			lock.notifyAll();
+			return true;
+		}
+	}
+
+	/**
+	 * A worker failed while executing the shard, let another one take it.
+	 */
+	private void giveBack(int shard) {
+		synchronized (lock) {
+			copies[shard]--;
+			if (!done[shard] && copies[shard] == 0)
+				pending.addFirst(shard);
+			lock.notifyAll();
+		}
+	}
+
+	private void workerGone() {
+		synchronized (lock) {
+			activeWorkers--;
+			lock.notifyAll();
+		}
+	}
+
+	private boolean isFinished() {
+		synchronized (lock) {
+			return remaining == 0 || aborted;
+		}
+	}
+
+	private void sendResult(int shard, String retType, String retVal) {
+		synchronized (phoneOut) {
+			try {
+				phoneOut.writeObject(Integer.valueOf(shard));
+				phoneOut.writeObject(retType);
+				phoneOut.writeObject(retVal);
+				phoneOut.flush();
+			} catch (IOException e) {
+				AsyncLog.warn("Connection failed when sending result back");
+				synchronized (lock) {
+					aborted = true;
+					lock.notifyAll();
+				}
+			}
+		}
+	}
+}
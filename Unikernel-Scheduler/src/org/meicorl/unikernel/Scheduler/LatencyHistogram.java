@@ -0,0 +1,78 @@
+package org.meicorl.unikernel.Scheduler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power-of-two buckets of microseconds, cheap enough to
+ * be updated by every session thread on every request. Percentiles are reported as the
+ * upper bound of their bucket, i.e. at most a factor two above the real value.
+ * @author MeiCorl
+ */
+class LatencyHistogram {
+	private static final int BUCKETS = 64;
+
+	private final String          name;
+	// bucket i holds the durations of [2^(i-1), 2^i) microseconds
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong      count   = new AtomicLong();
+	private final AtomicLong      sum     = new AtomicLong();
+	private final AtomicLong      max     = new AtomicLong();
+
+	LatencyHistogram(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @param nanos the duration to record
+	 */
+	void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(micros));
+		count.incrementAndGet();
+		sum.addAndGet(micros);
+		long current;
+		while (micros > (current = max.get()) && !max.compareAndSet(current, micros)) {
+			// lost a race with another thread, try again
+		}
+	}
+
+	/**
+	 * Record the time elapsed since <code>startNanos</code>.
+	 */
+	void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @return count, mean, p50, p99, p999 and max in milliseconds
+	 */
+	String report() {
+		long n = count.get();
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			snapshot[i] = buckets.get(i);
+		double maxMillis = max.get() / 1000.0;
+		return String.format("%-10s %8d %9.2f %9.2f %9.2f %9.2f %9.2f", name, n,
+				n == 0 ? 0.0 : sum.get() / 1000.0 / n, Math.min(percentile(snapshot, n, 0.5), maxMillis),
+				Math.min(percentile(snapshot, n, 0.99), maxMillis), Math.min(percentile(snapshot, n, 0.999), maxMillis),
+				maxMillis);
+	}
+
+	static String header() {
+		return String.format("%-10s %8s %9s %9s %9s %9s %9s", "phase", "count", "mean", "p50", "p99", "p999", "max");
+	}
+
+	private static double percentile(long[] snapshot, long n, double p) {
+		if (n == 0)
+			return 0;
+		long rank = (long) Math.ceil(p * n);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return i == 0 ? 0 : Math.scalb(1.0, i) / 1000.0;
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,93 @@
+package org.meicorl.unikernel.Scheduler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.meicorl.unikernel.common.AsyncLog;
+
+/**
+ * Runs the unikernels as libvirt domains named after the unikernel. Unikernels on other
+ * hypervisor nodes are managed through the libvirt URI of their node, by default
+ * qemu+ssh://&lt;host&gt;/system; -Dscheduler.libvirt.uri sets another pattern, with %s
+ * for the host column of the unikernel.
+ *
+ * The output of virsh is read and logged, and every virsh process is waited for.
+ * @author MeiCorl
+ */
+class LibvirtDriver implements UnikernelDriver {
+	private static final String URI = System.getProperty("scheduler.libvirt.uri", "qemu+ssh://%s/system");
+
+	@Override
+	public boolean start(Unikernel unikernel) {
+		/** 'startvm' is script to setup an unikernel server */
+		//executeCommand("startvm " + ControlMessages.IMAGE_HUB + unikernel.getName() + ".img");
+		// virsh returns once the domain runs, or fails if the node cannot start it
+		return virsh(unikernel.getHost(), "start " + unikernel.getName()) == 0;
+	}
+
+	/**
+	 * One virsh per node destroys all its domains of the batch. If one of them fails,
+	 * e.g. because it never started, the others are destroyed one by one.
+	 */
+	@Override
+	public void stop(Collection<Unikernel> unikernels) {
+		Map<String, List<String>> byHost = new LinkedHashMap<>();
+		for (Unikernel unikernel : unikernels) {
+			List<String> names = byHost.get(unikernel.getHost());
+			if (names == null) {
+				names = new ArrayList<>();
+				byHost.put(unikernel.getHost(), names);
+			}
+			names.add(unikernel.getName());
+		}
+		for (Map.Entry<String, List<String>> host : byHost.entrySet()) {
+			StringBuilder commands = new StringBuilder();
+			for (String name : host.getValue()) {
+				if (commands.length() > 0)
+					commands.append("; ");
+				commands.append("destroy ").append(name);
+			}
+			if (virsh(host.getKey(), commands.toString()) != 0 && host.getValue().size() > 1) {
+				for (String name : host.getValue())
+					virsh(host.getKey(), "destroy " + name);
+			}
+		}
+	}
+
+	/**
+	 * @param commands virsh commands separated by ';'
+	 * @return the exit code of virsh, -1 if it could not be run
+	 */
+	private int virsh(String host, String commands) {
+		List<String> args = new ArrayList<>();
+		args.add("virsh");
+		if (!host.isEmpty()) {
+			args.add("-c");
+			args.add(String.format(URI, host));
+		}
+		args.add(commands);
+		try {
+			Process process = new ProcessBuilder(args).redirectErrorStream(true).start();
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (!line.isEmpty())
+						AsyncLog.debug("virsh %s: %s", host, line);
+				}
+			}
+			return process.waitFor();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return -1;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return -1;
+		}
+	}
+}
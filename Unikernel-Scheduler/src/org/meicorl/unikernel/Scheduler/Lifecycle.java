@@ -0,0 +1,126 @@
+package org.meicorl.unikernel.Scheduler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.meicorl.unikernel.common.AsyncLog;
+
+/**
+ * Runs the operations on the unikernels (boots and power-offs through the driver, and
+ * giving them back to the pool in the database) off the session threads.
+ *
+ * Power-offs are queued and return at once. A burst of them, collected for
+ * -Dscheduler.lifecycle.coalesce milliseconds (default 20), is handed to the driver in
+ * one go, e.g. one virsh process per node, and given back to the pool with a single
+ * database update. Boots run on the same threads, bounded by
+ * -Dscheduler.lifecycle.threads (default 4); the caller waits for the result because
+ * it falls back to another node if the boot fails.
+ * @author MeiCorl
+ */
+class Lifecycle {
+	private static final long COALESCE = Long.getLong("scheduler.lifecycle.coalesce", 20);
+	private static final int  THREADS  = Integer.getInteger("scheduler.lifecycle.threads", 4);
+
+	private static final ScheduledExecutorService executor = Executors.newScheduledThreadPool(THREADS,
+			new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "lifecycle-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	// power-offs waiting for the next batch
+	private static List<Unikernel> pending = new ArrayList<>();
+	private static boolean         flushScheduled = false;
+
+	// metrics
+	private static long destroys = 0;
+	private static long batches = 0;
+	private static int  maxBatch = 0;
+
+	private Lifecycle() {
+	}
+
+	/**
+	 * Boot the unikernel and wait until the driver has started it.
+	 * @return false if its node refused to boot it
+	 */
+	static boolean start(final UnikernelDriver driver, final Unikernel vm) {
+		try {
+			return executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					long start = System.nanoTime();
+					boolean started = driver.start(vm);
+					SchedulerMetrics.VM_START.recordSince(start);
+					return started;
+				}
+			}).get();
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Power the unikernel off and give it back to the pool, in the background.
+	 */
+	static synchronized void destroy(final UnikernelDriver driver, Unikernel vm) {
+		pending.add(vm);
+		if (flushScheduled)
+			return;
+		flushScheduled = true;
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				flush(driver);
+			}
+		}, COALESCE, TimeUnit.MILLISECONDS);
+	}
+
+	static synchronized String stats() {
+		return "lifecycle: " + destroys + " power-offs in " + batches + " batches (max " + maxBatch + "), "
+				+ pending.size() + " pending";
+	}
+
+	private static void flush(UnikernelDriver driver) {
+		List<Unikernel> batch;
+		synchronized (Lifecycle.class) {
+			batch = pending;
+			pending = new ArrayList<>();
+			flushScheduled = false;
+			destroys += batch.size();
+			batches++;
+			maxBatch = Math.max(maxBatch, batch.size());
+		}
+		long start = System.nanoTime();
+		try {
+			driver.stop(batch);
+		} catch (RuntimeException e) {
+			// the unikernels go back to the pool anyway, the next boot resets them
+			e.printStackTrace();
+		}
+		long stopped = System.nanoTime();
+		SchedulerMetrics.VM_DESTROY.record(stopped - start);
+
+		Scheduler.releaseUnikernels(batch);
+		SchedulerMetrics.DB_RELEASE.recordSince(stopped);
+		AsyncLog.debug("Powered off %d unikernels", batch.size());
+		for (int i = 0; i < batch.size(); i++)
+			AdmissionQueue.workerReleased();
+	}
+}
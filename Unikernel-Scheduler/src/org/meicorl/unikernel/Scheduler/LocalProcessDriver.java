@@ -0,0 +1,125 @@
+package org.meicorl.unikernel.Scheduler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs every "unikernel" as a DynamicLinker JVM on this host, so that the scheduling
+ * path can be measured without KVM and libvirt. The unikernels table then lists
+ * loopback workers with their own ports, e.g. ('local1', 0, '127.0.0.1:7001').
+ *
+ * Options:
+ *   -Dlinker.classpath         classpath of Unikernel-Server and its libraries (required)
+ *   -Dlinker.libdroid          the Libdroid jar given to the linkers
+ *   -Dscheduler.local.boot.delay  simulated boot latency in milliseconds (default 0)
+ *   -Dscheduler.local.workdir  where the linkers keep their apks and logs
+ * @author MeiCorl
+ */
+class LocalProcessDriver implements UnikernelDriver {
+	private static final long   BOOT_DELAY = Long.getLong("scheduler.local.boot.delay", 0);
+	private static final String CLASSPATH  = System.getProperty("linker.classpath");
+	private static final String LIBDROID   = System.getProperty("linker.libdroid");
+	private static final File   WORKDIR    = new File(System.getProperty("scheduler.local.workdir",
+			new File(System.getProperty("java.io.tmpdir"), "unikernels").getPath()));
+	private static final String JAVA       = System.getProperty("java.home") + File.separator + "bin"
+			+ File.separator + "java";
+
+	private final Map<String, Process>            processes = new HashMap<>();
+	private final Map<String, ScheduledFuture<?>> booting   = new HashMap<>();
+	private final ScheduledExecutorService        bootTimer = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "local-boot");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	LocalProcessDriver() {
+		if (CLASSPATH == null)
+			throw new IllegalStateException("The local driver needs -Dlinker.classpath");
+	}
+
+	@Override
+	public boolean start(final Unikernel unikernel) {
+		synchronized (this) {
+			booting.put(unikernel.getName(), bootTimer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					launch(unikernel);
+				}
+			}, BOOT_DELAY, TimeUnit.MILLISECONDS));
+		}
+		return true;
+	}
+
+	@Override
+	public void stop(Collection<Unikernel> unikernels) {
+		List<Process> stopped = new ArrayList<>();
+		synchronized (this) {
+			for (Unikernel unikernel : unikernels) {
+				ScheduledFuture<?> boot = booting.remove(unikernel.getName());
+				if (boot != null)
+					boot.cancel(false);
+				Process process = processes.remove(unikernel.getName());
+				if (process != null) {
+					process.destroy();
+					stopped.add(process);
+				}
+			}
+		}
+		// reap them, the next boot of a unikernel must not find its port still taken
+		for (Process process : stopped) {
+			try {
+				process.waitFor();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private void launch(Unikernel unikernel) {
+		File home = new File(WORKDIR, unikernel.getName());
+		File apkDir = new File(home, "apks");
+		apkDir.mkdirs();
+
+		List<String> command = new ArrayList<>();
+		command.add(JAVA);
+		command.add("-Dlinker.port=" + unikernel.getPort());
+		command.add("-Dlinker.apk.dir=" + apkDir.getPath() + File.separator);
+		command.add("-Dlinker.ready.address=127.0.0.1:" + Scheduler.ReadyPort);
+		command.add("-Dlinker.address=" + unikernel.getIP());
+		if (LIBDROID != null)
+			command.add("-Dlinker.libdroid=" + LIBDROID);
+		command.add("-cp");
+		command.add(CLASSPATH);
+		command.add("org.meicorl.unikernel.worker.DynamicLinker");
+
+		synchronized (this) {
+			// stopped while it was booting
+			if (booting.remove(unikernel.getName()) == null)
+				return;
+			try {
+				Process process = new ProcessBuilder(command)
+						.redirectErrorStream(true)
+						.redirectOutput(new File(home, "linker.log"))
+						.start();
+				processes.put(unikernel.getName(), process);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
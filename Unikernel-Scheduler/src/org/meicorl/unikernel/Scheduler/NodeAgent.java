@@ -0,0 +1,162 @@
+package org.meicorl.unikernel.Scheduler;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.meicorl.unikernel.common.AsyncLog;
+
+/**
+ * Runs on every hypervisor node and reports the state of the node to the Scheduler,
+ * which places new unikernels by it (see Placement). Every report is a connection to the
+ * ReadinessListener of the Scheduler sending NODE_REPORT, the node name, its cores, free
+ * cores, free memory in MB and the number of booted unikernels.
+ *
+ * The agent also relays the WORKER_READY announcements of the unikernels of its node to the
+ * Scheduler. The unikernels then only need to reach their own node, e.g. through the gateway
+ * of the default libvirt network, wherever the Scheduler runs.
+ *
+ * Usage: java -cp Unikernel-Scheduler.jar org.meicorl.unikernel.Scheduler.NodeAgent
+ * Options:
+ *   -Dagent.scheduler  host:port of the Scheduler's readiness listener (default 127.0.0.1:6036)
+ *   -Dagent.name       the node name, as in the host column of the unikernels table
+ *                      (default the host name)
+ *   -Dagent.interval   milliseconds between reports (default 2000)
+ *   -Dagent.vms        command listing the booted unikernels one per line
+ *                      (default "virsh list --name")
+ *   -Dagent.relay      port the unikernels of the node announce their readiness to
+ *                      (default 6036, 0 turns relaying off)
+ *   -Dagent.log.level  trace, debug, info or warn (default info)
+ * @author MeiCorl
+ */
+public class NodeAgent {
+	private static final String SCHEDULER = System.getProperty("agent.scheduler", "127.0.0.1:" + Scheduler.ReadyPort);
+	private static final long   INTERVAL  = Long.getLong("agent.interval", 2000);
+	private static final String VMS       = System.getProperty("agent.vms", "virsh list --name");
+	private static final int    RELAY     = Integer.getInteger("agent.relay", Scheduler.ReadyPort);
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		AsyncLog.init("agent");
+		String name = System.getProperty("agent.name", InetAddress.getLocalHost().getHostName());
+		String[] address = SCHEDULER.split(":");
+		InetSocketAddress scheduler = new InetSocketAddress(address[0], Integer.parseInt(address[1]));
+		int cores = Runtime.getRuntime().availableProcessors();
+		AsyncLog.info("Reporting node %s to %s every %d ms", name, scheduler, INTERVAL);
+		if (RELAY > 0)
+			relay(RELAY, scheduler);
+
+		while (true) {
+			double freeCores = Math.max(0, cores - loadAverage());
+			long freeMemory = freeMemory();
+			int booted = bootedUnikernels();
+			try (Socket socket = new Socket()) {
+				socket.connect(scheduler, 2000);
+				DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+				out.write(ControlMessages.NODE_REPORT);
+				out.writeUTF(name);
+				out.writeInt(cores);
+				out.writeDouble(freeCores);
+				out.writeLong(freeMemory);
+				out.writeInt(booted);
+				out.flush();
+				AsyncLog.debug("%.1f of %d cores free, %d MB free, %d booted", freeCores, cores, freeMemory, booted);
+			} catch (IOException e) {
+				AsyncLog.warn("Could not report to the Scheduler: %s", e.getMessage());
+			}
+			Thread.sleep(INTERVAL);
+		}
+	}
+
+	/**
+	 * Forward the readiness announcements of the unikernels of this node to the Scheduler,
+	 * in the background.
+	 */
+	private static void relay(int port, final InetSocketAddress scheduler) {
+		final ServerSocket serverSocket;
+		try {
+			serverSocket = new ServerSocket(port);
+		} catch (IOException e) {
+			AsyncLog.warn("Could not relay worker readiness on port %d: %s", port, e.getMessage());
+			return;
+		}
+		Thread t = new Thread("relay") {
+			@Override
+			public void run() {
+				while (true) {
+					try (Socket socket = serverSocket.accept()) {
+						socket.setSoTimeout(2000);
+						DataInputStream in = new DataInputStream(socket.getInputStream());
+						if (in.read() != ControlMessages.WORKER_READY)
+							continue;
+						String address = in.readUTF();
+						int workerPort = in.readInt();
+						try (Socket forward = new Socket()) {
+							forward.connect(scheduler, 2000);
+							DataOutputStream out = new DataOutputStream(forward.getOutputStream());
+							out.write(ControlMessages.WORKER_READY);
+							out.writeUTF(address);
+							out.writeInt(workerPort);
+							out.flush();
+						}
+						AsyncLog.debug("Relayed readiness of %s:%d", address, workerPort);
+					} catch (IOException e) {
+						AsyncLog.warn("Could not relay a readiness announcement: %s", e.getMessage());
+					}
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * @return the load average of the last minute
+	 */
+	private static double loadAverage() {
+		try (BufferedReader reader = new BufferedReader(new FileReader("/proc/loadavg"))) {
+			return Double.parseDouble(reader.readLine().split("\\s+")[0]);
+		} catch (IOException | NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @return the memory available for new unikernels in MB
+	 */
+	private static long freeMemory() {
+		try (BufferedReader reader = new BufferedReader(new FileReader("/proc/meminfo"))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("MemAvailable:"))
+					return Long.parseLong(line.split("\\s+")[1]) / 1024;
+			}
+		} catch (IOException | NumberFormatException e) {
+			e.printStackTrace();
+		}
+		return 0;
+	}
+
+	private static int bootedUnikernels() {
+		try {
+			Process process = new ProcessBuilder(VMS.split(" ")).redirectErrorStream(true).start();
+			int count = 0;
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (!line.trim().isEmpty())
+						count++;
+				}
+			}
+			return process.waitFor() == 0 ? count : 0;
+		} catch (IOException | InterruptedException e) {
+			return 0;
+		}
+	}
+}
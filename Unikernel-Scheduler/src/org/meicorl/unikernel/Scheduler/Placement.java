@@ -0,0 +1,165 @@
+package org.meicorl.unikernel.Scheduler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Chooses the hypervisor node a new unikernel is booted on. Every node runs a NodeAgent
+ * that reports its cores, free cores, free memory and booted unikernels to the
+ * ReadinessListener every few seconds; the unikernels table tells on which node each
+ * unikernel lives.
+ *
+ * Among the nodes that have a free unikernel, -Dscheduler.placement=least (default)
+ * takes the least loaded one, -Dscheduler.placement=p2c the less loaded of two picked at
+ * random, which keeps a burst of sessions from all landing on the same node between two
+ * reports. A node is loaded by its busy cores and by its booted unikernels, both per core,
+ * counting the sessions placed on it since its last report. Nodes without enough free
+ * memory for another worker (-Dscheduler.worker.memory MB), and for
+ * -Dscheduler.node.cooldown milliseconds (default 30000) nodes that failed to boot a
+ * unikernel, are only used when there is no other choice. Nodes that have not reported
+ * for -Dscheduler.node.stale milliseconds (default 10000), e.g. because no agent runs on
+ * a single host setup, come after the nodes that have, in the order of the table.
+ * @author MeiCorl
+ */
+class Placement {
+	private static final boolean POWER_OF_TWO  = "p2c".equals(System.getProperty("scheduler.placement"));
+	private static final long    STALE         = Long.getLong("scheduler.node.stale", 10000);
+	private static final long    COOLDOWN      = Long.getLong("scheduler.node.cooldown", 30000);
+	private static final long    WORKER_MEMORY = Long.getLong("scheduler.worker.memory", 256);
+
+	private static class Node {
+		final String name;
+		int    cores;
+		double freeCores;
+		long   freeMemory;		// MB
+		int    booted;
+		long   reported;
+		int    placed;			// sessions placed since the last report
+		long   failedUntil;
+		long   placedTotal;
+		long   failures;
+
+		Node(String name) {
+			this.name = name;
+		}
+
+		boolean known(long now) {
+			return now - reported <= STALE;
+		}
+
+		boolean usable(long now) {
+			return now >= failedUntil && (!known(now) || freeMemory - placed * WORKER_MEMORY >= WORKER_MEMORY);
+		}
+
+		double load() {
+			double cpu = (cores - freeCores + placed) / cores;
+			double vms = (double) (booted + placed) / cores;
+			return Math.max(cpu, vms);
+		}
+	}
+
+	private static final Map<String, Node> nodes = new LinkedHashMap<>();
+	private static final Random random = new Random();
+
+	private Placement() {
+	}
+
+	/**
+	 * A NodeAgent reported the state of its node.
+	 */
+	static synchronized void report(String name, int cores, double freeCores, long freeMemory, int booted) {
+		Node node = node(name);
+		node.cores = Math.max(1, cores);
+		node.freeCores = freeCores;
+		node.freeMemory = freeMemory;
+		node.booted = booted;
+		node.reported = System.currentTimeMillis();
+		node.placed = 0;
+	}
+
+	/**
+	 * @param candidates the nodes with a free unikernel, in the order of the table
+	 * @return the node to boot the next unikernel on
+	 */
+	static synchronized String choose(Collection<String> candidates) {
+		long now = System.currentTimeMillis();
+		List<Node> usable = new ArrayList<>();
+		for (String name : candidates) {
+			Node node = node(name);
+			if (node.usable(now))
+				usable.add(node);
+		}
+		if (usable.isEmpty())
+			return candidates.iterator().next();
+		Node chosen;
+		if (POWER_OF_TWO && usable.size() > 2) {
+			int first = random.nextInt(usable.size());
+			int second = random.nextInt(usable.size() - 1);
+			if (second >= first)
+				second++;
+			chosen = lessLoaded(usable.get(first), usable.get(second), now);
+		} else {
+			chosen = usable.get(0);
+			for (int i = 1; i < usable.size(); i++)
+				chosen = lessLoaded(chosen, usable.get(i), now);
+		}
+		return chosen.name;
+	}
+
+	/**
+	 * A unikernel of the node has been handed out.
+	 */
+	static synchronized void placed(String name) {
+		Node node = node(name);
+		node.placed++;
+		node.placedTotal++;
+	}
+
+	/**
+	 * The node failed to boot a unikernel, or the unikernel never came up. Avoid it for a while.
+	 */
+	static synchronized void nodeFailed(String name) {
+		Node node = node(name);
+		node.failedUntil = System.currentTimeMillis() + COOLDOWN;
+		node.failures++;
+	}
+
+	static synchronized String stats() {
+		long now = System.currentTimeMillis();
+		StringBuilder sb = new StringBuilder("placement: ").append(POWER_OF_TWO ? "power of two choices" : "least loaded");
+		for (Node node : nodes.values()) {
+			sb.append('\n').append(String.format("node %-15s ", node.name.isEmpty() ? "(local)" : node.name));
+			if (node.known(now))
+				sb.append(String.format("load %.2f, %.1f of %d cores free, %d MB free, %d booted, ", node.load(),
+						node.freeCores, node.cores, node.freeMemory, node.booted));
+			else
+				sb.append("no report, ");
+			sb.append(node.placedTotal).append(" placed, ").append(node.failures).append(" failures");
+			if (now < node.failedUntil)
+				sb.append(" (cooling down)");
+		}
+		return sb.toString();
+	}
+
+	private static Node lessLoaded(Node a, Node b, long now) {
+		// nodes without a recent report go last, keeping the order of the table
+		if (!b.known(now))
+			return a;
+		if (!a.known(now))
+			return b;
+		return b.load() < a.load() ? b : a;
+	}
+
+	private static Node node(String name) {
+		Node node = nodes.get(name);
+		if (node == null) {
+			node = new Node(name);
+			nodes.put(name, node);
+		}
+		return node;
+	}
+}
@@ -0,0 +1,205 @@
+package org.meicorl.unikernel.Scheduler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.meicorl.unikernel.common.AsyncLog;
+
+/**
+ * Boots unikernels ahead of demand, so that a burst of phones finds them running instead
+ * of waiting for cold boots.
+ *
+ * Phone arrivals are counted per window of -Dscheduler.preboot.window milliseconds
+ * (default 10000, 0 turns pre-booting off), in total and per app. At the end of every
+ * window the arrivals of the next one are forecast with Holt's double exponential
+ * smoothing (-Dscheduler.preboot.alpha for the level, default 0.5, and
+ * -Dscheduler.preboot.beta for the trend, default 0.3), and as many spares are kept booted
+ * in the WarmPool as phones are expected. Spares beyond the forecast are retired. At most
+ * -Dscheduler.preboot.memory MB (default 1024) are spent on spares, counting
+ * -Dscheduler.worker.memory MB per unikernel, and phones waiting in the AdmissionQueue
+ * always go before new spares.
+ * @author MeiCorl
+ */
+class PoolController {
+	private static final long   WINDOW        = Long.getLong("scheduler.preboot.window", 10000);
+	private static final long   BUDGET        = Long.getLong("scheduler.preboot.memory", 1024);
+	private static final long   WORKER_MEMORY = Long.getLong("scheduler.worker.memory", 256);
+	private static final int    MAX_SPARES    = WINDOW <= 0 ? 0 : (int) (BUDGET / Math.max(1, WORKER_MEMORY));
+	private static final double ALPHA         = Double.parseDouble(System.getProperty("scheduler.preboot.alpha", "0.5"));
+	private static final double BETA          = Double.parseDouble(System.getProperty("scheduler.preboot.beta", "0.3"));
+	// apps listed in the stats
+	private static final int    TOP_APPS      = 5;
+
+	// arrivals in the current window
+	private static int                        arrivals = 0;
+	private static Map<String, Integer>       appArrivals = new HashMap<>();
+
+	// Holt's forecast of the arrivals per window
+	private static boolean                    initialised = false;
+	private static double                     level = 0;
+	private static double                     trend = 0;
+	private static double                     forecast = 0;
+	// smoothed arrivals per window of every app
+	private static final Map<String, Double>  appDemand = new HashMap<>();
+
+	// metrics
+	private static int    lastArrivals = 0;
+	private static int    target = 0;
+	private static long   windows = 0;
+	private static double absoluteError = 0;
+	private static long   totalArrivals = 0;
+	private static long   booted = 0;
+	private static long   retired = 0;
+
+	private PoolController() {
+	}
+
+	/**
+	 * Start the controller, unless pre-booting is off.
+	 */
+	static void start() {
+		if (MAX_SPARES == 0)
+			return;
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "pool-controller");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					adjust(endWindow());
+				} catch (RuntimeException e) {
+					// keep the controller running
+					e.printStackTrace();
+				}
+			}
+		}, WINDOW, WINDOW, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * A phone asked for a session.
+	 * @param appKey the app it offloads, null if not known
+	 */
+	static synchronized void arrival(String appKey) {
+		arrivals++;
+		if (appKey != null) {
+			Integer n = appArrivals.get(appKey);
+			appArrivals.put(appKey, n == null ? 1 : n + 1);
+		}
+	}
+
+	/**
+	 * Close the window: score the last forecast and forecast the next window.
+	 * @return the number of spares to keep
+	 */
+	private static synchronized int endWindow() {
+		int x = arrivals;
+		Map<String, Integer> perApp = appArrivals;
+		arrivals = 0;
+		appArrivals = new HashMap<>();
+
+		if (initialised) {
+			absoluteError += Math.abs(forecast - x);
+			totalArrivals += x;
+			windows++;
+			double lastLevel = level;
+			level = ALPHA * x + (1 - ALPHA) * (level + trend);
+			trend = BETA * (level - lastLevel) + (1 - BETA) * trend;
+		} else {
+			level = x;
+			trend = 0;
+			initialised = true;
+		}
+		forecast = Math.max(0, level + trend);
+
+		for (Map.Entry<String, Double> e : appDemand.entrySet()) {
+			Integer n = perApp.remove(e.getKey());
+			e.setValue(ALPHA * (n == null ? 0 : n) + (1 - ALPHA) * e.getValue());
+		}
+		for (Map.Entry<String, Integer> e : perApp.entrySet())
+			appDemand.put(e.getKey(), ALPHA * e.getValue());
+		// forget apps nobody uses any more
+		List<String> idle = new ArrayList<>();
+		for (Map.Entry<String, Double> e : appDemand.entrySet()) {
+			if (e.getValue() < 0.01)
+				idle.add(e.getKey());
+		}
+		for (String app : idle)
+			appDemand.remove(app);
+
+		lastArrivals = x;
+		target = (int) Math.min(MAX_SPARES, Math.ceil(forecast));
+		return target;
+	}
+
+	/**
+	 * Boot or retire spares until there are as many as the forecast asks for.
+	 */
+	private static void adjust(int wanted) {
+		int spares = WarmPool.spares();
+		if (spares > wanted) {
+			AsyncLog.debug("Retiring %d spares, %d expected", spares - wanted, wanted);
+			WarmPool.retireSpares(spares - wanted);
+			synchronized (PoolController.class) {
+				retired += spares - wanted;
+			}
+			return;
+		}
+		for (; spares < wanted && !AdmissionQueue.hasWaiters(); spares++) {
+			Unikernel vm = Scheduler.findAvailableUnikernel();
+			if (vm == null)
+				return;
+			if (!vm.start()) {
+				AsyncLog.warn("Node %s failed to boot the spare %s", vm.getHost(), vm.getName());
+				Placement.nodeFailed(vm.getHost());
+				vm.shutdown();
+				return;
+			}
+			WarmPool.parkSpare(vm);
+			// a phone may have started waiting in the meantime
+			AdmissionQueue.workerParked();
+			synchronized (PoolController.class) {
+				booted++;
+			}
+			AsyncLog.debug("Booted spare %s, %d expected", vm.getName(), wanted);
+		}
+	}
+
+	static synchronized String stats() {
+		if (MAX_SPARES == 0)
+			return "pre-boot: off";
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("demand: %d phones in the last %d ms window, %.1f expected next (level %.1f, trend %+.1f)",
+				lastArrivals, WINDOW, forecast, level, trend));
+		double meanError = windows == 0 ? 0 : absoluteError / windows;
+		double meanArrivals = windows == 0 ? 0 : (double) totalArrivals / windows;
+		sb.append(String.format("\nforecast error: %.2f phones per window mean absolute (%.0f%% of the mean demand)",
+				meanError, meanArrivals == 0 ? 0 : 100 * meanError / meanArrivals));
+		sb.append("\npre-boot: ").append(target).append(" spares wanted (max ").append(MAX_SPARES).append("), ")
+				.append(booted).append(" booted, ").append(retired).append(" retired");
+
+		List<Map.Entry<String, Double>> apps = new ArrayList<>(appDemand.entrySet());
+		Collections.sort(apps, new Comparator<Map.Entry<String, Double>>() {
+			@Override
+			public int compare(Map.Entry<String, Double> a, Map.Entry<String, Double> b) {
+				return Double.compare(b.getValue(), a.getValue());
+			}
+		});
+		for (int i = 0; i < Math.min(TOP_APPS, apps.size()); i++)
+			sb.append(String.format("\napp %s: %.1f phones per window", apps.get(i).getKey(), apps.get(i).getValue()));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,95 @@
+package org.meicorl.unikernel.Scheduler;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.meicorl.unikernel.common.AsyncLog;
+
+/**
+ * Receives the announcements of DynamicLinkers that have bound their server socket, so that
+ * the Scheduler connects to a booting unikernel the moment it listens instead of polling it.
+ * A DynamicLinker started with -Dlinker.ready.address=host:port connects to this listener, or
+ * to the NodeAgent of its node which relays it here, and sends WORKER_READY followed by its own
+ * address and the port it listens on. The source of the connection is not used: behind NAT or
+ * the relay it is not the address of the worker. Announcements are latched per worker address
+ * until the unikernel is started again.
+ *
+ * The NodeAgents of the hypervisor nodes report to the same port, with NODE_REPORT.
+ * @author MeiCorl
+ */
+class ReadinessListener {
+	private static final Set<String> ready = new HashSet<>();
+
+	private ReadinessListener() {
+	}
+
+	/**
+	 * Start accepting announcements in the background.
+	 */
+	static void start(final int port) {
+		final ServerSocket serverSocket;
+		try {
+			serverSocket = new ServerSocket(port);
+		} catch (IOException e) {
+			System.err.println("Could not listen for worker readiness on port " + port + ", polling workers instead");
+			return;
+		}
+		Thread t = new Thread("readiness") {
+			@Override
+			public void run() {
+				while (true) {
+					try (Socket socket = serverSocket.accept()) {
+						socket.setSoTimeout(2000);
+						DataInputStream in = new DataInputStream(socket.getInputStream());
+						int command = in.read();
+						if (command == ControlMessages.WORKER_READY)
+							markReady(key(in.readUTF(), in.readInt()));
+						else if (command == ControlMessages.NODE_REPORT)
+							Placement.report(in.readUTF(), in.readInt(), in.readDouble(), in.readLong(), in.readInt());
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Forget an earlier announcement, the worker is about to be started again.
+	 */
+	static synchronized void expect(String ip, int port) {
+		ready.remove(key(ip, port));
+	}
+
+	/**
+	 * Wait until the worker has announced that it listens. Without a listener this
+	 * simply sleeps, so that callers can use it as their polling delay.
+	 * @return true if the worker has announced itself
+	 */
+	static synchronized boolean awaitReady(String ip, int port, long timeout) throws InterruptedException {
+		String key = key(ip, port);
+		long deadline = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+		while (!ready.contains(key) && remaining > 0) {
+			ReadinessListener.class.wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return ready.contains(key);
+	}
+
+	private static synchronized void markReady(String key) {
+		AsyncLog.debug("Worker %s is listening", key);
+		ready.add(key);
+		ReadinessListener.class.notifyAll();
+	}
+
+	private static String key(String ip, int port) {
+		return ip + ":" + port;
+	}
+}
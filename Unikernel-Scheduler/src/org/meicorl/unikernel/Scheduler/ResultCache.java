@@ -0,0 +1,144 @@
+package org.meicorl.unikernel.Scheduler;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Results of the offloaded calls the phones marked as cacheable, i.e. pure functions
+ * of the receiver and the parameters. Shared by all sessions, so that a repeated call
+ * is answered by the Scheduler without occupying a worker.
+ *
+ * Entries are keyed by a digest of the apk version, the class, the method, the
+ * serialised receiver, the parameters and the content of the file sent with the call.
+ * The cache is bounded by the approximate size of the results it holds (least recently
+ * used entries go first) and entries expire after a while.
+ * Size and lifetime are set with -Dscheduler.cache.bytes and -Dscheduler.cache.ttl (ms).
+ * @author MeiCorl
+ */
+class ResultCache {
+	private static final long MAX_BYTES = Long.getLong("scheduler.cache.bytes", 64L * 1024 * 1024);
+	private static final long TTL       = Long.getLong("scheduler.cache.ttl", 10 * 60 * 1000L);
+	// rough bookkeeping cost of one entry besides its strings
+	private static final int  ENTRY_OVERHEAD = 128;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private static long usedBytes = 0;
+	private static long hits = 0;
+	private static long misses = 0;
+
+	private static class Entry {
+		final String retType;
+		final String retVal;
+		final long   expires;
+		final long   size;
+
+		Entry(String retType, String retVal) {
+			this.retType = retType;
+			this.retVal = retVal;
+			this.expires = System.currentTimeMillis() + TTL;
+			this.size = ENTRY_OVERHEAD + 2L * (retType.length() + (retVal == null ? 0 : retVal.length()));
+		}
+	}
+
+	private ResultCache() {
+	}
+
+	/**
+	 * @param parts the apk version, class, method, receiver and parameters of the call
+	 * @param file the content of the file sent with the call, or null
+	 * @return the key of the call
+	 */
+	static String key(Object[] parts, byte[] file) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			for (Object part : parts) {
+				String s = part instanceof String[] ? join((String[]) part) : String.valueOf(part);
+				byte[] bytes = s.getBytes(UTF8);
+				// length prefix, so that no two different calls give the same byte stream
+				md.update(intBytes(bytes.length));
+				md.update(bytes);
+			}
+			if (file != null) {
+				md.update(intBytes(file.length));
+				md.update(file);
+			}
+			StringBuilder sb = new StringBuilder();
+			for (byte b : md.digest())
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the return type and the value of the cached result, or null on a miss
+	 */
+	static synchronized String[] get(String key) {
+		Entry e = entries.get(key);
+		if (e != null && e.expires < System.currentTimeMillis()) {
+			entries.remove(key);
+			usedBytes -= e.size;
+			e = null;
+		}
+		if (e == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return new String[] { e.retType, e.retVal };
+	}
+
+	/**
+	 * Store a result. Failed calls (no return type) are not cached.
+	 */
+	static synchronized void put(String key, String retType, String retVal) {
+		if (retType == null)
+			return;
+		Entry e = new Entry(retType, retVal);
+		if (e.size > MAX_BYTES)
+			return;
+		Entry old = entries.put(key, e);
+		if (old != null)
+			usedBytes -= old.size;
+		usedBytes += e.size;
+
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (usedBytes > MAX_BYTES && it.hasNext()) {
+			Entry eldest = it.next().getValue();
+			it.remove();
+			usedBytes -= eldest.size;
+		}
+		// drop what has expired at the cold end while we are at it
+		it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Entry eldest = it.next().getValue();
+			if (eldest.expires >= now)
+				break;
+			it.remove();
+			usedBytes -= eldest.size;
+		}
+	}
+
+	static synchronized String stats() {
+		return "result cache: " + entries.size() + " entries, " + usedBytes + "/" + MAX_BYTES
+				+ " bytes, " + hits + " hits, " + misses + " misses";
+	}
+
+	private static String join(String[] values) {
+		StringBuilder sb = new StringBuilder();
+		for (String v : values)
+			sb.append(v).append(',');
+		return sb.toString();
+	}
+
+	private static byte[] intBytes(int v) {
+		return new byte[] { (byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v };
+	}
+}
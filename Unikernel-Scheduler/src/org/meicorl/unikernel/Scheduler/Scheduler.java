@@ -3,12 +3,18 @@ package org.meicorl.unikernel.Scheduler;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.logging.Logger;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.meicorl.unikernel.common.AsyncLog;
 
 /**
  * This class is responsible for starting the clones needed for the C2C platform and to give the needed info to the phones.
@@ -18,39 +24,41 @@ import java.util.logging.Logger;
 public class Scheduler{
 	private static ServerSocket serverSocket;
 	private final static int    Port = 6035;
-	private static Logger log=Logger.getLogger(Scheduler.class.getName()); 
+	// a reconnecting phone must present its session token within this many milliseconds
+	private final static int    RESUME_TIMEOUT = 10000;
+	final static int            ReadyPort = Integer.getInteger("scheduler.ready.port", 6036);
 	private static DBHelper dbh = null;
 	
 	public static void main(String[] args) {
+		AsyncLog.init("scheduler");
 
 		System.out.println("Connecting database and initing dbh...");
 		dbh = new DBHelper();
+		ReadinessListener.start(ReadyPort);
+		PoolController.start();
 		try {
 			serverSocket = new ServerSocket(Port);
 			while (true) 
 			{
-				log.info("Waiting for clients on port: " + Port);
+				AsyncLog.debug("Waiting for clients on port: %d", Port);
 				Socket clientSocket = serverSocket.accept();
 				InputStream	is 	= clientSocket.getInputStream();
 				OutputStream os	= clientSocket.getOutputStream();
 
 				int whatIsThisClient = is.read();
-				log.info("New client connected is: " + whatIsThisClient);
+				AsyncLog.debug("New client connected is: %d", whatIsThisClient);
 			    if ( whatIsThisClient == ControlMessages.PHONE_CONNECTION ){
-					// setup a unikernel server
-					Unikernel vm = findAvailableUnikernel();
-					if(vm==null)
-					{
-						System.err.println("Unable find an available unikernel,please try again!");
-					}
-					else {
-						log.info("Starting the ClientHandler");
-						vm.start();
-						new Thread(new ClientHandler(clientSocket, is, os, vm)).start();
-					}
+					// setup a unikernel server as soon as one is free, or tell the phone to run locally
+					AdmissionQueue.admit(clientSocket, is, os, null, null);
 				}	
+				else if ( whatIsThisClient == ControlMessages.PHONE_RECONNECTION ){
+					resumeSession(clientSocket, is, os);
+				}
+				else if ( whatIsThisClient == ControlMessages.SCHEDULER_STATS ){
+					sendStats(clientSocket, os);
+				}
 				else
-					System.out.println("Unknown client!");
+					AsyncLog.warn("Unknown client %d!", whatIsThisClient);
 			}
 		} catch (FileNotFoundException e) {
 			System.err.println("Configuration file not found, exiting...");
@@ -71,29 +79,130 @@ public class Scheduler{
 		}
 	}
 
-    private static Unikernel findAvailableUnikernel()
+    /**
+     * A phone that lost its connection presents the token of its session. Hand the new
+     * connection to the ClientHandler that still holds its unikernel, or start a new
+     * session if the old one has expired. The handshake runs in its own thread, so that a
+     * phone on a flaky network does not hold up the Scheduler.
+     */
+    private static void resumeSession(final Socket clientSocket, final InputStream is, final OutputStream os)
+    {
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    resumeHandshake(clientSocket, is, os);
+                } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                    AsyncLog.info("Resume handshake failed: %s", e.getMessage());
+                    try {
+                        clientSocket.close();
+                    } catch (IOException ce) {
+                        // the connection is dead anyway
+                    }
+                }
+            }
+        }.start();
+    }
+
+    private static void resumeHandshake(Socket clientSocket, InputStream is, OutputStream os)
+            throws IOException, ClassNotFoundException
+    {
+        clientSocket.setSoTimeout(RESUME_TIMEOUT);
+        ObjectInputStream ois = new ObjectInputStream(is);
+        ObjectOutputStream oos = new ObjectOutputStream(os);
+        String token = (String) ois.readObject();
+        clientSocket.setSoTimeout(0);
+
+        ClientHandler session = SessionRegistry.lookup(token);
+        if (session != null && session.resume(clientSocket, is, os, ois, oos)) {
+            AsyncLog.info("Phone resumed session %s", token);
+            return;
+        }
+
+        AsyncLog.info("Session %s is unknown, starting a new one", token);
+        os.write(ControlMessages.SESSION_UNKNOWN);
+        AdmissionQueue.admit(clientSocket, is, os, ois, oos);
+    }
+
+    /**
+     * Send a text report of the session, queue and cache metrics, then close the connection.
+     */
+    private static void sendStats(Socket clientSocket, OutputStream os)
+    {
+        try {
+            ObjectOutputStream oos = new ObjectOutputStream(os);
+            oos.writeObject(SchedulerMetrics.stats() + "\n" + AdmissionQueue.stats() + "\n" + WarmPool.stats() + "\n"
+            		+ PoolController.stats() + "\n" + Lifecycle.stats() + "\n" + Placement.stats() + "\n" + ResultCache.stats());
+            oos.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Take a powered-off unikernel from the pool and mark it as in use. The Placement
+     * chooses the hypervisor node among those with a free unikernel.
+     * Also called by the sessions that borrow extra workers, so the shared
+     * database connection is used by one thread at a time.
+     * @return null if the pool is empty
+     */
+    static Unikernel findAvailableUnikernel()
     {
-    	try{
-			dbh.dbUpdate("lock tables unikernels write"); 
-			String sql = "select * from unikernels where status=" +ControlMessages.UnikernelStatus_available + " limit 0,1";
-			ResultSet rs = dbh.dbSelect(sql);
-			
-			if(rs.next()){
-				 String name = rs.getString("name").trim();
-				 String ip = rs.getString("ip").trim();
-				 int status = rs.getInt("status");
+    	synchronized (dbh) {
+	    	try{
+				dbh.dbUpdate("lock tables unikernels write"); 
+				String sql = "select * from unikernels where status=" +ControlMessages.UnikernelStatus_available;
+				ResultSet rs = dbh.dbSelect(sql);
+
+				// the first free unikernel of every node
+				Map<String, Unikernel> free = new LinkedHashMap<>();
+				while(rs.next()){
+					 String host = rs.getString("host");
+					 host = host == null ? "" : host.trim();
+					 if (!free.containsKey(host))
+						 free.put(host, new Unikernel(rs.getString("name").trim(), rs.getString("ip").trim(), host,
+								 rs.getInt("status")));
+				}
+				if(free.isEmpty()){
+					dbh.dbUpdate("unlock tables");
+					//  here to Create a new Unikernel
+					return null;
+				}
+				Unikernel vm = free.get(Placement.choose(free.keySet()));
 				//only update status in database so that nobody will choose this unikernel anymore, 
-				dbh.dbUpdate("update unikernels set status = " + ControlMessages.UnikernelStatus_unAvailable +" where name = '" + name + "'");
-				dbh.dbUpdate("unlock tables");
-				return new Unikernel(name, ip, status, dbh);
-			}else{
+				dbh.dbUpdate("update unikernels set status = " + ControlMessages.UnikernelStatus_unAvailable +" where name = '" + vm.getName() + "'");
 				dbh.dbUpdate("unlock tables");
-				//  here to Create a new Unikernel
-				return null;
-			}
-		} catch (SQLException e) {
-            e.printStackTrace();
-            return null;
-        } 
+				Placement.placed(vm.getHost());
+				return vm;
+			} catch (SQLException e) {
+	            e.printStackTrace();
+	            return null;
+	        } 
+    	}
+    }
+
+    /**
+     * Mark powered-off unikernels as available again, all with one update.
+     */
+    static void releaseUnikernels(Collection<Unikernel> unikernels)
+    {
+    	StringBuilder names = new StringBuilder();
+    	for (Unikernel vm : unikernels) {
+    		if (names.length() > 0)
+    			names.append(", ");
+    		names.append('\'').append(vm.getName()).append('\'');
+    	}
+    	// sessions release their workers concurrently, the connection to the database is shared
+    	synchronized (dbh) {
+    		dbh.dbUpdate("lock tables unikernels write"); 
+    		dbh.dbUpdate("update unikernels set status = " + ControlMessages.UnikernelStatus_available +" where name in (" + names + ")");
+    		dbh.dbUpdate("unlock tables");
+    	}
     }
 }
\ No newline at end of file
@@ -0,0 +1,108 @@
+package org.meicorl.unikernel.Scheduler;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings of the phases of a session and counters, shared by all sessions and reported
+ * with the SCHEDULER_STATS command.
+ *
+ * A session acquires a unikernel (including any wait in the AdmissionQueue), waits for
+ * it to boot, connects to its DynamicLinker and negotiates the apk. Every request is then
+ * relayed to the worker, executed there and its result relayed back to the phone.
+ * @author MeiCorl
+ */
+class SchedulerMetrics {
+	static final LatencyHistogram ACQUIRE = new LatencyHistogram("acquire");
+	static final LatencyHistogram BOOT    = new LatencyHistogram("boot");
+	static final LatencyHistogram CONNECT = new LatencyHistogram("connect");
+	static final LatencyHistogram APK     = new LatencyHistogram("apk");
+	static final LatencyHistogram RELAY   = new LatencyHistogram("relay");
+	static final LatencyHistogram EXECUTE = new LatencyHistogram("execute");
+	static final LatencyHistogram RESULT  = new LatencyHistogram("result");
+	static final LatencyHistogram FANOUT  = new LatencyHistogram("fanout");
+	// operations of the Lifecycle, a destroy is a batch of power-offs
+	static final LatencyHistogram VM_START   = new LatencyHistogram("vm start");
+	static final LatencyHistogram VM_DESTROY = new LatencyHistogram("vm destroy");
+	static final LatencyHistogram DB_RELEASE = new LatencyHistogram("db release");
+
+	private static final LatencyHistogram[] PHASES = { ACQUIRE, BOOT, CONNECT, APK, RELAY, EXECUTE, RESULT, FANOUT,
+			VM_START, VM_DESTROY, DB_RELEASE };
+
+	static final AtomicLong sessions         = new AtomicLong();
+	static final AtomicLong sessionFailures  = new AtomicLong();
+	static final AtomicLong coldBoots        = new AtomicLong();
+	static final AtomicLong warmStarts       = new AtomicLong();
+	static final AtomicLong requests         = new AtomicLong();
+	static final AtomicLong requestFailures  = new AtomicLong();
+	static final AtomicLong bytesToWorkers   = new AtomicLong();
+	static final AtomicLong bytesFromWorkers = new AtomicLong();
+
+	private SchedulerMetrics() {
+	}
+
+	static String stats() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("sessions: ").append(sessions.get()).append(" started, ")
+				.append(sessionFailures.get()).append(" failed\n");
+		long cold = coldBoots.get();
+		long warm = warmStarts.get();
+		sb.append("unikernels: ").append(cold).append(" cold boots, ").append(warm).append(" already running (")
+				.append(cold + warm == 0 ? 0 : Math.round(100.0 * cold / (cold + warm))).append("% cold)\n");
+		sb.append("requests: ").append(requests.get()).append(" relayed, ")
+				.append(requestFailures.get()).append(" failed\n");
+		sb.append("relayed: ").append(bytesToWorkers.get()).append(" bytes to workers, ")
+				.append(bytesFromWorkers.get()).append(" bytes from workers\n");
+		sb.append("latency (ms):\n").append(LatencyHistogram.header());
+		for (LatencyHistogram phase : PHASES)
+			sb.append('\n').append(phase.report());
+		return sb.toString();
+	}
+
+	/**
+	 * @return the stream, adding the number of bytes read to <code>counter</code>
+	 */
+	static InputStream count(InputStream in, final AtomicLong counter) {
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0)
+					counter.incrementAndGet();
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n > 0)
+					counter.addAndGet(n);
+				return n;
+			}
+		};
+	}
+
+	/**
+	 * @return the stream, adding the number of bytes written to <code>counter</code>
+	 */
+	static OutputStream count(OutputStream out, final AtomicLong counter) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				counter.incrementAndGet();
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				// FilterOutputStream would write byte by byte
+				out.write(b, off, len);
+				counter.addAndGet(len);
+			}
+		};
+	}
+}
@@ -0,0 +1,32 @@
+package org.meicorl.unikernel.Scheduler;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the live phone sessions by their token, so that a phone
+ * which lost its connection can be handed back to the ClientHandler (and the
+ * warm unikernel) it was using before.
+ * @author MeiCorl
+ */
+class SessionRegistry {
+    private static final ConcurrentHashMap<String, ClientHandler> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * @return the token the phone has to present to resume this session
+     */
+    static String register(ClientHandler handler) {
+        String token = UUID.randomUUID().toString();
+        sessions.put(token, handler);
+        return token;
+    }
+
+    static ClientHandler lookup(String token) {
+        return token == null ? null : sessions.get(token);
+    }
+
+    static void unregister(String token) {
+        if (token != null)
+            sessions.remove(token);
+    }
+}
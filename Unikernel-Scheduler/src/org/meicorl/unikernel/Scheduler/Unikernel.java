@@ -1,6 +1,5 @@
 package org.meicorl.unikernel.Scheduler;
 
-import java.io.IOException;
 import java.io.Serializable;
 
 /**
@@ -12,24 +11,47 @@ class Unikernel  implements Serializable{
 
 	private static final long serialVersionUID = 1L;
 
-	private Process worker_process = null;
+	// port of the DynamicLinker in the unikernel image
+	private static final int DEFAULT_PORT = 6034;
+	private static final UnikernelDriver driver = "local".equals(System.getProperty("scheduler.driver"))
+			? new LocalProcessDriver() : new LibvirtDriver();
+
 	private String name = null;
 	private String ip = null;
-	private static final int port = 6034;
+	private int port = DEFAULT_PORT;
+	// the hypervisor node the unikernel lives on, "" for this host
+	private String host = "";
 	/**
 	 * status
 	 * 		 0: stands for "vm is power off, is avaiable"   
 	 * 	     1: stands for "vm is running, is unavailable"
 	 */
 	private int status = ControlMessages.UnikernelStatus_unAvailable;
-    private DBHelper dbh = null;
+	// started by this Scheduler and not powered off since, e.g. while parked warm
+	private volatile boolean running = false;
+	// shutdown() has been called, the unikernel is on its way back to the pool
+	private boolean released = false;
 
     
-	Unikernel(String name, String ip, int status, DBHelper dbh) {
-		this.ip = ip;
+	/**
+	 * @param ip the address of the unikernel, "ip:port" if the DynamicLinker does not listen on 6034
+	 */
+	Unikernel(String name, String ip, String host, int status) {
+		int colon = ip.indexOf(':');
+		if (colon >= 0) {
+			this.ip = ip.substring(0, colon);
+			this.port = Integer.parseInt(ip.substring(colon + 1));
+		} else {
+			this.ip = ip;
+		}
 		this.name = name;
+		this.host = host == null ? "" : host.trim();
 		this.status = status ;
-		this.dbh = dbh;
+	}
+
+	String getName()
+	{
+		return this.name;
 	}
 
 	String getIP()
@@ -39,41 +61,51 @@ class Unikernel  implements Serializable{
 
     int getPort()
 	{
-		return Unikernel.port;
+		return this.port;
+	}
+
+	String getHost()
+	{
+		return this.host;
 	}
     
     int getStatus()
     {
     	return this.status;
     }
+
+	boolean isRunning()
+	{
+		return this.running;
+	}
     
-	void start()
+	/**
+	 * @return false if the node of the unikernel refused to boot it
+	 */
+	boolean start()
     {
-    	executeCommand("virsh start " + this.name);
-		/** 'startvm' is script to setup an unikernel server */
-		//executeCommand("startvm " + ControlMessages.IMAGE_HUB + this.name + ".img");
+		// the DynamicLinker of this boot announces itself again
+		ReadinessListener.expect(this.ip, port);
+		if (!Lifecycle.start(driver, this))
+			return false;
+		this.running = true;
     	this.status = ControlMessages.UnikernelStatus_unAvailable;
+		return true;
     }
 
 	/**
-	 * Close the worker process if it hasn't closed automaticly.
+	 * Close the worker process if it hasn't closed automaticly, and give the unikernel
+	 * back to the pool. Returns at once, the Lifecycle powers it off in the background.
 	 */
 	void shutdown()
     {
-    	executeCommand("virsh destroy " + this.name);
-		//if(worker_process.isAlive())
-			//worker_process.destroy();
-		dbh.dbUpdate("lock tables unikernels write"); 
-		dbh.dbUpdate("update unikernels set status = " + ControlMessages.UnikernelStatus_available +" where name = '" + name + "'");
-		dbh.dbUpdate("unlock tables");
+		synchronized (this) {
+			if (released)
+				return;
+			released = true;
+		}
+		this.running = false;
 		this.status = ControlMessages.UnikernelStatus_available;
+		Lifecycle.destroy(driver, this);
     }
-    
-    private void executeCommand(String command) {
-		try {
-			worker_process = Runtime.getRuntime().exec(command);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-	}
-}
\ No newline at end of file
+}
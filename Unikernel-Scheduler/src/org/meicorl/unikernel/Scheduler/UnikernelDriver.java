@@ -0,0 +1,23 @@
+package org.meicorl.unikernel.Scheduler;
+
+import java.util.Collection;
+
+/**
+ * Boots and powers off the machines the workers run in.
+ * Selected with -Dscheduler.driver: "libvirt" (default) for real unikernels,
+ * "local" for DynamicLinker processes on this host, e.g. for load tests.
+ * @author MeiCorl
+ */
+interface UnikernelDriver {
+
+	/**
+	 * Boot the unikernel, returns without waiting for it to come up.
+	 * @return false if its node refused to boot it
+	 */
+	boolean start(Unikernel unikernel);
+
+	/**
+	 * Power the unikernels off and wait until they are.
+	 */
+	void stop(Collection<Unikernel> unikernels);
+}
@@ -0,0 +1,248 @@
+package org.meicorl.unikernel.Scheduler;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.meicorl.unikernel.common.AsyncLog;
+
+/**
+ * Workers parked warm after a session instead of being powered off. A parked worker keeps
+ * the class loader of the apk it served and the code the JIT compiled for it, so a new
+ * session of the same app (same package and apk version) gets it back without a boot and
+ * without loading the apk again.
+ *
+ * A worker stays parked for at most -Dscheduler.warm.ttl milliseconds (default 120000, 0
+ * turns parking off). At most -Dscheduler.warm.memory MB (default 2048) are kept parked,
+ * counting -Dscheduler.worker.memory MB (default 256) per worker; the oldest are powered
+ * off beyond that. Parked workers stay unavailable in the database, a phone that finds
+ * no cold unikernel gets one of them evicted rather than waiting for the TTL.
+ *
+ * The PoolController also parks spares here: unikernels booted ahead of demand that have
+ * not served any app yet. A session takes a spare when no worker is warm for its app.
+ * Spares do not expire, the PoolController retires them, and they count against its
+ * memory budget rather than against the one of the warm workers.
+ * @author MeiCorl
+ */
+class WarmPool {
+	private static final long TTL           = Long.getLong("scheduler.warm.ttl", 120000);
+	private static final long MEMORY        = Long.getLong("scheduler.warm.memory", 2048);
+	private static final long WORKER_MEMORY = Long.getLong("scheduler.worker.memory", 256);
+	private static final int  CAPACITY      = TTL <= 0 ? 0 : (int) (MEMORY / Math.max(1, WORKER_MEMORY));
+
+	private static class Parked {
+		final String key;		// null for a spare
+		final long   since = System.currentTimeMillis();
+		ScheduledFuture<?> expiry;
+
+		Parked(String key) {
+			this.key = key;
+		}
+	}
+
+	// parked workers, the longest parked first
+	private static final LinkedHashMap<Unikernel, Parked> parked = new LinkedHashMap<>();
+
+	private static final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "warm-pool");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private static int spares = 0;
+
+	// metrics
+	private static long hits = 0;
+	private static long spareHits = 0;
+	private static long misses = 0;
+	private static long evicted = 0;
+	private static long expired = 0;
+	private static long parkedTotal = 0;
+
+	private WarmPool() {
+	}
+
+	/**
+	 * @param packageName the package name of the app as sent by the phone
+	 * @return the key that warm workers of the app are parked under
+	 */
+	static String key(String packageName, String apkVersion) {
+		String[] parts = packageName.split("\\.");
+		return parts[parts.length - 1] + ".apk@" + apkVersion;
+	}
+
+	/**
+	 * Park a worker whose session ended cleanly.
+	 * @return false if parking is off, the caller powers the worker off
+	 */
+	static boolean park(final Unikernel vm, String key) {
+		if (CAPACITY == 0 || key == null)
+			return false;
+		Unikernel victim = null;
+		synchronized (WarmPool.class) {
+			final Parked p = new Parked(key);
+			parked.put(vm, p);
+			parkedTotal++;
+			p.expiry = reaper.schedule(new Runnable() {
+				@Override
+				public void run() {
+					expire(vm, p);
+				}
+			}, TTL, TimeUnit.MILLISECONDS);
+			if (parked.size() - spares > CAPACITY) {
+				victim = removeOldestWarm();
+				evicted++;
+			}
+		}
+		AsyncLog.info("Worker %s parked warm for %s", vm.getIP(), key);
+		if (victim != null)
+			victim.shutdown();
+		// a phone may be waiting for exactly this app, or for any worker at all
+		AdmissionQueue.workerParked();
+		return true;
+	}
+
+	/**
+	 * Park a unikernel booted ahead of demand.
+	 */
+	static synchronized void parkSpare(Unikernel vm) {
+		parked.put(vm, new Parked(null));
+		spares++;
+	}
+
+	/**
+	 * @return the most recently parked worker of the app, or null if there is none
+	 */
+	static synchronized Unikernel take(String key) {
+		if (key == null)
+			return null;
+		Unikernel found = null;
+		for (Map.Entry<Unikernel, Parked> e : parked.entrySet())
+			if (key.equals(e.getValue().key))
+				found = e.getKey();
+		if (found == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		remove(found);
+		return found;
+	}
+
+	/**
+	 * @return the most recently parked spare, or null if there is none
+	 */
+	static synchronized Unikernel takeSpare() {
+		Unikernel spare = null;
+		for (Map.Entry<Unikernel, Parked> e : parked.entrySet())
+			if (e.getValue().key == null)
+				spare = e.getKey();
+		if (spare == null)
+			return null;
+		spareHits++;
+		remove(spare);
+		return spare;
+	}
+
+	/**
+	 * @return the number of spares parked
+	 */
+	static synchronized int spares() {
+		return spares;
+	}
+
+	/**
+	 * Power off the longest parked spares.
+	 */
+	static void retireSpares(int count) {
+		List<Unikernel> retired = new ArrayList<>();
+		synchronized (WarmPool.class) {
+			for (Map.Entry<Unikernel, Parked> e : parked.entrySet()) {
+				if (retired.size() == count)
+					break;
+				if (e.getValue().key == null)
+					retired.add(e.getKey());
+			}
+			for (Unikernel vm : retired)
+				remove(vm);
+		}
+		for (Unikernel vm : retired)
+			vm.shutdown();
+	}
+
+	/**
+	 * Power off the longest parked worker to make room for a phone that needs a cold one.
+	 * Spares are not evicted, a phone takes them as they are.
+	 * @return false if no worker is parked
+	 */
+	static boolean evictOne() {
+		Unikernel victim;
+		synchronized (WarmPool.class) {
+			victim = removeOldestWarm();
+			if (victim == null)
+				return false;
+			evicted++;
+		}
+		AsyncLog.info("Evicting warm worker %s for a waiting phone", victim.getIP());
+		victim.shutdown();
+		return true;
+	}
+
+	/**
+	 * @return true if a worker is parked that could be evicted
+	 */
+	static synchronized boolean evictable() {
+		return parked.size() > spares;
+	}
+
+	static synchronized String stats() {
+		long oldest = parked.isEmpty() ? 0 : System.currentTimeMillis() - parked.values().iterator().next().since;
+		return "warm pool: " + (parked.size() - spares) + " parked (capacity " + CAPACITY + ", oldest " + oldest
+				+ " ms), " + spares + " spares, " + parkedTotal + " parked in total\n"
+				+ "warm sessions: " + hits + " hits, " + spareHits + " on spares, " + misses + " misses, "
+				+ evicted + " evicted, " + expired + " expired";
+	}
+
+	private static void expire(Unikernel vm, Parked p) {
+		synchronized (WarmPool.class) {
+			if (parked.get(vm) != p)
+				return;	// taken in the meantime
+			parked.remove(vm);
+			expired++;
+		}
+		AsyncLog.info("Warm worker %s idle for %d ms, powering it off", vm.getIP(), TTL);
+		vm.shutdown();
+	}
+
+	/**
+	 * @return the longest parked worker that is not a spare, or null if there is none
+	 */
+	private static Unikernel removeOldestWarm() {
+		for (Map.Entry<Unikernel, Parked> e : parked.entrySet()) {
+			if (e.getValue().key != null) {
+				Unikernel oldest = e.getKey();
+				remove(oldest);
+				return oldest;
+			}
+		}
+		return null;
+	}
+
+	private static void remove(Unikernel vm) {
+		Parked p = parked.remove(vm);
+		if (p.key == null)
+			spares--;
+		else
+			p.expiry.cancel(false);
+	}
+}
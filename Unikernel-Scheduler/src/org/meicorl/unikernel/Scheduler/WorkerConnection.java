@@ -0,0 +1,179 @@
+package org.meicorl.unikernel.Scheduler;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * A connection from the Scheduler to the DynamicLinker running in one unikernel.
+ * Used for the worker of a session and for the extra workers it borrows, e.g. to fan a job out.
+ * @author MeiCorl
+ */
+class WorkerConnection {
+	// give up on a worker that has not come up after this many milliseconds
+	static final long				BOOT_TIMEOUT = 60000;
+	// delays between connect attempts while the worker has not announced itself
+	private static final long		POLL_MIN_DELAY = 50;
+	private static final long		POLL_MAX_DELAY = 1000;
+	private static final int		CONNECT_TIMEOUT = 2000;
+
+	private final Unikernel			worker;
+	private Socket					conSocket = null;
+	private InputStream				conis = null;
+	private OutputStream			conos = null;
+	private ObjectOutputStream		conoos = null;
+	private ObjectInputStream		conois = null;
+
+	WorkerConnection(Unikernel worker) {
+		this.worker = worker;
+	}
+
+	Unikernel getWorker() {
+		return worker;
+	}
+
+	Socket getSocket() {
+		return conSocket;
+	}
+
+	InputStream getInputStream() {
+		return conis;
+	}
+
+	OutputStream getOutputStream() {
+		return conos;
+	}
+
+	ObjectOutputStream getObjectOutputStream() {
+		return conoos;
+	}
+
+	ObjectInputStream getObjectInputStream() {
+		return conois;
+	}
+
+	/**
+	 * Connect to the Unikernel worker as soon as it listens. The DynamicLinker announces
+	 * itself to the ReadinessListener; polling with a growing delay is only the fallback
+	 * for workers that do not. The time until the worker accepts the connection counts
+	 * as its boot time.
+	 * @param timeout give up after this many milliseconds
+	 */
+	void open(long timeout) throws IOException {
+		long start = System.nanoTime();
+		long deadline = System.currentTimeMillis() + timeout;
+		InetSocketAddress workerAddr = new InetSocketAddress(worker.getIP(), worker.getPort());
+		long delay = POLL_MIN_DELAY;
+		while (true) {
+			boolean announced;
+			try {
+				announced = ReadinessListener.awaitReady(worker.getIP(), worker.getPort(), delay);
+			} catch (InterruptedException ie) {
+				throw new InterruptedIOException("Interrupted while waiting for the worker");
+			}
+			conSocket = new Socket();
+			try {
+				conSocket.connect(workerAddr, CONNECT_TIMEOUT);
+				break;
+			} catch (ConnectException | NoRouteToHostException | SocketTimeoutException e) {
+				conSocket.close();
+				if (System.currentTimeMillis() > deadline) {
+					Placement.nodeFailed(worker.getHost());
+					throw new IOException("Worker " + worker.getIP() + " did not come up in time");
+				}
+				if (announced) {
+					// listening but not reachable yet, do not spin
+					try {
+						Thread.sleep(delay);
+					} catch (InterruptedException ie) {
+						throw new InterruptedIOException("Interrupted while waiting for the worker");
+					}
+				}
+				delay = Math.min(delay * 2, POLL_MAX_DELAY);
+			}
+		}
+		SchedulerMetrics.BOOT.recordSince(start);
+		start = System.nanoTime();
+		conSocket.setTcpNoDelay(true);
+		conis = SchedulerMetrics.count(conSocket.getInputStream(), SchedulerMetrics.bytesFromWorkers);
+		conos = SchedulerMetrics.count(conSocket.getOutputStream(), SchedulerMetrics.bytesToWorkers);
+		conoos = new ObjectOutputStream(conos);
+		conois = new ObjectInputStream(conis);
+		SchedulerMetrics.CONNECT.recordSince(start);
+	}
+
+	/**
+	 * Make sure the worker has the apk of the application.
+	 * @param apk the content of the apk, or null if the Scheduler does not have it
+	 * @return false if the apk is not available
+	 */
+	boolean registerApk(String appName, byte[] apk) throws IOException {
+		// once registered, a worker without the apk would wait for it
+		if (apk == null)
+			return false;
+		conos.write(ControlMessages.APK_REGISTER);
+		conoos.writeObject(appName);
+		if (conis.read() == ControlMessages.APK_PRESENT)
+			return true;
+		conoos.writeInt(apk.length);
+		conoos.write(apk);
+		conoos.flush();
+		return true;
+	}
+
+	/**
+	 * Execute one call on the worker.
+	 * @param requestId identifies the call in the log of the worker
+	 * @return the return type and the JSON value of the result
+	 */
+	String[] execute(Object requestId, Object className, Object objToExecute, Object methodName, Object paramTypes,
+					 Object paramValues) throws IOException, ClassNotFoundException {
+		conos.write(ControlMessages.PHONE_COMPUTATION_REQUEST);
+		conoos.reset();
+		conoos.writeObject(requestId);
+		conoos.writeObject(className);
+		conoos.writeObject(objToExecute);
+		conoos.writeObject(methodName);
+		conoos.writeObject(paramTypes);
+		conoos.writeObject(paramValues);
+		conoos.flush();
+		String retType = (String) conois.readObject();
+		String retVal = (String) conois.readObject();
+		conois.readObject();	// timings of the worker
+		return new String[] { retType, retVal };
+	}
+
+	/**
+	 * Release the worker: end its session and power the unikernel off.
+	 */
+	void close() {
+		release(null);
+	}
+
+	/**
+	 * Release the worker: end its session, then park it warm for the app if it ended
+	 * cleanly, otherwise power the unikernel off.
+	 * @param appKey the app whose apk the worker has loaded, null to power it off
+	 */
+	void release(String appKey) {
+		boolean clean = false;
+		try {
+			if (conos != null) {
+				conos.write(ControlMessages.PHONE_DISCONNECTION);
+				clean = true;
+			}
+		} catch (IOException e) {
+			// the worker is going away anyway
+		}
+		try {
+			if (conSocket != null)
+				conSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (worker.getStatus() != ControlMessages.UnikernelStatus_unAvailable)
+			return;
+		if (clean && appKey != null && WarmPool.park(worker, appKey))
+			return;
+		worker.shutdown();
+	}
+}
@@ -0,0 +1,21 @@
+package org.meicorl.unikernel.Scheduler;
+
+import java.io.IOException;
+
+/**
+ * The worker of a session failed or could not be reached, while the connection to the
+ * phone is still fine. The phone is then answered with a null result, so that it runs
+ * the call itself, instead of being left waiting for a session resume.
+ * @author MeiCorl
+ */
+class WorkerException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	WorkerException(String message) {
+		super(message);
+	}
+
+	WorkerException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -0,0 +1,70 @@
+package org.meicorl.unikernel.Scheduler;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+	private static final long MILLIS = 1000 * 1000;
+
+	@Test
+	public void emptyHistogramReportsZeros() {
+		double[] r = report(new LatencyHistogram("empty"));
+		for (double v : r)
+			assertEquals(0.0, v, 0.0);
+	}
+
+	@Test
+	public void percentilesAreBucketUpperBounds() {
+		LatencyHistogram h = new LatencyHistogram("mixed");
+		// 990 fast requests of 100 us, in the bucket [64, 128) us
+		for (int i = 0; i < 990; i++)
+			h.record(100 * 1000);
+		// 10 slow ones of 50 ms
+		for (int i = 0; i < 10; i++)
+			h.record(50 * MILLIS);
+
+		double[] r = report(h);
+		assertEquals(1000, r[0], 0.0);
+		assertEquals((990 * 0.1 + 10 * 50) / 1000, r[1], 0.01);
+		assertEquals(0.128, r[2], 0.01);
+		assertEquals(0.128, r[3], 0.01);
+		// the upper bound of the bucket of 50 ms is 65.5 ms, but never above the maximum
+		assertEquals(50.0, r[4], 0.01);
+		assertEquals(50.0, r[5], 0.01);
+	}
+
+	@Test
+	public void percentilesNeverExceedTheMaximum() {
+		LatencyHistogram h = new LatencyHistogram("same");
+		for (int i = 0; i < 100; i++)
+			h.record(MILLIS);
+		double[] r = report(h);
+		assertEquals(1.0, r[2], 0.0);
+		assertEquals(1.0, r[3], 0.0);
+		assertEquals(1.0, r[4], 0.0);
+		assertEquals(1.0, r[5], 0.0);
+	}
+
+	@Test
+	public void negativeDurationsCountAsZero() {
+		LatencyHistogram h = new LatencyHistogram("clock");
+		h.record(-5 * MILLIS);
+		double[] r = report(h);
+		assertEquals(1, r[0], 0.0);
+		assertEquals(0.0, r[1], 0.0);
+		assertEquals(0.0, r[5], 0.0);
+	}
+
+	/**
+	 * @return count, mean, p50, p99, p999 and max of the report
+	 */
+	private static double[] report(LatencyHistogram h) {
+		String[] fields = h.report().trim().split("\\s+");
+		assertEquals(7, fields.length);
+		double[] values = new double[6];
+		for (int i = 0; i < values.length; i++)
+			values[i] = Double.parseDouble(fields[i + 1].replace(',', '.'));
+		return values;
+	}
+}
@@ -0,0 +1,67 @@
+package org.meicorl.unikernel.Scheduler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class ResultCacheTest {
+
+	private static Object[] call(String method, String receiver, String[] paramTypes, String paramValues) {
+		return new Object[] { "app", 3, "org.example.Fib", method, receiver, paramTypes, paramValues };
+	}
+
+	@Test
+	public void equalCallsGiveEqualKeys() {
+		String a = ResultCache.key(call("fib", "{}", new String[] { "int" }, "[30]"), null);
+		String b = ResultCache.key(call("fib", "{}", new String[] { "int" }, "[30]"), null);
+		assertEquals(a, b);
+	}
+
+	@Test
+	public void differentParametersGiveDifferentKeys() {
+		String a = ResultCache.key(call("fib", "{}", new String[] { "int" }, "[30]"), null);
+		String b = ResultCache.key(call("fib", "{}", new String[] { "int" }, "[31]"), null);
+		String c = ResultCache.key(call("fib", "{}", new String[] { "long" }, "[30]"), null);
+		assertFalse(a.equals(b));
+		assertFalse(a.equals(c));
+	}
+
+	@Test
+	public void partsCannotRunIntoEachOther() {
+		// without the length prefixes both would hash "fib{}"
+		String a = ResultCache.key(call("fib", "{}", new String[0], "[]"), null);
+		String b = ResultCache.key(call("fib{", "}", new String[0], "[]"), null);
+		assertFalse(a.equals(b));
+	}
+
+	@Test
+	public void theFileIsPartOfTheKey() {
+		Object[] parts = call("count", "{}", new String[0], "[]");
+		String none = ResultCache.key(parts, null);
+		String one = ResultCache.key(parts, new byte[] { 1, 2, 3 });
+		String other = ResultCache.key(parts, new byte[] { 1, 2, 4 });
+		String empty = ResultCache.key(parts, new byte[0]);
+		assertFalse(none.equals(one));
+		assertFalse(one.equals(other));
+		assertFalse(none.equals(empty));
+		assertEquals(one, ResultCache.key(parts, new byte[] { 1, 2, 3 }));
+	}
+
+	@Test
+	public void storedResultsAreReturned() {
+		String key = ResultCache.key(call("fib", "{}", new String[] { "int" }, "[20]"), null);
+		assertNull(ResultCache.get(key));
+		ResultCache.put(key, "int", "6765");
+		assertArrayEquals(new String[] { "int", "6765" }, ResultCache.get(key));
+	}
+
+	@Test
+	public void failedCallsAreNotCached() {
+		String key = ResultCache.key(call("fib", "{}", new String[] { "int" }, "[-1]"), null);
+		ResultCache.put(key, null, null);
+		assertNull(ResultCache.get(key));
+	}
+}
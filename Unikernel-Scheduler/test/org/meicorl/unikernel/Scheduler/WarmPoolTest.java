@@ -0,0 +1,93 @@
+package org.meicorl.unikernel.Scheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class WarmPoolTest {
+
+	@BeforeClass
+	public static void configure() {
+		// read when the classes are loaded: room for two warm workers, and power-offs are
+		// only queued, so that evicted workers never reach virsh or the database
+		System.setProperty("scheduler.warm.memory", "512");
+		System.setProperty("scheduler.worker.memory", "256");
+		System.setProperty("scheduler.lifecycle.coalesce", "3600000");
+	}
+
+	@After
+	public void empty() {
+		for (String key : new String[] { "a", "b", "c" }) {
+			while (WarmPool.take(key) != null) {
+				// parked by the test
+			}
+		}
+		while (WarmPool.takeSpare() != null) {
+			// parked by the test
+		}
+	}
+
+	private static Unikernel worker(String name) {
+		return new Unikernel(name, "10.0.0." + name.hashCode() % 200, "",
+				ControlMessages.UnikernelStatus_unAvailable);
+	}
+
+	@Test
+	public void overflowEvictsTheOldestWarmWorkerRatherThanASpare() {
+		Unikernel spare = worker("spare");
+		Unikernel a = worker("a");
+		Unikernel b = worker("b");
+		Unikernel c = worker("c");
+		WarmPool.parkSpare(spare);
+		assertTrue(WarmPool.park(a, "a"));
+		assertTrue(WarmPool.park(b, "b"));
+		// the spare is the longest parked, but does not count against the warm capacity
+		assertTrue(WarmPool.park(c, "c"));
+
+		assertNull(WarmPool.take("a"));
+		assertSame(b, WarmPool.take("b"));
+		assertSame(c, WarmPool.take("c"));
+		assertEquals(1, WarmPool.spares());
+		assertSame(spare, WarmPool.takeSpare());
+	}
+
+	@Test
+	public void evictOneLeavesSparesAlone() {
+		Unikernel spare = worker("spare");
+		Unikernel a = worker("a");
+		WarmPool.parkSpare(spare);
+		assertTrue(WarmPool.park(a, "a"));
+
+		assertTrue(WarmPool.evictable());
+		assertTrue(WarmPool.evictOne());
+		assertNull(WarmPool.take("a"));
+
+		assertFalse(WarmPool.evictable());
+		assertFalse(WarmPool.evictOne());
+		assertEquals(1, WarmPool.spares());
+		assertSame(spare, WarmPool.takeSpare());
+	}
+
+	@Test
+	public void takeReturnsTheMostRecentWorkerOfTheAppOnly() {
+		Unikernel spare = worker("spare");
+		Unikernel first = worker("a1");
+		Unikernel second = worker("a2");
+		WarmPool.parkSpare(spare);
+		assertTrue(WarmPool.park(first, "a"));
+		assertTrue(WarmPool.park(second, "a"));
+
+		assertNull(WarmPool.take("b"));
+		assertNull(WarmPool.take(null));
+		assertSame(second, WarmPool.take("a"));
+		assertSame(first, WarmPool.take("a"));
+		assertSame(spare, WarmPool.takeSpare());
+		assertNull(WarmPool.takeSpare());
+	}
+}
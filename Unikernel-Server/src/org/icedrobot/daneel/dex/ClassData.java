@@ -82,10 +82,12 @@ class ClassData {
     private final MethodId[] directMethodsIds;
     private int[] directMethodsFlags;
     private final int[] directMethodsCodeOff;
+    private final Code[] directMethodsCode;
 
     private final MethodId[] virtualMethodsIds;
     private int[] virtualMethodsFlags;
     private final int[] virtualMethodsCodeOff;
+    private final Code[] virtualMethodsCode;
 
     private ClassData(ByteBuffer buffer, DexFile dex, ClassDef classDef) {
         this.dex = dex;
@@ -121,6 +123,7 @@ class ClassData {
         directMethodsIds = new MethodId[directMethodsSize];
         directMethodsFlags = new int[directMethodsSize];
         directMethodsCodeOff = new int[directMethodsSize];
+        directMethodsCode = new Code[directMethodsSize];
         int directMethodsIdx = 0;
         for (int i = 0; i < directMethodsSize; i++) {
             directMethodsIdx += BufferUtil.getULEB128(buffer);
@@ -133,6 +136,7 @@ class ClassData {
         virtualMethodsIds = new MethodId[virtualMethodsSize];
         virtualMethodsFlags = new int[virtualMethodsSize];
         virtualMethodsCodeOff = new int[virtualMethodsSize];
+        virtualMethodsCode = new Code[virtualMethodsSize];
         int virtualMethodsIdx = 0;
         for (int i = 0; i < virtualMethodsSize; i++) {
             virtualMethodsIdx += BufferUtil.getULEB128(buffer);
@@ -163,6 +167,28 @@ class ClassData {
         return code;
     }
 
+    /**
+     * Returns the code object of a method of this class. The code is parsed
+     * once and kept with this class data, so that all visitors replay the
+     * same decoded instructions.
+     * 
+     * @param codes The cached code objects of the methods.
+     * @param i The index of the method.
+     * @param codeOff The given offset into the data area.
+     * @param method The method identifier of the method the code belongs to.
+     * @param flags The access flags of the method the code belongs to.
+     * @return The code object or {@code null} if there is none.
+     */
+    private Code getCode(Code[] codes, int i, int codeOff, MethodId method,
+            int flags) {
+        Code code = codes[i];
+        if (code == null) {
+            code = getCode(codeOff, method, flags);
+            codes[i] = code;
+        }
+        return code;
+    }
+
     /**
      * Allows the given visitor to visit this class data object.
      * 
@@ -191,7 +217,7 @@ class ClassData {
         for (int i = 0; i < directMethodsSize; i++) {
             int access = directMethodsFlags[i];
             MethodId method = directMethodsIds[i];
-            Code code = ((skip & DexReader.SKIP_CODE) == 0) ? getCode(directMethodsCodeOff[i], method, access) : null;
+            Code code = ((skip & DexReader.SKIP_CODE) == 0) ? getCode(directMethodsCode, i, directMethodsCodeOff[i], method, access) : null;
             acceptMethod(visitor, access, method, code, skip);
         }
 
@@ -199,7 +225,7 @@ class ClassData {
         for (int i = 0; i < virtualMethodsSize; i++) {
             int access = virtualMethodsFlags[i];
             MethodId method = virtualMethodsIds[i];
-            Code code = ((skip & DexReader.SKIP_CODE) == 0) ? getCode(virtualMethodsCodeOff[i], method, access) : null;
+            Code code = ((skip & DexReader.SKIP_CODE) == 0) ? getCode(virtualMethodsCode, i, virtualMethodsCodeOff[i], method, access) : null;
             acceptMethod(visitor, access, method, code, skip);
         }
     }
@@ -37,6 +37,7 @@
 
 package org.icedrobot.daneel.dex;
 
+import java.lang.ref.SoftReference;
 import java.nio.ByteBuffer;
 
 /**
@@ -143,37 +144,27 @@ class ClassDef {
         if (classDataOff == 0)
             return null;
 
-        /*
-         * XXX Should we at some point decide to use caching for data object,
-         * that is how it is done. Note that the method doesn't need to be
-         * synchronized, we are aware of the race-condition but can safely
-         * ignore it in this case.
-
-        // Retrieve previously parsed and cached object.
+        // Retrieve previously parsed and cached object. Note that the method
+        // doesn't need to be synchronized, we are aware of the race-condition
+        // but can safely ignore it in this case.
         ClassData classData = (cachedClassData == null) ? null
                 : cachedClassData.get();
 
         // In case there is no previously cached object (or it was collected),
-        // we parse the data in a lazy fashion and cache it.
+        // we parse the data in a lazy fashion and cache it. The class data
+        // keeps the decoded code of its methods.
         if (classData == null) {
             ByteBuffer buf = dex.getDataBuffer(classDataOff);
             classData = ClassData.parse(buf, dex, this);
             cachedClassData = new SoftReference<ClassData>(classData);
         }
 
-        * ... but we do not use caching at the moment.
-        */
-
-        // Parse associated class_data_item structure.
-        ByteBuffer buf = dex.getDataBuffer(classDataOff);
-        ClassData classData = ClassData.parse(buf, dex, this);
-
         // Return the non-null object.
         return classData;
     }
 
     /** Cache for parsed class data object, allowed to be collected. */
-    //private SoftReference<ClassData> cachedClassData;
+    private volatile SoftReference<ClassData> cachedClassData;
 
     /**
      * Returns the list of initial values for static fields. The underlying
@@ -39,10 +39,8 @@ package org.icedrobot.daneel.dex;
 
 import java.nio.ByteBuffer;
 import java.nio.ShortBuffer;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 
 import org.icedrobot.daneel.dex.DebugInfo.LineNumber;
 import org.icedrobot.daneel.dex.DebugInfo.LocalVariable;
@@ -87,10 +85,12 @@ class Code {
 
     private final int insnsSize;
 
-    private final ShortBuffer insns;
+    private final DecodedInsns decodedInsns;
 
     private final List<TryCatchInfo> tryCatchInfos;
 
+    private DebugInfo debugInfo;
+
     private Code(ByteBuffer buffer, DexFile dex, MethodId method, int flags) {
         this.dex = dex;
         this.method = method;
@@ -102,12 +102,12 @@ class Code {
         debugInfoOff = buffer.getInt();
         insnsSize = buffer.getInt();
 
-        // Keep a separate buffer for the instructions array.
-        insns = (ShortBuffer) buffer.asShortBuffer().limit(insnsSize);
+        labels = new Label[insnsSize];
+        endLabel.index = labelCount++;
 
-        // Find labels inside the instruction stream and also parse possible
-        // in-code structures at such positions.
-        findLabels(buffer);
+        // Decode the instruction stream once, finding all labels and parsing
+        // in-code structures along the way.
+        decodedInsns = decodeInsns(buffer);
 
         // Skip the instructions array.
         buffer.position(buffer.position() + 2 * insnsSize);
@@ -149,6 +149,9 @@ class Code {
                 }
             }
         }
+
+        // All labels of the instructions are known now.
+        decodedInsns.bindLabels(labels);
     }
 
     /**
@@ -181,17 +184,20 @@ class Code {
 
     /**
      * Returns the debug information associated with this code. The underlying
-     * implementation uses a lazy parsing approach.
+     * implementation uses a lazy parsing approach, the debug information is
+     * parsed once because parsing adds labels to this code.
      * 
      * @return The debug info object or {@code null} if there is none.
      */
-    public DebugInfo getDebugInfo() {
+    public synchronized DebugInfo getDebugInfo() {
         if (debugInfoOff == 0)
             return null;
 
         // Parse any associated debug information.
-        ByteBuffer buf = dex.getDataBuffer(debugInfoOff);
-        DebugInfo debugInfo = DebugInfo.parse(buf, dex, this);
+        if (debugInfo == null) {
+            ByteBuffer buf = dex.getDataBuffer(debugInfoOff);
+            debugInfo = DebugInfo.parse(buf, dex, this);
+        }
 
         // Return the non-null object.
         return debugInfo;
@@ -211,8 +217,9 @@ class Code {
             visitor.visitTryCatch(tryCatch.startLabel, tryCatch.endLabel,
                     tryCatch.handlerLabel, tryCatch.type);
 
-        // Visit instructions.
-        acceptInsns(visitor);
+        // Visit instructions, followed by the end label.
+        decodedInsns.accept(visitor);
+        visitor.visitLabel(getEndLabel());
 
         // Visit debug information if available and requested.
         if (debugInfoOff != 0 && (skip & DexReader.SKIP_DEBUGINFO) == 0) {
@@ -226,14 +233,23 @@ class Code {
     }
 
     /**
-     * Allows the given visitor to visit all instructions and labels contained
-     * within this code object.
+     * Decodes all instructions contained within this code object into their
+     * compact representation. All branch targets get a label and all
+     * encountered in-code data structures are parsed.
      * 
-     * @param v The given DEX method visitor object.
+     * @param buffer The original buffer positioned at the instructions array,
+     *            needed for decoding of in-code data structures.
+     * @return The decoded instructions, labels are bound by the caller.
      * @throws DexParseException In case any instruction cannot be decoded.
      */
-    private void acceptInsns(DexMethodVisitor v) {
-        ShortBuffer insns = this.insns.duplicate();
+    private DecodedInsns decodeInsns(ByteBuffer buffer) {
+        ShortBuffer insns = (ShortBuffer) buffer.asShortBuffer().limit(
+                insnsSize);
+        DecodedInsns v = new DecodedInsns(insnsSize / 2);
+
+        // Mark the buffer so we can always find in-code data structures which
+        // are referenced relative to the bytecode address.
+        buffer.mark();
 
         // Iterate over all 16-bit code units.
         while (insns.hasRemaining()) {
@@ -260,16 +276,18 @@ class Code {
             MethodId method;
             Label label;
 
-            // Visit a label at the current position.
-            if ((label = labelMap.get(pos)) != null)
-                v.visitLabel(label);
+            // Record the instruction at the current position.
+            v.at(pos);
 
             // Switch over all possible opcodes.
             switch (op) {
             case NOP:
                 // Skip possible in-code data structures.
-                if (b1 != 0 && skipInCodeData(insns, pos))
+                if (b1 != 0 && (i = inCodeDataLength(insns, pos)) != 0) {
+                    insns.position(pos + i);
+                    v.inCodeData();
                     break;
+                }
                 // fall-through;
 
             case RETURN_VOID:
@@ -454,9 +472,7 @@ class Code {
                 // Format 31t: AA|op BBBBlo BBBBhi
                 // Syntax: op vAA, +BBBBBBBB
                 i = u2 | (s3 << 16);
-                label = getLabel(pos + i);
-                if (!(label instanceof FillArrayDataLabel))
-                    throw new DexParseException("Mistyped branch target.");
+                label = putInCodeData(op, pos, pos + i, buffer);
                 FillArrayDataLabel fadl = (FillArrayDataLabel) label;
                 ByteBuffer data = fadl.data.duplicate().order(insns.order());
                 v.visitInstrFillArrayData(op, b1, fadl.elementWidth, fadl.size,
@@ -468,7 +484,7 @@ class Code {
                 // Syntax: op +AA
                 // We need to decode AA separately here because it is used as
                 // a signed value in this context, whereas b1 is unsigned.
-                label = getLabel(pos + (s1 >> 8));
+                label = putLabel(pos + (s1 >> 8), true);
                 v.visitInstrGoto(op, label);
                 break;
 
@@ -478,7 +494,7 @@ class Code {
                 if (b1 != 0)
                     throw new DexParseException("Malformed instruction word: "
                             + String.format("0x%04x", s1));
-                label = getLabel(pos + s2);
+                label = putLabel(pos + s2, true);
                 v.visitInstrGoto(op, label);
                 break;
 
@@ -486,9 +502,7 @@ class Code {
                 // Format 31t: AA|op BBBBlo BBBBhi
                 // Syntax: op vAA, +BBBBBBBB
                 i = u2 | (s3 << 16);
-                label = getLabel(pos + i);
-                if (!(label instanceof PackedSwitchLabel))
-                    throw new DexParseException("Mistyped branch target.");
+                label = putInCodeData(op, pos, pos + i, buffer);
                 PackedSwitchLabel psl = (PackedSwitchLabel) label;
                 v.visitInstrPackedSwitch(op, b1, psl.firstKey, psl.targets);
                 break;
@@ -497,9 +511,7 @@ class Code {
                 // Format 31t: AA|op BBBBlo BBBBhi
                 // Syntax: op vAA, +BBBBBBBB
                 i = u2 | (s3 << 16);
-                label = getLabel(pos + i);
-                if (!(label instanceof SparseSwitchLabel))
-                    throw new DexParseException("Mistyped branch target.");
+                label = putInCodeData(op, pos, pos + i, buffer);
                 SparseSwitchLabel ssl = (SparseSwitchLabel) label;
                 v.visitInstrSparseSwitch(op, b1, ssl.keys, ssl.targets);
                 break;
@@ -512,7 +524,7 @@ class Code {
             case IF_LEZ:
                 // Format 21t: AA|op BBBB
                 // Syntax: op vAA, +BBBB
-                label = getLabel(pos + s2);
+                label = putLabel(pos + s2, true);
                 v.visitInstrIfTestZ(op, b1, label);
                 break;
 
@@ -524,7 +536,7 @@ class Code {
             case IF_LE:
                 // Format 22t: B|A|op CCCC
                 // Syntax: op vA, vB, +CCCC
-                label = getLabel(pos + s2);
+                label = putLabel(pos + s2, true);
                 v.visitInstrIfTest(op, n2, n1, label);
                 break;
 
@@ -732,8 +744,9 @@ class Code {
             }
         }
 
-        // Visit the end label after all instructions.
-        v.visitLabel(getEndLabel());
+        // Reset the buffer so that parsing can continue.
+        buffer.reset();
+        return v;
     }
 
     /** The array associating bytecode instructions to their lengths. */
@@ -769,8 +782,11 @@ class Code {
         tryCatchInfos.add(info);
     }
 
-    /** The map associating bytecode positions with labels. */
-    private final Map<Integer, Label> labelMap = new HashMap<Integer, Label>();
+    /** The labels indexed by bytecode position, null where there is none. */
+    private final Label[] labels;
+
+    /** The number of labels created so far, see {@link Label#getIndex()}. */
+    private int labelCount;
 
     /** The end label used to mark the address after the last instruction. */
     private final Label endLabel = new Label() {
@@ -786,22 +802,6 @@ class Code {
         }
     };
 
-    /**
-     * Returns the label associated with the given bytecode position.
-     * 
-     * @param pos The given bytecode position in 16-bit code units.
-     * @return The associated label, never returns {@code null}.
-     * @throws DexParseException In case no label can be found.
-     */
-    private Label getLabel(int pos) {
-        if (pos < 0 || pos >= insnsSize)
-            throw new DexParseException("Label position out of range: " + pos);
-        Label label = labelMap.get(pos);
-        if (label == null)
-            throw new DexParseException("No label at branch target: " + pos);
-        return label;
-    }
-
     /**
      * Returns the label marking the end of the instruction stream. The label
      * actually points to the address after the last instruction.
@@ -824,12 +824,16 @@ class Code {
      * @return The associated label, never returns {@code null}.
      */
     Label putLabel(int pos, boolean jumpTarget) {
+        // Try blocks and local variables may end after the last instruction.
+        if (pos == insnsSize && !jumpTarget)
+            return endLabel;
         if (pos < 0 || pos >= insnsSize)
             throw new DexParseException("Label position out of range: " + "pos=" + pos + "  insnsSize=" + insnsSize);
-        Label label = labelMap.get(pos);
+        Label label = labels[pos];
         if (label == null) {
             label = new DebugLabel(pos, jumpTarget);
-            labelMap.put(pos, label);
+            label.index = labelCount++;
+            labels[pos] = label;
         } else {
             if (jumpTarget & !label.isJumpTarget()) {
                 if (!(label instanceof DebugLabel))
@@ -851,129 +855,81 @@ class Code {
     private void putLabel(int pos, Label label) {
         if (pos < 0 || pos >= insnsSize)
             throw new DexParseException("Label position out of range: " + pos);
-        if (labelMap.containsKey(pos))
+        if (labels[pos] != null)
             throw new DexParseException("Duplicate label at branch target: "
                     + pos);
-        labelMap.put(pos, label);
+        label.index = labelCount++;
+        labels[pos] = label;
     }
 
     /**
-     * Finds all branch targets by iterating over the bytecode instructions.
-     * This method also parses all encountered in-code data structures.
+     * Adds the label of an in-code data structure referenced by the given
+     * instruction, parsing the structure unless an earlier instruction already
+     * referenced it.
      * 
-     * @param buffer The original buffer needed for decoding of in-code data
-     *            structures.
+     * @param op The opcode of the referencing instruction.
+     * @param pos The bytecode address of the referencing instruction.
+     * @param target The bytecode address of the in-code data.
+     * @param buffer The original buffer, marked at the instructions array.
+     * @return The associated label, never returns {@code null}.
+     * @throws DexParseException In case the target is no matching in-code data.
      */
-    private void findLabels(ByteBuffer buffer) {
-        ShortBuffer insns = this.insns.duplicate();
-
-        // Mark the buffer so we can always find in-code data structures which
-        // are referenced relative to the bytecode address.
-        buffer.mark();
-
-        // Iterate over all 16-bit code units.
-        while (insns.hasRemaining()) {
-            int pos = insns.position();
-            int s1 = insns.get();
-
-            // Read and decode further code units.
-            Opcode op = Opcode.getOpcode(s1 & 0xff);
-            int codeLength = OP_LENGTH[op.ordinal()];
-            int s2 = (codeLength >= 2) ? insns.get() : 0;
-            int s3 = (codeLength >= 3) ? insns.get() : 0;
-            int off;
-
-            // Skip all further code units.
-            if (codeLength > 3)
-                insns.position(insns.position() + codeLength - 3);
-
-            // Switch over all opcodes with a branch target.
-            switch (op) {
-            case NOP:
-                // Skip in-code data structures.
-                skipInCodeData(insns, pos);
-                break;
-
-            case GOTO:
-                // Format 10t: AA|op
-                // Syntax: op +AA
-                putLabel(pos + (s1 >> 8), true);
-                break;
-
-            case GOTO_16:
-                // Format 20t: 00|op AAAA
-                // Syntax: op +AAAA
-                // fall-through;
-
-            case IF_EQ:
-            case IF_NE:
-            case IF_LT:
-            case IF_GE:
-            case IF_GT:
-            case IF_LE:
-                // Format 22t: B|A|op CCCC
-                // Syntax: op vA, vB, +CCCC
-                // fall-through;
-
-            case IF_EQZ:
-            case IF_NEZ:
-            case IF_LTZ:
-            case IF_GEZ:
-            case IF_GTZ:
-            case IF_LEZ:
-                // Format 21t: AA|op BBBB
-                // Syntax: op vAA, +BBBB
-                putLabel(pos + s2, true);
-                break;
-
-            case FILL_ARRAY_DATA:
-                // Format 31t: AA|op BBBBlo BBBBhi
-                // Syntax: op vAA, +BBBBBBBB
-                off = (s2 & 0xffff) | (s3 << 16);
-                buffer.position(buffer.position() + (pos + off) * 2);
-                putLabel(pos + off, new FillArrayDataLabel(buffer));
-                buffer.reset();
-                break;
-
-            case PACKED_SWITCH:
-                // Format 31t: AA|op BBBBlo BBBBhi
-                // Syntax: op vAA, +BBBBBBBB
-                off = (s2 & 0xffff) | (s3 << 16);
-                buffer.position(buffer.position() + (pos + off) * 2);
-                putLabel(pos + off, new PackedSwitchLabel(buffer, pos));
-                buffer.reset();
-                break;
-
-            case SPARSE_SWITCH:
-                // Format 31t: AA|op BBBBlo BBBBhi
-                // Syntax: op vAA, +BBBBBBBB
-                off = (s2 & 0xffff) | (s3 << 16);
-                buffer.position(buffer.position() + (pos + off) * 2);
-                putLabel(pos + off, new SparseSwitchLabel(buffer, pos));
-                buffer.reset();
-                break;
-            }
+    private Label putInCodeData(Opcode op, int pos, int target,
+            ByteBuffer buffer) {
+        if (target < 0 || target >= insnsSize)
+            throw new DexParseException("Label position out of range: "
+                    + target);
+        Label label = labels[target];
+        if (label == null) {
+            buffer.position(buffer.position() + target * 2);
+            if (op == Opcode.FILL_ARRAY_DATA)
+                label = new FillArrayDataLabel(buffer);
+            else if (op == Opcode.PACKED_SWITCH)
+                label = new PackedSwitchLabel(buffer, pos);
+            else
+                label = new SparseSwitchLabel(buffer, pos);
+            buffer.reset();
+            putLabel(target, label);
         }
-
-        // Reset the buffer so that parsing can continue.
-        buffer.reset();
+        boolean typed;
+        if (op == Opcode.FILL_ARRAY_DATA)
+            typed = (label instanceof FillArrayDataLabel);
+        else if (op == Opcode.PACKED_SWITCH)
+            typed = (label instanceof PackedSwitchLabel);
+        else
+            typed = (label instanceof SparseSwitchLabel);
+        if (!typed)
+            throw new DexParseException("Mistyped branch target.");
+        return label;
     }
 
     /**
-     * Skips possible in-code data structures inside the instructions array. The
-     * given buffer will be positioned after the in-code data.
+     * Computes the length of a possible in-code data structure inside the
+     * instructions array from its header.
      * 
      * @param insns The buffer for the instructions array.
      * @param pos The position at which in-code data is suspeced.
-     * @return True if skipping was sucessfull, false otherwise.
+     * @return The length in 16-bit code units, or 0 if there is none.
      */
-    private boolean skipInCodeData(ShortBuffer insns, int pos) {
-        Label label = labelMap.get(pos);
-        if (label instanceof InCodeDataLabel) {
-            insns.position(pos + ((InCodeDataLabel) label).length());
-            return true;
-        } else
-            return false;
+    private static int inCodeDataLength(ShortBuffer insns, int pos) {
+        int size;
+        switch (insns.get(pos)) {
+        case 0x0100:
+            // Format of packed-switch-payload.
+            size = insns.get(pos + 1);
+            return (size * 2) + 4;
+        case 0x0200:
+            // Format of sparse-switch-payload.
+            size = insns.get(pos + 1);
+            return (size * 4) + 2;
+        case 0x0300:
+            // Format of fill-array-data-payload.
+            int elementWidth = insns.get(pos + 1);
+            size = (insns.get(pos + 2) & 0xffff) | (insns.get(pos + 3) << 16);
+            return (size * elementWidth + 1) / 2 + 4;
+        default:
+            return 0;
+        }
     }
 
     /**
@@ -1001,48 +957,36 @@ class Code {
      * In-code data structure for packed-switch instructions.
      */
     private class PackedSwitchLabel extends InCodeDataLabel {
-        private final int size;
         final int firstKey;
         final Label[] targets;
 
         public PackedSwitchLabel(ByteBuffer buffer, int pos) {
             if (buffer.getShort() != 0x0100)
                 throw new DexParseException("Unidentified in-code data.");
-            size = buffer.getShort();
+            int size = buffer.getShort();
             firstKey = buffer.getInt();
             targets = new Label[size];
             for (int i = 0; i < size; i++)
                 targets[i] = putLabel(pos + buffer.getInt(), true);
         }
-
-        @Override
-        public int length() {
-            return (size * 2) + 4;
-        }
     };
 
     /**
      * In-code data structure for sparse-switch instructions.
      */
     private class SparseSwitchLabel extends InCodeDataLabel {
-        private final int size;
         final int[] keys;
         final Label[] targets;
 
         public SparseSwitchLabel(ByteBuffer buffer, int pos) {
             if (buffer.getShort() != 0x0200)
                 throw new DexParseException("Unidentified in-code data.");
-            size = buffer.getShort();
+            int size = buffer.getShort();
             keys = BufferUtil.getInts(buffer, size);
             targets = new Label[size];
             for (int i = 0; i < size; i++)
                 targets[i] = putLabel(pos + buffer.getInt(), true);
         }
-
-        @Override
-        public int length() {
-            return (size * 4) + 2;
-        }
     };
 
     /**
@@ -1060,20 +1004,13 @@ class Code {
             size = buffer.getInt();
             data = (ByteBuffer) buffer.slice().limit(size * elementWidth);
         }
-
-        @Override
-        public int length() {
-            return (size * elementWidth + 1) / 2 + 4;
-        }
     };
 
     /**
-     * A label as defined by the interface, but representing in-code data of a
-     * particular length that can be skipped.
+     * A label as defined by the interface, but representing in-code data that
+     * is skipped by the instruction stream.
      */
     static abstract class InCodeDataLabel extends Label {
-        public abstract int length();
-
         @Override
         public boolean isJumpTarget() {
             return false;
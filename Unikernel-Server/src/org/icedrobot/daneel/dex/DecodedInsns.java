@@ -0,0 +1,426 @@
+/*
+ * Daneel - Dalvik to Java bytecode compiler
+ * Copyright (C) 2011  IcedRobot team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * This file is subject to the "Classpath" exception:
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under terms
+ * of your choice, provided that you also meet, for each linked independent
+ * module, the terms and conditions of the license of that module.  An
+ * independent module is a module which is not derived from or based on
+ * this library.  If you modify this library, you may extend this exception
+ * to your version of the library, but you are not obligated to do so.  If
+ * you do not wish to do so, delete this exception statement from your
+ * version.
+ */
+
+package org.icedrobot.daneel.dex;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The instructions of a {@link Code} object, decoded once when the code is
+ * parsed and replayed to every visitor afterwards. The instructions are kept
+ * as parallel arrays: the kind of visit, the opcode, up to three integer
+ * operands, one resolved operand (string, type, member, label or in-code
+ * data), the bytecode address and the label at that address. Keep
+ * package-private to hide internal API.
+ * 
+ * During decoding this object is the visitor the instructions are visited
+ * with, it only records them.
+ */
+final class DecodedInsns implements DexMethodVisitor {
+
+    // kinds of visits
+    private static final byte INSTR = 0;
+    private static final byte OP = 1;
+    private static final byte UNARY_OP = 2;
+    private static final byte BIN_OP = 3;
+    private static final byte BIN_OP_LITERAL = 4;
+    private static final byte CONST_STRING = 5;
+    private static final byte CONST_U32 = 6;
+    private static final byte CONST_U64 = 7;
+    private static final byte CLASS = 8;
+    private static final byte INSTANCEOF = 9;
+    private static final byte GOTO = 10;
+    private static final byte IF_TEST_Z = 11;
+    private static final byte IF_TEST = 12;
+    private static final byte PACKED_SWITCH = 13;
+    private static final byte SPARSE_SWITCH = 14;
+    private static final byte ARRAY = 15;
+    private static final byte FIELD = 16;
+    private static final byte METHOD = 17;
+    private static final byte FILLED_NEW_ARRAY = 18;
+    private static final byte NEW_ARRAY = 19;
+    private static final byte FILL_ARRAY_DATA = 20;
+    private static final byte IN_CODE_DATA = 21;   // only the label is visited
+
+    private int size;
+    private byte[] kinds;
+    private Opcode[] opcodes;
+    private int[] operands;       // three per instruction
+    private Object[] references;
+    private int[] addresses;
+    private Label[] labels;       // bound once all labels are known
+
+    /** The address of the instruction being decoded. */
+    private int address;
+
+    /**
+     * Creates an empty instruction list.
+     * 
+     * @param capacity The expected number of instructions.
+     */
+    DecodedInsns(int capacity) {
+        capacity = Math.max(capacity, 4);
+        kinds = new byte[capacity];
+        opcodes = new Opcode[capacity];
+        operands = new int[3 * capacity];
+        references = new Object[capacity];
+        addresses = new int[capacity];
+    }
+
+    /**
+     * Sets the address of the next instruction to be recorded.
+     * 
+     * @param address The bytecode address in 16-bit code units.
+     */
+    void at(int address) {
+        this.address = address;
+    }
+
+    /**
+     * Records in-code data at the current address, only its label will be
+     * visited.
+     */
+    void inCodeData() {
+        add(IN_CODE_DATA, Opcode.NOP, 0, 0, 0, null);
+    }
+
+    /**
+     * Binds the labels to the recorded instructions, after all labels visited
+     * before the instructions are known. Trims the arrays.
+     * 
+     * @param labelsByAddress The labels indexed by bytecode address.
+     */
+    void bindLabels(Label[] labelsByAddress) {
+        kinds = Arrays.copyOf(kinds, size);
+        opcodes = Arrays.copyOf(opcodes, size);
+        operands = Arrays.copyOf(operands, 3 * size);
+        references = Arrays.copyOf(references, size);
+        addresses = Arrays.copyOf(addresses, size);
+        labels = new Label[size];
+        for (int i = 0; i < size; i++)
+            labels[i] = labelsByAddress[addresses[i]];
+    }
+
+    /**
+     * Returns the number of recorded instructions, in-code data included.
+     * 
+     * @return The number of instructions.
+     */
+    int size() {
+        return size;
+    }
+
+    private void add(byte kind, Opcode opcode, int a, int b, int c,
+            Object reference) {
+        if (size == kinds.length) {
+            int capacity = 2 * size;
+            kinds = Arrays.copyOf(kinds, capacity);
+            opcodes = Arrays.copyOf(opcodes, capacity);
+            operands = Arrays.copyOf(operands, 3 * capacity);
+            references = Arrays.copyOf(references, capacity);
+            addresses = Arrays.copyOf(addresses, capacity);
+        }
+        kinds[size] = kind;
+        opcodes[size] = opcode;
+        operands[3 * size] = a;
+        operands[3 * size + 1] = b;
+        operands[3 * size + 2] = c;
+        references[size] = reference;
+        addresses[size] = address;
+        size++;
+    }
+
+    /**
+     * Replays the recorded instructions and the labels in front of them to
+     * the given visitor.
+     * 
+     * @param v The given DEX method visitor object.
+     */
+    void accept(DexMethodVisitor v) {
+        for (int i = 0; i < size; i++) {
+            if (labels[i] != null)
+                v.visitLabel(labels[i]);
+
+            Opcode op = opcodes[i];
+            int a = operands[3 * i];
+            int b = operands[3 * i + 1];
+            int c = operands[3 * i + 2];
+            Object reference = references[i];
+            String[] member;
+            switch (kinds[i]) {
+            case INSTR:
+                v.visitInstr(op);
+                break;
+            case OP:
+                v.visitInstrOp(op, a);
+                break;
+            case UNARY_OP:
+                v.visitInstrUnaryOp(op, a, b);
+                break;
+            case BIN_OP:
+                v.visitInstrBinOp(op, a, b, c);
+                break;
+            case BIN_OP_LITERAL:
+                v.visitInstrBinOpAndLiteral(op, a, b, c);
+                break;
+            case CONST_STRING:
+                v.visitInstrConstString(op, a, (String) reference);
+                break;
+            case CONST_U32:
+                v.visitInstrConstU32(op, a, b);
+                break;
+            case CONST_U64:
+                v.visitInstrConstU64(op, a, ((long) b << 32) | (c & 0xffffffffL));
+                break;
+            case CLASS:
+                v.visitInstrClass(op, a, (String) reference);
+                break;
+            case INSTANCEOF:
+                v.visitInstrInstanceof(op, a, b, (String) reference);
+                break;
+            case GOTO:
+                v.visitInstrGoto(op, (Label) reference);
+                break;
+            case IF_TEST_Z:
+                v.visitInstrIfTestZ(op, a, (Label) reference);
+                break;
+            case IF_TEST:
+                v.visitInstrIfTest(op, a, b, (Label) reference);
+                break;
+            case PACKED_SWITCH:
+                v.visitInstrPackedSwitch(op, a, b, (Label[]) reference);
+                break;
+            case SPARSE_SWITCH:
+                Object[] sparse = (Object[]) reference;
+                v.visitInstrSparseSwitch(op, a, (int[]) sparse[0],
+                        (Label[]) sparse[1]);
+                break;
+            case ARRAY:
+                v.visitInstrArray(op, a, b, c);
+                break;
+            case FIELD:
+                member = (String[]) reference;
+                v.visitInstrField(op, a, b, member[0], member[1], member[2]);
+                break;
+            case METHOD:
+                member = (String[]) reference;
+                v.visitInstrMethod(op, a, b, c, member[0], member[1], member[2]);
+                break;
+            case FILLED_NEW_ARRAY:
+                v.visitInstrFilledNewArray(op, a, b, c, (String) reference);
+                break;
+            case NEW_ARRAY:
+                v.visitInstrNewArray(op, a, b, (String) reference);
+                break;
+            case FILL_ARRAY_DATA:
+                // Every visitor reads the data from a buffer of its own.
+                ByteBuffer data = (ByteBuffer) reference;
+                v.visitInstrFillArrayData(op, a, b, c,
+                        data.duplicate().order(data.order()));
+                break;
+            case IN_CODE_DATA:
+                break;
+            default:
+                throw new AssertionError();
+            }
+        }
+    }
+
+    @Override
+    public void visitInstr(Opcode opcode) {
+        add(INSTR, opcode, 0, 0, 0, null);
+    }
+
+    @Override
+    public void visitInstrOp(Opcode opcode, int srcOrDst) {
+        add(OP, opcode, srcOrDst, 0, 0, null);
+    }
+
+    @Override
+    public void visitInstrUnaryOp(Opcode opcode, int vdest, int vsrc) {
+        add(UNARY_OP, opcode, vdest, vsrc, 0, null);
+    }
+
+    @Override
+    public void visitInstrBinOp(Opcode opcode, int vdest, int vsrc1, int vsrc2) {
+        add(BIN_OP, opcode, vdest, vsrc1, vsrc2, null);
+    }
+
+    @Override
+    public void visitInstrBinOpAndLiteral(Opcode opcode, int vdest, int vsrc,
+            int value) {
+        add(BIN_OP_LITERAL, opcode, vdest, vsrc, value, null);
+    }
+
+    @Override
+    public void visitInstrConstString(Opcode opcode, int vdest, String value) {
+        add(CONST_STRING, opcode, vdest, 0, 0, value);
+    }
+
+    @Override
+    public void visitInstrConstU32(Opcode opcode, int vdest, int value) {
+        add(CONST_U32, opcode, vdest, value, 0, null);
+    }
+
+    @Override
+    public void visitInstrConstU64(Opcode opcode, int vdest, long value) {
+        add(CONST_U64, opcode, vdest, (int) (value >>> 32), (int) value, null);
+    }
+
+    @Override
+    public void visitInstrClass(Opcode opcode, int vsrcOrDest, String type) {
+        add(CLASS, opcode, vsrcOrDest, 0, 0, type);
+    }
+
+    @Override
+    public void visitInstrInstanceof(Opcode opcode, int vdest, int vsrc,
+            String type) {
+        add(INSTANCEOF, opcode, vdest, vsrc, 0, type);
+    }
+
+    @Override
+    public void visitInstrGoto(Opcode opcode, Label label) {
+        add(GOTO, opcode, 0, 0, 0, label);
+    }
+
+    @Override
+    public void visitInstrIfTestZ(Opcode opcode, int vsrc, Label label) {
+        add(IF_TEST_Z, opcode, vsrc, 0, 0, label);
+    }
+
+    @Override
+    public void visitInstrIfTest(Opcode opcode, int vsrc1, int vsrc2,
+            Label label) {
+        add(IF_TEST, opcode, vsrc1, vsrc2, 0, label);
+    }
+
+    @Override
+    public void visitInstrPackedSwitch(Opcode opcode, int vsrc, int firstKey,
+            Label[] targets) {
+        add(PACKED_SWITCH, opcode, vsrc, firstKey, 0, targets);
+    }
+
+    @Override
+    public void visitInstrSparseSwitch(Opcode opcode, int vsrc, int[] keys,
+            Label[] targets) {
+        add(SPARSE_SWITCH, opcode, vsrc, 0, 0, new Object[] { keys, targets });
+    }
+
+    @Override
+    public void visitInstrArray(Opcode opcode, int vsrcOrDest, int varray,
+            int vindex) {
+        add(ARRAY, opcode, vsrcOrDest, varray, vindex, null);
+    }
+
+    @Override
+    public void visitInstrField(Opcode opcode, int vsrcOrDest, int vref,
+            String owner, String name, String desc) {
+        add(FIELD, opcode, vsrcOrDest, vref, 0,
+                new String[] { owner, name, desc });
+    }
+
+    @Override
+    public void visitInstrMethod(Opcode opcode, int num, int va, int vpacked,
+            String owner, String name, String desc) {
+        add(METHOD, opcode, num, va, vpacked,
+                new String[] { owner, name, desc });
+    }
+
+    @Override
+    public void visitInstrFilledNewArray(Opcode opcode, int num, int va,
+            int vpacked, String type) {
+        add(FILLED_NEW_ARRAY, opcode, num, va, vpacked, type);
+    }
+
+    @Override
+    public void visitInstrNewArray(Opcode opcode, int vdest, int vsize,
+            String type) {
+        add(NEW_ARRAY, opcode, vdest, vsize, 0, type);
+    }
+
+    @Override
+    public void visitInstrFillArrayData(Opcode opcode, int vsrc,
+            int elementWidth, int elementNumber, ByteBuffer data) {
+        add(FILL_ARRAY_DATA, opcode, vsrc, elementWidth, elementNumber, data);
+    }
+
+    // Only instructions are recorded.
+
+    @Override
+    public DexAnnotationVisitor visitAnnotation(int visibility, String type) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public DexAnnotationVisitor visitParameterAnnotation(int parameter,
+            int visibility, String type) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void visitCode(int registers, int ins, int outs) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void visitLabel(Label label) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void visitLineNumber(String source, int line, Label start) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void visitLocalVariable(String name, String desc, Label start,
+            Label end, int reg) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void visitTryCatch(Label start, Label end, Label handler,
+            String type) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void visitEnd() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -46,8 +46,10 @@ import java.nio.ByteOrder;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
 import org.icedrobot.daneel.util.BufferUtil;
 
@@ -264,6 +266,16 @@ public class DexFile implements DexReader {
         return buffer;
     }
 
+    /**
+     * Returns the descriptors of all classes defined in this DEX file, e.g.
+     * <code>Ljava/lang/Object;</code>.
+     * 
+     * @return The unmodifiable set of class descriptors.
+     */
+    public Set<String> getClassNames() {
+        return Collections.unmodifiableSet(classDefs.keySet());
+    }
+
     @Override
     public String toString() {
         return header.toString();
@@ -42,6 +42,20 @@ package org.icedrobot.daneel.dex;
  */
 public abstract class Label {
 
+    /** The number of this label within its code, assigned by {@link Code}. */
+    int index = -1;
+
+    /**
+     * Returns the number of this label within the code of its method. The
+     * labels of a method are numbered from 0 upwards, so visitors can keep
+     * information about labels in arrays indexed by this number.
+     * 
+     * @return The label number.
+     */
+    public int getIndex() {
+        return index;
+    }
+
     /**
      * Checks whether this label is used as a jump target for any instruction in
      * the code it is associated with.
@@ -40,6 +40,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.jar.JarFile;
 import java.util.zip.ZipEntry;
 
@@ -49,7 +50,8 @@ import org.icedrobot.daneel.dex.DexFile;
 /**
  * This class reads the contents of an APK file. Those APK files are actually
  * JAR files which also contain resources and classes, but with all classes
- * packed into one DEX file within the archive.
+ * packed into one DEX file within the archive, or into classes.dex,
+ * classes2.dex and so on for a multidex APK.
  */
 public class ApkFile extends JarFile {
 
@@ -90,6 +92,25 @@ public class ApkFile extends JarFile {
         return DexFile.parse(getInputStream(entry), entry.getSize());
     }
 
+    /**
+     * Returns all DEX files of this APK file, classes.dex followed by the
+     * secondary DEX files classes2.dex, classes3.dex ... of a multidex APK.
+     * @return The contained DEX file objects.
+     * @throws IOException In case of an error while accessing the file.
+     * @throws IllegalStateException if the APK doesn't contains any classes.
+     */
+    public DexFile[] getDexFiles() throws IOException {
+        ArrayList<DexFile> dexFiles = new ArrayList<DexFile>();
+        dexFiles.add(getDexFile());
+        for (int i = 2;; i++) {
+            ZipEntry entry = getEntry("classes" + i + ".dex");
+            if (entry == null)
+                break;
+            dexFiles.add(DexFile.parse(getInputStream(entry), entry.getSize()));
+        }
+        return dexFiles.toArray(new DexFile[dexFiles.size()]);
+    }
+
     /**
      * Constructs an URL representation for the specified entry inside the APK
      * file. See {@link java.net.JarURLConnection} for details about the syntax
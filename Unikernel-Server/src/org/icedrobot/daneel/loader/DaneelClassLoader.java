@@ -38,6 +38,7 @@ package org.icedrobot.daneel.loader;
 
 import org.icedrobot.daneel.dex.DexFile;
 import org.icedrobot.daneel.rewriter.DexRewriter;
+import org.meicorl.unikernel.common.AsyncLog;
 
 import java.io.File;
 import java.io.IOError;
@@ -45,6 +46,13 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.ZipEntry;
 
 /**
@@ -55,12 +63,26 @@ import java.util.zip.ZipEntry;
 public class DaneelClassLoader extends ClassLoader {
     private final File[] files;
 
-    /** The list of all files containing DEX classes (lazy initialized). */
-    private DexFile[] dexFiles;
+    /**
+     * The DEX file defining each class, by binary class name (lazy
+     * initialized). If several files define a class, the first one wins.
+     */
+    private Map<String, DexFile> classIndex;
     
-    /** Lock used to lazy initialize dexFiles */
+    /** Lock used to lazy initialize classIndex */
     private final Object dexLock = new Object();
+
+    /** Names that neither the parent nor the DEX files could load. */
+    private final Set<String> missingClasses =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     
+    /** Names of the classes loaded through this loader, in load order. */
+    private final Set<String> loadOrder =
+        Collections.synchronizedSet(new LinkedHashSet<String>());
+
+    /** Statistics of the classes translated by this class loader. */
+    private final TranslationStats stats = new TranslationStats();
+
     /** The list of all files containing resources (lazy initialized). */
     private ApkFile[] resourceFiles;
     
@@ -93,45 +115,97 @@ public class DaneelClassLoader extends ClassLoader {
         this.files = files.clone();
     }
     
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve)
+            throws ClassNotFoundException {
+        // Don't ask the parent and the index again for a class known to be missing.
+        if (missingClasses.contains(name)) {
+            stats.missingHit();
+            throw new ClassNotFoundException(name);
+        }
+        try {
+            Class<?> clazz = super.loadClass(name, resolve);
+            loadOrder.add(name);
+            return clazz;
+        } catch (ClassNotFoundException e) {
+            missingClasses.add(name);
+            throw e;
+        }
+    }
+
     @Override
     protected Class<?> findClass(String name) throws ClassNotFoundException {
-        System.out.printf("Trying to find class '%s' ...\n", name);
+        AsyncLog.debug("Trying to find class '%s' ...", name);
         
-        DexFile[] dexFiles;
+        Map<String, DexFile> classIndex;
         synchronized(dexLock) {
-            dexFiles = this.dexFiles;
-            if (dexFiles == null) {
+            classIndex = this.classIndex;
+            if (classIndex == null) {
                 // avoid an infinite loop if loadDexFiles() requires to load a class
                 // that isn't available in parent classloaders
-                this.dexFiles = new DexFile[0];
+                this.classIndex = Collections.emptyMap();
                 
                 try {
-                    this.dexFiles = dexFiles = loadDexFiles(files);
+                    this.classIndex = classIndex = indexClasses(loadDexFiles(files));
                 } catch (IOException e) {
                     throw new IOError(e);
                 }
             }
         }
 
-        // Iterate over all dex files containing classes.
-        for (DexFile dexFile : dexFiles) {
-            try {
-                byte[] bytecode = DexRewriter.rewrite(name, dexFile);
-                if (VERIFY) {
-                    Verifier.verify(this, dexFile, name, bytecode, new PrintWriter(System.err));
-                }
-                return defineClass(name, bytecode, 0, bytecode.length);
-            } catch (ClassNotFoundException e) {
-                // Ignore and skip to the next file.
+        DexFile dexFile = classIndex.get(name);
+        if (dexFile == null) {
+            // Unable to find class definition for given class name.
+            throw new ClassNotFoundException(name);
+        }
+        try {
+            long start = System.nanoTime();
+            byte[] bytecode = DexRewriter.rewrite(name, dexFile);
+            long rewritten = System.nanoTime();
+            if (VERIFY) {
+                Verifier.verify(this, dexFile, name, bytecode, new PrintWriter(System.err));
             }
+            // Defining the class loads its superclass and interfaces, leave
+            // out their translation. This loader is not parallel capable, so
+            // all of them happen on this thread.
+            long verified = System.nanoTime();
+            long nested = stats.getTotalTime();
+            Class<?> clazz = defineClass(name, bytecode, 0, bytecode.length);
+            nested = stats.getTotalTime() - nested;
+            stats.translated(name, bytecode.length, rewritten - start,
+                    verified - rewritten, System.nanoTime() - verified - nested);
+            return clazz;
+        } catch (ClassNotFoundException | RuntimeException | LinkageError e) {
+            stats.failed();
+            throw e;
         }
-        // Unable to find class definition for given class name.
-        throw new ClassNotFoundException(name);
+    }
+
+    /**
+     * Returns the names of all classes loaded through this class loader so far,
+     * whether translated or found by the parent, in the order they were first
+     * loaded.
+     * 
+     * @return A copy of the load order.
+     */
+    public List<String> getLoadOrder() {
+        synchronized (loadOrder) {
+            return new ArrayList<String>(loadOrder);
+        }
+    }
+
+    /**
+     * Returns the statistics of the classes translated by this class loader.
+     * 
+     * @return The statistics, updated as classes are loaded.
+     */
+    public TranslationStats getStats() {
+        return stats;
     }
 
     @Override
     protected URL findResource(String name) {
-        System.out.printf("Trying to find resource '%s' ...\n", name);
+        AsyncLog.debug("Trying to find resource '%s' ...", name);
         
         ApkFile[] resourceFiles;
         synchronized(resourcesLock) {
@@ -173,6 +247,23 @@ public class DaneelClassLoader extends ClassLoader {
         return files;
     }
     
+    /**
+     * Map the binary name of every class to the DEX file defining it.
+     * @param dexFiles the DEX files, in the order of the class path.
+     * @return the DEX file of each class.
+     */
+    private static Map<String, DexFile> indexClasses(DexFile[] dexFiles) {
+        Map<String, DexFile> index = new HashMap<String, DexFile>();
+        for (DexFile dexFile : dexFiles) {
+            for (String desc : dexFile.getClassNames()) {
+                String name = desc.substring(1, desc.length() - 1).replace('/', '.');
+                if (!index.containsKey(name))
+                    index.put(name, dexFile);
+            }
+        }
+        return index;
+    }
+
     /** 
      * Filter an array of files to find all DEX files. 
      * @param files an array of files.
@@ -182,15 +273,13 @@ public class DaneelClassLoader extends ClassLoader {
     private static DexFile[] loadDexFiles(File[] files) throws IOException {
         ArrayList<DexFile> dexs = new ArrayList<DexFile>(files.length);
         for (File file : files) {
-            DexFile dexFile;
             if (file.getName().endsWith(".apk")) {
                 @SuppressWarnings("resource")
 				ApkFile apk = new ApkFile(file);
-                dexFile = apk.getDexFile();
+                Collections.addAll(dexs, apk.getDexFiles());
             } else {
-                dexFile = DexFile.parse(file);
+                dexs.add(DexFile.parse(file));
             }
-            dexs.add(dexFile);
         }
         return dexs.toArray(new DexFile[dexs.size()]);
     }
@@ -0,0 +1,203 @@
+/*
+ * Daneel - Dalvik to Java bytecode compiler
+ * Copyright (C) 2011  IcedRobot team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * This file is subject to the "Classpath" exception:
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under terms
+ * of your choice, provided that you also meet, for each linked independent
+ * module, the terms and conditions of the license of that module.  An
+ * independent module is a module which is not derived from or based on
+ * this library.  If you modify this library, you may extend this exception
+ * to your version of the library, but you are not obligated to do so.  If
+ * you do not wish to do so, delete this exception statement from your
+ * version.
+ */
+package org.icedrobot.daneel.loader;
+
+/**
+ * Statistics of the classes translated by a {@link DaneelClassLoader}: how
+ * many classes and bytes of bytecode it produced, how long rewriting,
+ * verifying and defining them took and which classes were the slowest. The
+ * report returned by {@link #toString()} tells how much of a first request is
+ * spent in translation.
+ */
+public class TranslationStats {
+
+    /** The number of slowest classes kept for the report. */
+    private static final int SLOWEST = 10;
+
+    private int classes;
+
+    private int failures;
+
+    private long bytes;
+
+    /** Total times in nanoseconds. */
+    private long rewriteTime, verifyTime, defineTime;
+
+    /** Hits of the cache of class names known to be missing. */
+    private long missingHits;
+
+    /** The slowest classes, slowest first. */
+    private final Translation[] slowest = new Translation[SLOWEST];
+
+    private int slowestCount;
+
+    /**
+     * Records a translated class.
+     * 
+     * @param name The binary name of the class.
+     * @param size The size of its bytecode in bytes.
+     * @param rewrite The time taken by the rewriter in nanoseconds.
+     * @param verify The time taken by the verifier in nanoseconds.
+     * @param define The time taken to define the class in nanoseconds.
+     */
+    synchronized void translated(String name, int size, long rewrite,
+            long verify, long define) {
+        classes++;
+        bytes += size;
+        rewriteTime += rewrite;
+        verifyTime += verify;
+        defineTime += define;
+
+        // Keep the class if it is among the slowest ones.
+        Translation translation = new Translation(name, rewrite, verify, define);
+        int i = slowestCount;
+        if (i == SLOWEST) {
+            if (slowest[SLOWEST - 1].total() >= translation.total())
+                return;
+            i--;
+        } else
+            slowestCount++;
+        for (; i > 0 && slowest[i - 1].total() < translation.total(); i--)
+            slowest[i] = slowest[i - 1];
+        slowest[i] = translation;
+    }
+
+    /**
+     * Records a class that could not be translated or defined.
+     */
+    synchronized void failed() {
+        failures++;
+    }
+
+    /**
+     * Records a class name found in the cache of missing classes.
+     */
+    synchronized void missingHit() {
+        missingHits++;
+    }
+
+    /**
+     * Returns the number of classes translated so far.
+     * 
+     * @return The number of classes.
+     */
+    public synchronized int getClasses() {
+        return classes;
+    }
+
+    /**
+     * Returns the size of the bytecode produced so far.
+     *
+     * @return The number of bytes.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the total time spent translating classes so far, i.e. rewriting,
+     * verifying and defining them.
+     * 
+     * @return The time in nanoseconds.
+     */
+    public synchronized long getTotalTime() {
+        return rewriteTime + verifyTime + defineTime;
+    }
+
+    /**
+     * Returns the slowest classes translated so far.
+     * 
+     * @return The binary names of the classes, slowest first.
+     */
+    public synchronized String[] getSlowestClasses() {
+        String[] names = new String[slowestCount];
+        for (int i = 0; i < slowestCount; i++)
+            names[i] = slowest[i].name;
+        return names;
+    }
+
+    /**
+     * Returns a human readable report of the statistics, with times in
+     * milliseconds.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(
+                "translation: %d classes, %d bytes of bytecode, %d failed, %d missing class cache hits%n",
+                classes, bytes, failures, missingHits));
+        long total = rewriteTime + verifyTime + defineTime;
+        sb.append(String.format(
+                "time: %.1f ms (rewrite %.1f, verify %.1f, define %.1f), %.2f ms per class%n",
+                ms(total), ms(rewriteTime), ms(verifyTime), ms(defineTime),
+                classes == 0 ? 0 : ms(total) / classes));
+        if (slowestCount > 0)
+            sb.append(String.format("slowest classes (ms: total = rewrite + verify + define):%n"));
+        for (int i = 0; i < slowestCount; i++) {
+            Translation t = slowest[i];
+            sb.append(String.format("  %-60s %7.2f = %.2f + %.2f + %.2f%n",
+                    t.name, ms(t.total()), ms(t.rewrite), ms(t.verify),
+                    ms(t.define)));
+        }
+        return sb.toString();
+    }
+
+    private static double ms(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * The times taken to translate one class.
+     */
+    private static class Translation {
+        final String name;
+        final long rewrite;
+        final long verify;
+        final long define;
+
+        Translation(String name, long rewrite, long verify, long define) {
+            this.name = name;
+            this.rewrite = rewrite;
+            this.verify = verify;
+            this.define = define;
+        }
+
+        long total() {
+            return rewrite + verify + define;
+        }
+    }
+}
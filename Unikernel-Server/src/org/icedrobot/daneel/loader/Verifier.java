@@ -72,7 +72,6 @@ package org.icedrobot.daneel.loader;
 
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
 import java.util.List;
 
 import org.icedrobot.daneel.dex.DexAnnotationVisitor;
@@ -175,18 +174,10 @@ public class Verifier {
                     
                     writer.println(className+'.'+method.name + method.desc);
                     return new DexMethodVisitor() {
-                        private final HashMap<Label, String> labelMap =
-                            new HashMap<Label, String>();
                         private final StringBuilder builder = new StringBuilder();
                         
                         private String getLabel(Label label) {
-                            String text = labelMap.get(label);
-                            if (text != null) {
-                                return text;
-                            }
-                            text = "L" + labelMap.size();
-                            labelMap.put(label, text);
-                            return text;
+                            return "L" + label.getIndex();
                         }
                         
                         private void dumpRegisters() {
@@ -44,10 +44,6 @@ import static org.icedrobot.daneel.rewriter.Registers.*;
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.IdentityHashMap;
-import java.util.Set;
 
 import org.icedrobot.daneel.dex.AccessFlags;
 import org.icedrobot.daneel.dex.DexAnnotationVisitor;
@@ -72,6 +68,11 @@ import org.objectweb.asm.tree.LdcInsnNode;
 import org.objectweb.asm.tree.VarInsnNode;
 
 public class DexRewriter implements DexClassVisitor {
+    private static final boolean OPTIMIZE;
+    static {
+        OPTIMIZE = Boolean.getBoolean("daneel.optimize");
+    }
+
     private final ClassVisitor cv;
     
     /**
@@ -159,6 +160,9 @@ public class DexRewriter implements DexClassVisitor {
         if (mv == null) {
             return null;
         }
+        if (OPTIMIZE) {
+            mv = new MethodOptimizer(access, name, desc, mv);
+        }
 
         return new MethodRewriter(mv, AccessFlags.isStatic(access), desc);
     }
@@ -180,15 +184,13 @@ public class DexRewriter implements DexClassVisitor {
         private int locals;               // number of local variables
         private int parameters;           // number of parameters
         
-        // map DEX jump label to ASM label
-        private final HashMap<Label, org.objectweb.asm.Label> labelMap =
-            new HashMap<Label, org.objectweb.asm.Label>();
-        // set which contains all labels which is the start of an exception handler
-        private final Set<Label> exceptionHandlerSet =
-            Collections.newSetFromMap(new IdentityHashMap<Label, Boolean>());
-        // map the start label of the try label to the corresponding exception handler label
-        private final IdentityHashMap<Label, Label> exceptionTryStartToHandlerMap =
-            new IdentityHashMap<Label, Label>();
+        // information about the DEX labels, indexed by label number:
+        // the corresponding ASM label,
+        private org.objectweb.asm.Label[] asmLabels = new org.objectweb.asm.Label[16];
+        // true if the label is the start of an exception handler,
+        private boolean[] exceptionHandlers = new boolean[16];
+        // the exception handler of a try block starting at the label
+        private Label[] tryStartHandlers = new Label[16];
 
         public MethodRewriter(MethodVisitor mv, boolean isStatic, String desc) {
             this.mv = new PatchMethodVisitor(mv);
@@ -275,17 +277,34 @@ public class DexRewriter implements DexClassVisitor {
             return getTypeFromASMType(Type.getReturnType(descriptor));
         }
 
+        /**
+         * Makes sure the label tables are large enough for a label.
+         * @param label a DEX label
+         * @return the label number.
+         */
+        private int labelIndex(Label label) {
+            int index = label.getIndex();
+            if (index >= asmLabels.length) {
+                int length = Math.max(index + 1, 2 * asmLabels.length);
+                asmLabels = Arrays.copyOf(asmLabels, length);
+                exceptionHandlers = Arrays.copyOf(exceptionHandlers, length);
+                tryStartHandlers = Arrays.copyOf(tryStartHandlers, length);
+            }
+            return index;
+        }
+
         /** Maps DEX label to ASM label
          * @param label a DEX label
          * @return the corresponding ASM label.
          */
         private org.objectweb.asm.Label getASMLabel(Label label) {
-            org.objectweb.asm.Label asmLabel = labelMap.get(label);
+            int index = labelIndex(label);
+            org.objectweb.asm.Label asmLabel = asmLabels[index];
             if (asmLabel != null) {
                 return asmLabel;
             }
             asmLabel = new org.objectweb.asm.Label();
-            labelMap.put(label, asmLabel);
+            asmLabels[index] = asmLabel;
             return asmLabel;
         }
 
@@ -308,12 +327,7 @@ public class DexRewriter implements DexClassVisitor {
         }
         
         private void createOrMergeJoinPoint(Label label) {
-            Register[] registers = interpreter.getJoinPoint(label);
-            if (registers != null) { // backward jump
-                interpreter.merge(registers);
-            } else {  // forward jump
-                interpreter.cloneJoinPoint(label);    
-            }
+            interpreter.joinPoint(label.getIndex());
         }
         
         private void visitNotInstr(int type) {
@@ -422,12 +436,12 @@ public class DexRewriter implements DexClassVisitor {
             if (isStatic) {
                 slot = 0;
             } else {
-                registers[0] = new Register(OBJECT_TYPE, null);
+                registers[0] = Register.valueOf(OBJECT_TYPE);
                 slot = 1;
             }
             for (int i = 0; i < length; i++) {
                 Type type = parameterTypes[i];
-                registers[slot] = new Register(getTypeFromASMType(type), null);
+                registers[slot] = Register.valueOf(getTypeFromASMType(type));
                 slot += type.getSize();
             }
             
@@ -885,14 +899,15 @@ public class DexRewriter implements DexClassVisitor {
                 fixStackAfterAMethodCallOrAnExceptionHandler();
 
             // Exception handlers have the exception on top of the stack.
-            exceptionOnTop = exceptionHandlerSet.contains(label);
+            int index = labelIndex(label);
+            exceptionOnTop = exceptionHandlers[index];
 
             // Merge register states at current jump target labels.
             createOrMergeJoinPoint(label);
             mv.visitLabel(getASMLabel(label));
 
             // If it's the start of a try, find the corresponding handler.
-            Label handler = exceptionTryStartToHandlerMap.get(label);
+            Label handler = tryStartHandlers[index];
             if (handler != null) {
                 createOrMergeJoinPoint(handler);
             }
@@ -1141,8 +1156,10 @@ public class DexRewriter implements DexClassVisitor {
         
         @Override
         public void visitTryCatch(Label start, Label end, Label handler, String type) {
-            exceptionHandlerSet.add(handler);
-            exceptionTryStartToHandlerMap.put(start, handler);
+            int handlerIndex = labelIndex(handler);
+            int startIndex = labelIndex(start);
+            exceptionHandlers[handlerIndex] = true;
+            tryStartHandlers[startIndex] = handler;
             type = (type == null)? null: TypeUtil.convertDescToInternal(type);
             mv.visitTryCatchBlock(getASMLabel(start), getASMLabel(end),
                     getASMLabel(handler),
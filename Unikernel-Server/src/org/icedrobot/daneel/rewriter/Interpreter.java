@@ -38,7 +38,6 @@
 package org.icedrobot.daneel.rewriter;
 
 import java.util.Arrays;
-import java.util.HashMap;
 
 /**
  * An abstract interpreter for virtual registers. It is used to infer the
@@ -46,9 +45,46 @@ import java.util.HashMap;
  */
 public class Interpreter {
     private final Register[] registers;
-    private final HashMap<Object, Register[]> joinPointMap = new HashMap<Object, Register[]>();
+    // the register information at the join-points, indexed by label number
+    private JoinPoint[] joinPoints = new JoinPoint[16];
     private boolean isDead;
 
+    /**
+     * The register information preserved at a join-point. Only the types are
+     * kept, except for the registers which have a patchable, so their type
+     * can still be inferred after the join-point.
+     */
+    private static final class JoinPoint {
+        final int[] types;
+        final Register[] patchables;   // null if there is none
+
+        JoinPoint(Register[] registers) {
+            int length = registers.length;
+            int[] types = new int[length];
+            Register[] patchables = null;
+            for (int i = 0; i < length; i++) {
+                Register register = registers[i];
+                if (register.getPatchable() != null) {
+                    if (patchables == null) {
+                        patchables = new Register[length];
+                    }
+                    patchables[i] = register;
+                } else {
+                    types[i] = register.getType();
+                }
+            }
+            this.types = types;
+            this.patchables = patchables;
+        }
+
+        Register getRegister(int i) {
+            if (patchables != null && patchables[i] != null) {
+                return patchables[i];
+            }
+            return Register.valueOf(types[i]);
+        }
+    }
+
     /**
      * Creates a new abstract interpreter capable of tracking a given number of
      * virtual registers.
@@ -104,7 +140,7 @@ public class Interpreter {
             throw new IllegalArgumentException("invalid type");
         }
         
-        registers[vregister] = new Register(type, null);
+        registers[vregister] = Register.valueOf(type);
     }
 
     /**
@@ -128,26 +164,25 @@ public class Interpreter {
 
     /**
      * Marks a possible join-point in the control flow. Each branch target
-     * (basic block boundary) is a candidate for a join-point. The current
-     * register information is preserved and associated with the given
-     * join-point identity.
+     * (basic block boundary) is a candidate for a join-point. The first time
+     * a join-point is marked, the current register information is preserved
+     * and associated with it. The next times, the current register
+     * information is merged with the preserved one.
      * 
-     * @param label An object identity representing the join-point.
+     * @param label The number of the label of the join-point, see
+     *        {@link org.icedrobot.daneel.dex.Label#getIndex()}.
      */
-    public void cloneJoinPoint(Object label) {
-        joinPointMap.put(label, registers.clone());
-    }
-
-    /**
-     * Queries a previously marked join-point in the control flow. If the given
-     * join-point identity hasn't been marked before, {@code null} will be
-     * returned.
-     * 
-     * @param label An object identity representing the join-point.
-     * @return The register information at the join-point or {@code null}.
-     */
-    public Register[] getJoinPoint(Object label) {
-        return joinPointMap.get(label);
+    public void joinPoint(int label) {
+        if (label >= joinPoints.length) {
+            joinPoints = Arrays.copyOf(joinPoints,
+                    Math.max(label + 1, 2 * joinPoints.length));
+        }
+        JoinPoint joinPoint = joinPoints[label];
+        if (joinPoint != null) { // backward jump
+            merge(joinPoint);
+        } else { // forward jump
+            joinPoints[label] = new JoinPoint(registers);
+        }
     }
 
     /**
@@ -172,24 +207,27 @@ public class Interpreter {
      * at join-points in the control flow. It merges each register, thus
      * changing each register to the most concrete type known at that point.
      * 
-     * @param registers The given set of register information.
+     * @param joinPoint The register information preserved at a join-point.
      */
-    public void merge(Register[] registers) {
-        assert this.registers.length == registers.length;
+    private void merge(JoinPoint joinPoint) {
+        int length = registers.length;
+        assert joinPoint.types.length == length;
 
         if (isDead) {
-            System.arraycopy(registers, 0, this.registers, 0, registers.length);
+            for (int i = 0; i < length; i++) {
+                registers[i] = joinPoint.getRegister(i);
+            }
             isDead = false;
             return;
         }
 
-        for (int i = 0; i < registers.length; i++) {
-            Register thisRegister = this.registers[i];
-            Register register = registers[i];
+        for (int i = 0; i < length; i++) {
+            Register thisRegister = registers[i];
+            Register register = joinPoint.getRegister(i);
             if (thisRegister == register) {
                 continue;
             }
-            this.registers[i] = thisRegister.merge(register);
+            registers[i] = thisRegister.merge(register);
         }
     }
 
@@ -0,0 +1,603 @@
+/*
+ * Daneel - Dalvik to Java bytecode compiler
+ * Copyright (C) 2011  IcedRobot team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * This file is subject to the "Classpath" exception:
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under terms
+ * of your choice, provided that you also meet, for each linked independent
+ * module, the terms and conditions of the license of that module.  An
+ * independent module is a module which is not derived from or based on
+ * this library.  If you modify this library, you may extend this exception
+ * to your version of the library, but you are not obligated to do so.  If
+ * you do not wish to do so, delete this exception statement from your
+ * version.
+ */
+
+package org.icedrobot.daneel.rewriter;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * An optional optimization stage between the {@link DexRewriter} and the class
+ * writer, enabled by the system property <code>daneel.optimize</code>.
+ * 
+ * The rewriter maps every Dalvik register to a local variable, so every
+ * intermediate value of an expression is stored to a local and loaded back.
+ * The method is collected as a tree and, before it is passed on, the
+ * optimizer
+ * <ul>
+ * <li>keeps a value stored to a local and loaded right back on the stack,</li>
+ * <li>removes the stores to locals that are not read afterwards, using a
+ * liveness analysis over the control flow graph and the exception
+ * handlers,</li>
+ * <li>folds values pushed and popped right away, and constant integer
+ * expressions,</li>
+ * <li>renumbers the remaining locals so that they are contiguous.</li>
+ * </ul>
+ * The methods get smaller, and as the JIT thresholds count bytecodes they are
+ * compiled sooner, with no dead register copies left for the register
+ * allocator.
+ */
+public class MethodOptimizer extends MethodNode {
+    // the passes are repeated as long as they change something, at most
+    private static final int MAX_ROUNDS = 10;
+
+    private final MethodVisitor mv;
+    private final IdentityHashMap<Label, LabelNode> labelNodes =
+        new IdentityHashMap<Label, LabelNode>();
+
+    /**
+     * Create an optimizer for a method.
+     * @param mv the method visitor the optimized method is passed to.
+     */
+    public MethodOptimizer(int access, String name, String desc,
+            MethodVisitor mv) {
+        super(access, name, desc, null, null);
+        this.mv = mv;
+    }
+
+    /**
+     * The labels may already be bound to a node of the tree of a
+     * {@link PatchMethodVisitor}, so they get nodes of their own.
+     */
+    @Override
+    protected LabelNode getLabelNode(Label label) {
+        LabelNode node = labelNodes.get(label);
+        if (node == null) {
+            node = new LabelNode(label);
+            labelNodes.put(label, node);
+        }
+        return node;
+    }
+
+    @Override
+    public void visitEnd() {
+        if (instructions.size() > 0) {
+            optimize();
+        }
+        accept(mv);
+    }
+
+    void optimize() {
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            boolean changed = forwardStores();
+            changed |= removeDeadStores();
+            changed |= foldExpressions();
+            if (!changed) {
+                break;
+            }
+        }
+        compactLocals();
+    }
+
+    /**
+     * <code>xSTORE n; xLOAD n</code> becomes <code>DUP; xSTORE n</code>, the
+     * store is removed later if n is not read any more. A local copied to
+     * itself is removed.
+     */
+    private boolean forwardStores() {
+        Set<LabelNode> targets = targets();
+        boolean changed = false;
+        AbstractInsnNode insn = instructions.getFirst();
+        while (insn != null) {
+            AbstractInsnNode next = next(insn, targets);
+            int opcode = insn.getOpcode();
+            if (isStore(opcode) && isVar(next, opcode - ISTORE + ILOAD,
+                    ((VarInsnNode) insn).var)) {
+                instructions.insertBefore(insn,
+                        new InsnNode(isWide(opcode) ? DUP2 : DUP));
+                instructions.remove(next);
+                changed = true;
+            } else if (isLoad(opcode) && isVar(next, opcode - ILOAD + ISTORE,
+                    ((VarInsnNode) insn).var)) {
+                AbstractInsnNode following = next.getNext();
+                instructions.remove(insn);
+                instructions.remove(next);
+                insn = following;
+                changed = true;
+                continue;
+            }
+            insn = insn.getNext();
+        }
+        return changed;
+    }
+
+    /**
+     * Replace the stores to locals which are not live afterwards by a pop.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean removeDeadStores() {
+        AbstractInsnNode[] insns = instructions.toArray();
+        int length = insns.length;
+        IdentityHashMap<AbstractInsnNode, Integer> indexes =
+            new IdentityHashMap<AbstractInsnNode, Integer>();
+        for (int i = 0; i < length; i++) {
+            indexes.put(insns[i], i);
+        }
+
+        int[][] successors = new int[length][];
+        for (int i = 0; i < length; i++) {
+            successors[i] = successors(insns, i, indexes);
+        }
+        // every instruction of a try block may continue in its handlers
+        List<Integer>[] handlers = newHandlerArray(length);
+        for (TryCatchBlockNode block : (List<TryCatchBlockNode>) tryCatchBlocks) {
+            int handler = indexes.get(block.handler);
+            int end = indexes.get(block.end);
+            for (int i = indexes.get(block.start); i < end; i++) {
+                if (handlers[i] == null) {
+                    handlers[i] = new ArrayList<Integer>();
+                }
+                handlers[i].add(handler);
+            }
+        }
+
+        BitSet[] liveIn = new BitSet[length];
+        for (int i = 0; i < length; i++) {
+            liveIn[i] = new BitSet();
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = length - 1; i >= 0; i--) {
+                BitSet live = liveOut(i, successors, liveIn);
+                AbstractInsnNode insn = insns[i];
+                int opcode = insn.getOpcode();
+                if (isStore(opcode)) {
+                    live.clear(((VarInsnNode) insn).var);
+                } else if (isLoad(opcode) || opcode == RET) {
+                    live.set(((VarInsnNode) insn).var);
+                } else if (opcode == IINC) {
+                    live.set(((IincInsnNode) insn).var);
+                }
+                if (handlers[i] != null) {
+                    for (int handler : handlers[i]) {
+                        live.or(liveIn[handler]);
+                    }
+                }
+                if (!live.equals(liveIn[i])) {
+                    liveIn[i] = live;
+                    changed = true;
+                }
+            }
+        }
+
+        boolean removed = false;
+        for (int i = 0; i < length; i++) {
+            AbstractInsnNode insn = insns[i];
+            int opcode = insn.getOpcode();
+            if (isStore(opcode)) {
+                if (!liveOut(i, successors, liveIn).get(((VarInsnNode) insn).var)) {
+                    instructions.set(insn, new InsnNode(isWide(opcode) ? POP2 : POP));
+                    removed = true;
+                }
+            } else if (opcode == IINC) {
+                if (!liveOut(i, successors, liveIn).get(((IincInsnNode) insn).var)) {
+                    instructions.remove(insn);
+                    removed = true;
+                }
+            }
+        }
+        return removed;
+    }
+
+    private static BitSet liveOut(int i, int[][] successors, BitSet[] liveIn) {
+        BitSet live = new BitSet();
+        for (int successor : successors[i]) {
+            live.or(liveIn[successor]);
+        }
+        return live;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static List<Integer>[] newHandlerArray(int length) {
+        return new List[length];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int[] successors(AbstractInsnNode[] insns, int i,
+            IdentityHashMap<AbstractInsnNode, Integer> indexes) {
+        AbstractInsnNode insn = insns[i];
+        int opcode = insn.getOpcode();
+        List<LabelNode> labels = null;
+        LabelNode target = null;
+        if (insn instanceof JumpInsnNode) {
+            target = ((JumpInsnNode) insn).label;
+            if (opcode == GOTO) {
+                return new int[] { indexes.get(target) };
+            }
+        } else if (insn instanceof TableSwitchInsnNode) {
+            target = ((TableSwitchInsnNode) insn).dflt;
+            labels = ((TableSwitchInsnNode) insn).labels;
+        } else if (insn instanceof LookupSwitchInsnNode) {
+            target = ((LookupSwitchInsnNode) insn).dflt;
+            labels = ((LookupSwitchInsnNode) insn).labels;
+        } else if ((opcode >= IRETURN && opcode <= RETURN) || opcode == ATHROW
+                || opcode == RET) {
+            return new int[0];
+        }
+
+        if (labels != null) {
+            int[] successors = new int[labels.size() + 1];
+            successors[0] = indexes.get(target);
+            for (int j = 0; j < labels.size(); j++) {
+                successors[j + 1] = indexes.get(labels.get(j));
+            }
+            return successors;
+        }
+        if (i + 1 == insns.length) {
+            return (target == null) ? new int[0] : new int[] { indexes.get(target) };
+        }
+        return (target == null) ? new int[] { i + 1 }
+                : new int[] { i + 1, indexes.get(target) };
+    }
+
+    /**
+     * Remove values popped right after they have been pushed, and fold
+     * operations on integer constants.
+     */
+    private boolean foldExpressions() {
+        Set<LabelNode> targets = targets();
+        boolean changed = false;
+        AbstractInsnNode insn = instructions.getFirst();
+        while (insn != null) {
+            // the rewriter loads all constants with LDC
+            Integer value = intConstant(insn);
+            if (value != null && insn.getOpcode() == LDC
+                    && (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)) {
+                AbstractInsnNode constant = pushInt(value);
+                instructions.set(insn, constant);
+                insn = constant;
+                changed = true;
+            }
+
+            AbstractInsnNode next = next(insn, targets);
+            if (next == null) {
+                insn = insn.getNext();
+                continue;
+            }
+            int size = pushSize(insn);
+            int opcode = next.getOpcode();
+            if (size != 0 && ((size == 1 && opcode == POP)
+                    || (size == 2 && opcode == POP2))) {
+                AbstractInsnNode following = next.getNext();
+                instructions.remove(insn);
+                instructions.remove(next);
+                insn = following;
+                changed = true;
+                continue;
+            }
+
+            if (value != null) {
+                Integer folded = null;
+                AbstractInsnNode last = next;
+                if (opcode == INEG) {
+                    folded = -value;
+                } else {
+                    Integer operand = intConstant(next);
+                    AbstractInsnNode operation = next(next, targets);
+                    if (operand != null && operation != null) {
+                        folded = fold(value, operand, operation.getOpcode());
+                        last = operation;
+                    }
+                }
+                if (folded != null) {
+                    AbstractInsnNode constant = pushInt(folded);
+                    instructions.insertBefore(insn, constant);
+                    AbstractInsnNode node = insn;
+                    while (node != last) {
+                        AbstractInsnNode following = node.getNext();
+                        if (node.getOpcode() >= 0) {
+                            instructions.remove(node);
+                        }
+                        node = following;
+                    }
+                    instructions.remove(last);
+                    // the folded constant may fold again with what follows
+                    insn = constant;
+                    changed = true;
+                    continue;
+                }
+            }
+            insn = insn.getNext();
+        }
+        return changed;
+    }
+
+    private static Integer fold(int a, int b, int opcode) {
+        switch (opcode) {
+        case IADD:
+            return a + b;
+        case ISUB:
+            return a - b;
+        case IMUL:
+            return a * b;
+        case IDIV:
+            return (b == 0) ? null : Integer.valueOf(a / b);
+        case IREM:
+            return (b == 0) ? null : Integer.valueOf(a % b);
+        case IAND:
+            return a & b;
+        case IOR:
+            return a | b;
+        case IXOR:
+            return a ^ b;
+        case ISHL:
+            return a << b;
+        case ISHR:
+            return a >> b;
+        case IUSHR:
+            return a >>> b;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Renumber the locals after the parameters so that they are contiguous.
+     * The order of the slots is kept, so the two slots of a long or double
+     * stay next to each other.
+     */
+    @SuppressWarnings("unchecked")
+    private void compactLocals() {
+        int first = Type.getArgumentsAndReturnSizes(desc) >> 2;
+        if ((access & ACC_STATIC) != 0) {
+            first--;
+        }
+
+        BitSet used = new BitSet();
+        for (Iterator<AbstractInsnNode> it = instructions.iterator(); it.hasNext();) {
+            AbstractInsnNode insn = it.next();
+            if (insn instanceof VarInsnNode) {
+                VarInsnNode var = (VarInsnNode) insn;
+                used.set(var.var);
+                if (isWide(var.getOpcode())) {
+                    used.set(var.var + 1);
+                }
+            } else if (insn instanceof IincInsnNode) {
+                used.set(((IincInsnNode) insn).var);
+            }
+        }
+        int[] slots = new int[used.length()];
+        int next = first;
+        for (int slot = 0; slot < slots.length; slot++) {
+            if (slot < first) {
+                slots[slot] = slot;
+            } else if (used.get(slot)) {
+                slots[slot] = next++;
+            } else {
+                slots[slot] = -1;
+            }
+        }
+
+        for (Iterator<AbstractInsnNode> it = instructions.iterator(); it.hasNext();) {
+            AbstractInsnNode insn = it.next();
+            if (insn instanceof VarInsnNode) {
+                ((VarInsnNode) insn).var = slots[((VarInsnNode) insn).var];
+            } else if (insn instanceof IincInsnNode) {
+                ((IincInsnNode) insn).var = slots[((IincInsnNode) insn).var];
+            }
+        }
+        if (localVariables != null) {
+            for (Iterator<LocalVariableNode> it = localVariables.iterator(); it.hasNext();) {
+                LocalVariableNode local = it.next();
+                if (local.index < first) {
+                    continue;
+                }
+                if (local.index < slots.length && slots[local.index] != -1) {
+                    local.index = slots[local.index];
+                } else {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the labels which start a basic block: jump and switch targets,
+     * and the bounds and handlers of the try blocks.
+     */
+    @SuppressWarnings("unchecked")
+    private Set<LabelNode> targets() {
+        Set<LabelNode> targets = new HashSet<LabelNode>();
+        for (Iterator<AbstractInsnNode> it = instructions.iterator(); it.hasNext();) {
+            AbstractInsnNode insn = it.next();
+            if (insn instanceof JumpInsnNode) {
+                targets.add(((JumpInsnNode) insn).label);
+            } else if (insn instanceof TableSwitchInsnNode) {
+                targets.add(((TableSwitchInsnNode) insn).dflt);
+                targets.addAll(((TableSwitchInsnNode) insn).labels);
+            } else if (insn instanceof LookupSwitchInsnNode) {
+                targets.add(((LookupSwitchInsnNode) insn).dflt);
+                targets.addAll(((LookupSwitchInsnNode) insn).labels);
+            }
+        }
+        for (TryCatchBlockNode block : (List<TryCatchBlockNode>) tryCatchBlocks) {
+            targets.add(block.start);
+            targets.add(block.end);
+            targets.add(block.handler);
+        }
+        return targets;
+    }
+
+    /**
+     * Returns the instruction executed after a given one if it is in the same
+     * basic block, null otherwise. Line numbers and labels nobody jumps to
+     * are skipped.
+     */
+    private static AbstractInsnNode next(AbstractInsnNode insn,
+            Set<LabelNode> targets) {
+        for (AbstractInsnNode next = insn.getNext(); next != null; next = next.getNext()) {
+            switch (next.getType()) {
+            case AbstractInsnNode.LINE:
+            case AbstractInsnNode.FRAME:
+                continue;
+            case AbstractInsnNode.LABEL:
+                if (targets.contains(next)) {
+                    return null;
+                }
+                continue;
+            default:
+                return next;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isVar(AbstractInsnNode insn, int opcode, int var) {
+        return insn != null && insn.getOpcode() == opcode
+                && ((VarInsnNode) insn).var == var;
+    }
+
+    private static boolean isLoad(int opcode) {
+        return opcode >= ILOAD && opcode <= ALOAD;
+    }
+
+    private static boolean isStore(int opcode) {
+        return opcode >= ISTORE && opcode <= ASTORE;
+    }
+
+    private static boolean isWide(int opcode) {
+        return opcode == LLOAD || opcode == DLOAD || opcode == LSTORE
+                || opcode == DSTORE;
+    }
+
+    /**
+     * Returns the number of words an instruction without side effects pushes,
+     * 0 if the instruction has side effects or pops something.
+     */
+    private static int pushSize(AbstractInsnNode insn) {
+        int opcode = insn.getOpcode();
+        switch (opcode) {
+        case LLOAD:
+        case DLOAD:
+        case LCONST_0:
+        case LCONST_1:
+        case DCONST_0:
+        case DCONST_1:
+        case DUP2:
+            return 2;
+        case ILOAD:
+        case FLOAD:
+        case ALOAD:
+        case ACONST_NULL:
+        case ICONST_M1:
+        case ICONST_0:
+        case ICONST_1:
+        case ICONST_2:
+        case ICONST_3:
+        case ICONST_4:
+        case ICONST_5:
+        case FCONST_0:
+        case FCONST_1:
+        case FCONST_2:
+        case BIPUSH:
+        case SIPUSH:
+        case DUP:
+            return 1;
+        case LDC:
+            // a class constant may fail to resolve, keep it
+            Object cst = ((LdcInsnNode) insn).cst;
+            if (cst instanceof Long || cst instanceof Double) {
+                return 2;
+            }
+            return (cst instanceof Number || cst instanceof String) ? 1 : 0;
+        default:
+            return 0;
+        }
+    }
+
+    private static Integer intConstant(AbstractInsnNode insn) {
+        int opcode = insn.getOpcode();
+        if (opcode >= ICONST_M1 && opcode <= ICONST_5) {
+            return opcode - ICONST_0;
+        }
+        if (opcode == BIPUSH || opcode == SIPUSH) {
+            return ((IntInsnNode) insn).operand;
+        }
+        if (opcode == LDC && ((LdcInsnNode) insn).cst instanceof Integer) {
+            return (Integer) ((LdcInsnNode) insn).cst;
+        }
+        return null;
+    }
+
+    private static AbstractInsnNode pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            return new InsnNode(ICONST_0 + value);
+        }
+        if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            return new IntInsnNode(BIPUSH, value);
+        }
+        if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            return new IntInsnNode(SIPUSH, value);
+        }
+        return new LdcInsnNode(value);
+    }
+}
@@ -92,6 +92,14 @@ public class Register {
     private static final int UNTYPED_MASK = Integer.MIN_VALUE;
 
     static final Register UNINITIALIZED = new Register(NO_TYPE, null);
+
+    // shared registers of the scalar types, they have no patchable
+    private static final Register[] SCALARS = new Register[VOID_TYPE + 1];
+    static {
+        for (int type = 0; type < SCALARS.length; type++) {
+            SCALARS[type] = new Register(type, null);
+        }
+    }
     
     private final int type;
 
@@ -102,6 +110,23 @@ public class Register {
         this.patchable = patchable;
     }
 
+    /**
+     * Returns a register of the given type without patchable. Registers of
+     * scalar types are shared.
+     * 
+     * @param type the type of the register.
+     * @return a register of that type.
+     */
+    static Register valueOf(int type) {
+        if (type == NO_TYPE) {
+            return UNINITIALIZED;
+        }
+        if (type >= 0 && type < SCALARS.length) {
+            return SCALARS[type];
+        }
+        return new Register(type, null);
+    }
+
     /** Returns the type of the current register.
      *  The type of an untyped register is not constant and
      *  may be changed to its infered type.
@@ -140,7 +165,7 @@ public class Register {
 
         if (patchable != null) {
             patchable.doPatch(expectedType);
-            return new Register(expectedType, null);
+            return valueOf(expectedType);
         }
         return this;
     }
@@ -185,7 +210,7 @@ public class Register {
             if (patchable != null) { // otherwise, it's an uninitialized value
                 patchable.doPatch(registerType);
             }
-            return new Register(registerType, null);
+            return valueOf(registerType);
         }
 
         // the two register aren't untyped, we don't check is they are compatible
@@ -198,7 +223,7 @@ public class Register {
         if (register.patchable != null) {
             register.patchable.doPatch(thisType);
         }
-        return new Register(thisType, null);
+        return valueOf(thisType);
     }
 
     /** Returns true is the register is untyped.
@@ -11,7 +11,19 @@ public class ControlMessages
      public static final int        PHONE_DISCONNECTION                     = 32;
      public static final int		PHONE_COMPUTATION_REQUEST		        = 40;
      public static final int		PHONE_COMPUTATION_REQUEST_WITH_FILE		= 41;
+     public static final int		PHONE_BATCH_COMPUTATION_REQUEST		    = 43;
      public static final int        CONNECTION_RELEASED                     = -1;
+     // timings in nanoseconds sent after the result of a computation request,
+     // the Scheduler fills in the relay and the round trip to the worker
+     public static final int        TIMING_DESERIALISE                      = 2;
+     public static final int        TIMING_CLASS_LOAD                       = 3;
+     public static final int        TIMING_EXECUTE                          = 4;
+     public static final int        TIMING_SERIALISE                        = 5;
+     public static final int        TIMINGS                                 = 6;
+     // the translation statistics of the class loader, answered with a String
+     public static final int        LINKER_STATS                            = 61;
+     // sent to the Scheduler as soon as the server socket is bound
+     public static final int        WORKER_READY                            = 70;
      // the apk path in the unikernel
      public static final String     DIRSERVICE_APK_DIR			= "/app_hub/apks/";
      // the file path in the unikernel
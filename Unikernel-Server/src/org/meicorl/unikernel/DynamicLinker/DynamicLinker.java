@@ -1,19 +1,29 @@
 package org.meicorl.unikernel.worker;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParser;
 import org.icedrobot.daneel.loader.DaneelClassLoader;
+import org.meicorl.unikernel.common.AsyncLog;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 /**
  * A worker is a server program that runs in the form of unikernel
@@ -21,31 +31,72 @@ import com.google.gson.Gson;
  * @date  2017.05.18
  */
 public class DynamicLinker {
-    private final static int              Port              = 6034;
+    // defaults fit the unikernel image, -D options allow several linkers on one host
+    private final static int              Port              = Integer.getInteger("linker.port", 6034);
+    private final static String           apkDir            = System.getProperty("linker.apk.dir", ControlMessages.DIRSERVICE_APK_DIR);
 	private static ObjectInputStream      reader            = null;
 	private static ObjectOutputStream     writer            = null;
     private static DaneelClassLoader      classLoader       = null;
-    private static final String libAndroid_path="/libAndroid/Libdroid.jar";
+    private static String                 loadedApk         = null;	// the apk classLoader was created for
+    private static LoadProfile            profile           = null;	// the classes loadedApk loads
+    private static final String libAndroid_path=System.getProperty("linker.libdroid", "/libAndroid/Libdroid.jar");
     private static ServerSocket server = null;
     private static Socket client = null;
+    private static ExecutorService        batchExecutor     = null;
+    // thread-safe, and keeps the type adapters it has built for the classes of the app
+    private static Gson                   gson              = null;	// of the loader of loadedApk
+    // results up to this many chars keep their buffer for the next call of the thread
+    private final static int              RESULT_BUFFER_KEEP = Integer.getInteger("linker.result.buffer", 1 << 20);
+    private final static ThreadLocal<StringBuilder> resultBuffer = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder();
+        }
+    };
 
     public static void main(String[] args) throws IOException{
+        AsyncLog.init("linker");
 
         /** load self-defined android libaray(Libdroid) **/
-        URL[] url = { new URL(libAndroid_path)};
+        URL[] url = { new File(libAndroid_path).toURI().toURL()};
         URLClassLoader urlClassLoader = new URLClassLoader(url, DynamicLinker.class.getClassLoader());
 
         /** enable verification by default */
         System.setProperty("daneel.verify", "true");
 
+        /** report how much time went into translating classes */
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                if (classLoader != null) {
+                    saveProfile();
+                    String stats = classLoader.getStats().toString() + LoaderCache.stats();
+                    AsyncLog.info("Translation statistics of %s:%n%s", loadedApk, stats.trim());
+                }
+                // the hooks run concurrently, the one of the log may have drained already
+                AsyncLog.flush();
+            }
+        });
+
         /** create server */
         server= new ServerSocket(Port);
-        log("Waiting for client at port 6034:");
+        // time to listening, with and without the class data sharing archive of the image
+        AsyncLog.info("Listening %d ms after the JVM started", ManagementFactory.getRuntimeMXBean().getUptime());
+        announceReady();
 
-        /** waiting for client */
-        client = server.accept();
-        log("a client form " + client.getRemoteSocketAddress() + " has connected!");
+        /** serve one session after the other, the Scheduler may park this worker warm in between */
+        while (true) {
+            AsyncLog.info("Waiting for client at port %d:", Port);
+            client = server.accept();
+            AsyncLog.info("a client form %s has connected!", client.getRemoteSocketAddress());
+            serve(urlClassLoader);
+        }
+    }
 
+    /**
+     * Serve the commands of one session until the Scheduler releases the connection.
+     */
+    private static void serve(URLClassLoader urlClassLoader) {
         try{
 	        InputStream is = client.getInputStream();
 	        OutputStream os = client.getOutputStream();
@@ -55,32 +106,43 @@ public class DynamicLinker {
 	        while(true)
 	        {
 	        	command=is.read();
-	        	System.out.println("command:" + command);
+	        	AsyncLog.debug("command:%d", command);
 	        	switch(command)
                 {
 	        	case ControlMessages.CONNECTION_RELEASED:
 	        	case ControlMessages.PHONE_DISCONNECTION:
-                    System.out.println("Connection has been released!");
-                    System.out.println("goodbye! ^-^");
+                    AsyncLog.info("Connection has been released!");
+                    AsyncLog.info("goodbye! ^-^");
 	        		return;
 
                 case ControlMessages.APK_REGISTER:
                     /** read the url of apk file */
                     String appName = (String)reader.readObject();
-                    String apkFilePath = ControlMessages.DIRSERVICE_APK_DIR + appName;
+                    String apkFilePath = apkDir + appName;
 
                     if (filePresent(apkFilePath)) {
-                        log("APK present :" + appName);
+                        AsyncLog.debug("APK present :%s", appName);
                         os.write(ControlMessages.APK_PRESENT);
+                        if (apkFilePath.equals(loadedApk)) {
+                            // keep the classes loaded and compiled by the last session of the app
+                            AsyncLog.info("Reusing the class loader of %s", appName);
+                            break;
+                        }
                     } else {
-                        log("request APK :" + appName);
+                        AsyncLog.debug("request APK :%s", appName);
                         os.write(ControlMessages.APK_REQUEST);
 
                         // receive apk
                         receiveFile(reader, apkFilePath, true);
-                        log("received APK");
+                        AsyncLog.debug("received APK");
                     }
-                    classLoader = new DaneelClassLoader(urlClassLoader, new File(apkFilePath));
+                    saveProfile();
+                    // the loader of an earlier session of this apk, or a new one
+                    LoaderCache.Entry loader = LoaderCache.get(new File(apkFilePath), urlClassLoader, apkDir);
+                    classLoader = loader.classLoader;
+                    profile = loader.profile;
+                    gson = loader.gson;
+                    loadedApk = apkFilePath;
                     break;
 
 	        	case ControlMessages.PHONE_COMPUTATION_REQUEST:
@@ -92,18 +154,38 @@ public class DynamicLinker {
 	        		receiveAndExcute();
 	        		break;
 
+	        	case ControlMessages.PHONE_BATCH_COMPUTATION_REQUEST:
+	        		receiveAndExecuteBatch();
+	        		break;
+
+	        	case ControlMessages.LINKER_STATS:
+	        		writer.writeObject((classLoader == null ? "translation: no apk loaded\n" : classLoader.getStats().toString())
+	        				+ LoaderCache.stats());
+	        		writer.flush();
+	        		break;
+
 	        	default:
-	        		log("Unknown command,please try again!");
+	        		AsyncLog.warn("Unknown command %d,please try again!", command);
 	        		break;
 	        	}
 	        }
         }catch(IOException | ClassNotFoundException e){
         	e.printStackTrace();
         }finally {
+            saveProfile();
             releaseConnection();
         }
     }
 
+    /**
+     * Record the classes the current apk has loaded so far, for preloading them next time.
+     */
+    private static synchronized void saveProfile()
+    {
+        if (profile != null && classLoader != null)
+            profile.save(classLoader.getLoadOrder());
+    }
+
     /**
      * Method to receive an apk or common files of an application that needs to be executed
      * @param objIn
@@ -119,9 +201,9 @@ public class DynamicLinker {
         // Get the length of the file receiving
         int fileLength = objIn.readInt();
         if(isApk)
-            System.out.println("Read apkLength: " + fileLength);
+            AsyncLog.debug("Read apkLength: %d", fileLength);
         else
-            System.out.println("Read fileLength: " + fileLength);
+            AsyncLog.debug("Read fileLength: %d", fileLength);
 
         // read file content
         byte[] tempArray = new byte[fileLength];
@@ -148,9 +230,30 @@ public class DynamicLinker {
 	     return null;
     }
     
-    private static void log(String s)
+    /**
+     * Tell the Scheduler that we are listening, so that it connects right away instead of polling.
+     * The address of its readiness listener, or of the NodeAgent relaying to it, is given with
+     * -Dlinker.ready.address=host:port. The worker announces its own address, from
+     * -Dlinker.address or else the local address of the connection, because the Scheduler sees
+     * another one behind NAT.
+     */
+    private static void announceReady()
     {
-    	System.out.println(s);
+        String address = System.getProperty("linker.ready.address");
+        if (address == null)
+            return;
+        int colon = address.lastIndexOf(':');
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(address.substring(0, colon),
+                    Integer.parseInt(address.substring(colon + 1))), 2000);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write(ControlMessages.WORKER_READY);
+            out.writeUTF(System.getProperty("linker.address", socket.getLocalAddress().getHostAddress()));
+            out.writeInt(Port);
+            out.flush();
+        } catch (IOException | RuntimeException e) {
+            AsyncLog.warn("Could not announce readiness to %s: %s", address, e);
+        }
     }
 
     /**
@@ -162,79 +265,235 @@ public class DynamicLinker {
         return file.exists();
     }
 
+    /**
+     * Execute one call and send back its result, followed by how long the worker spent
+     * deserialising the request, loading classes, executing and serialising the result.
+     * The request starts with an id the phone chose, used in the log only.
+     */
     private static void receiveAndExcute()
     {
-    	Gson gson = new Gson();
+        Object requestId;
+        String className, objStr, methodName, tempValues;
+        String[] tempTypes;
+        long[] timings = new long[ControlMessages.TIMINGS];
+        long start = System.nanoTime();
         try {
-            // read ClassName
-            String className=(String)reader.readObject();
-            log("Successfully read the className!");
-            Class<?> clazz = classLoader.loadClass(className);
-
-            String objStr = (String) reader.readObject();
-            log("Successfully read the objToExecute!");
-            Object objToExecute = gson.fromJson(objStr,clazz);
-
-            // read MethodName
-            String methodName = (String)reader.readObject();
-            log("Successfully read the methodName");
-
-            // read parameter types
-            String[] tempTypes = (String[])reader.readObject();
-            log("Successfully read the parameter types!");
-            Class<?>[] pTypes = new Class[tempTypes.length];
-            for (int i = 0; i < tempTypes.length; i++) {
-              if (tempTypes[i].equals("int")) {
-                pTypes[i] = Integer.TYPE;
-              } else if (tempTypes[i].equals("long")) {
-                pTypes[i] = Long.TYPE;
-              } else if (tempTypes[i].equals("boolean")) {
-                pTypes[i] = Boolean.TYPE;
-              } else {
-                pTypes[i] = resolveClassName(tempTypes[i]);
-              }
-            }
+            // read the whole request first, so that a failing call leaves the stream in sync
+            requestId = reader.readObject();
+            className=(String)reader.readObject();
+            AsyncLog.debug("Successfully read the className!");
+            objStr = (String) reader.readObject();
+            AsyncLog.trace("Successfully read the objToExecute: %s", objStr);
+            methodName = (String)reader.readObject();
+            AsyncLog.debug("Successfully read the methodName");
+            tempTypes = (String[])reader.readObject();
+            AsyncLog.debug("Successfully read the parameter types!");
+            tempValues = (String) reader.readObject();
+            AsyncLog.trace("Successfully read the parameters: %s", tempValues);
+        } catch (IOException | ClassNotFoundException e) {
+            e.printStackTrace();
+            return;
+        }
+        timings[ControlMessages.TIMING_DESERIALISE] = System.nanoTime() - start;
 
-            // read parameters
-            Object[]  pValues =new Object[pTypes.length];
-            String tempValues = (String) reader.readObject();
-            log("Successfully read the parameters!");
-            JsonParser parser = new JsonParser();
-            JsonArray jsonArray = parser.parse(tempValues).getAsJsonArray();
-            for (int i = 0; i < jsonArray.size(); i++) {
-                JsonElement el = jsonArray.get(i);
-                pValues[i]  = gson.fromJson(el, pTypes[i]);
-            }
-           
+        String retClassName = null;
+        String resStr = null;
+        try {
+            start = System.nanoTime();
+            Class<?> clazz = classLoader.loadClass(className);
+            Class<?>[] pTypes = resolveParameterTypes(tempTypes);
             // get the method
             Method method = clazz.getMethod(methodName, pTypes);
+            timings[ControlMessages.TIMING_CLASS_LOAD] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Object objToExecute = gson.fromJson(objStr,clazz);
+            Object[] pValues = decodeParameters(tempValues, pTypes);
+            timings[ControlMessages.TIMING_DESERIALISE] += System.nanoTime() - start;
             
-            log("<@-@> doing computation tasks...please wait! ^-^");
+            AsyncLog.debug("<@-@> doing computation tasks...please wait! ^-^");
+            start = System.nanoTime();
             Object result= method.invoke(objToExecute,pValues);
+            timings[ControlMessages.TIMING_EXECUTE] = System.nanoTime() - start;
             
-            // send result back
+            start = System.nanoTime();
             Class<?> retClass = method.getReturnType();
-            String retClassName = retClass.getName();
-            String resStr = gson.toJson(result);
-            log("begin to send result back!");
+            retClassName = retClass.getName();
+            resStr = encodeResult(result);
+            timings[ControlMessages.TIMING_SERIALISE] = System.nanoTime() - start;
+        } catch (ClassNotFoundException | IllegalAccessException | NoSuchMethodException
+                | InvocationTargetException | RuntimeException e) {
+            // the caller still gets an answer, without a type, and can run the call itself
+            e.printStackTrace();
+        }
+
+        try {
+            // send result back
+            AsyncLog.debug("begin to send result back!");
             writer.writeObject(retClassName);
             writer.writeObject(resStr);
-            log("Successfuly send result back!");
+            writer.writeObject(timings);
+            writer.flush();
+            AsyncLog.info("Request %s: %s executed in %d ms", requestId, methodName,
+                    timings[ControlMessages.TIMING_EXECUTE] / 1000000);
         } catch (IOException e) {
             e.printStackTrace();
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-        } catch (IllegalAccessException e){
-            e.printStackTrace();
-        }  catch(NoSuchMethodException e){
+        }
+    }
+
+    /**
+     * Execute a batch of independent calls on the same receiver class and send all
+     * results back in one response. The calls run in parallel when the unikernel has
+     * more than one core, each of them on its own copy of the receiver. A call that
+     * fails gets no return type, so that the phone can run it itself.
+     */
+    private static void receiveAndExecuteBatch()
+    {
+        Object className, objStr, methodNames, paramTypes, paramValues;
+        try {
+            // read the whole request first, so that a failing batch leaves the stream in sync
+            className = reader.readObject();
+            objStr = reader.readObject();
+            methodNames = reader.readObject();
+            paramTypes = reader.readObject();
+            paramValues = reader.readObject();
+        } catch (IOException | ClassNotFoundException e) {
             e.printStackTrace();
-        } catch (IllegalArgumentException e){
+            return;
+        }
+
+        String[] retTypes = null;
+        String[] retVals = null;
+        try {
+            String[] names = (String[]) methodNames;
+            AsyncLog.debug("Successfully read a batch of %d calls!", names.length);
+            retTypes = new String[names.length];
+            retVals = new String[names.length];
+            executeBatch((String) className, (String) objStr, names, (String[][]) paramTypes,
+                    (String[]) paramValues, retTypes, retVals);
+        } catch (ClassNotFoundException | NoSuchMethodException | InterruptedException
+                | RuntimeException e) {
+            // the calls without a type are run by the phone itself
             e.printStackTrace();
-        } catch(InvocationTargetException e){
+        }
+
+        try {
+            AsyncLog.debug("begin to send batch results back!");
+            writer.writeObject(retTypes);
+            writer.writeObject(retVals);
+            writer.flush();
+            AsyncLog.debug("Successfuly send batch results back!");
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Run the calls of a batch and fill in the return type and result of each
+     * call that succeeded.
+     */
+    private static void executeBatch(String className, final String objStr, String[] methodNames,
+            String[][] paramTypes, final String[] paramValues, final String[] types, final String[] results)
+            throws ClassNotFoundException, NoSuchMethodException, InterruptedException
+    {
+        if (classLoader == null)
+            throw new IllegalStateException("No apk registered before the batch");
+        final Class<?> clazz = classLoader.loadClass(className);
+        List<Callable<Void>> calls = new ArrayList<>(methodNames.length);
+        for (int i = 0; i < methodNames.length; i++) {
+            final int index = i;
+            final Class<?>[] pTypes = resolveParameterTypes(paramTypes[i]);
+            final Method method = clazz.getMethod(methodNames[i], pTypes);
+            calls.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Object objToExecute = gson.fromJson(objStr, clazz);
+                    Object[] pValues = decodeParameters(paramValues[index], pTypes);
+                    Object result = method.invoke(objToExecute, pValues);
+                    results[index] = encodeResult(result);
+                    types[index] = method.getReturnType().getName();
+                    return null;
+                }
+            });
+        }
+
+        AsyncLog.debug("<@-@> doing computation tasks...please wait! ^-^");
+        for (Future<Void> future : getBatchExecutor().invokeAll(calls)) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getBatchExecutor()
+    {
+        if (batchExecutor == null)
+            batchExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        return batchExecutor;
+    }
+
+    /**
+     * Map the parameter type names sent by the phone to classes.
+     */
+    private static Class<?>[] resolveParameterTypes(String[] tempTypes)
+    {
+        Class<?>[] pTypes = new Class[tempTypes.length];
+        for (int i = 0; i < tempTypes.length; i++) {
+          if (tempTypes[i].equals("int")) {
+            pTypes[i] = Integer.TYPE;
+          } else if (tempTypes[i].equals("long")) {
+            pTypes[i] = Long.TYPE;
+          } else if (tempTypes[i].equals("boolean")) {
+            pTypes[i] = Boolean.TYPE;
+          } else {
+            pTypes[i] = resolveClassName(tempTypes[i]);
+          }
+        }
+        return pTypes;
+    }
+
+    /**
+     * Convert the JSON array of parameter values sent by the phone. The values are read
+     * from the text one after the other, without a tree of the whole array in between,
+     * which for a double[][] takes several times the memory of the array itself.
+     */
+    private static Object[] decodeParameters(String tempValues, Class<?>[] pTypes)
+    {
+        Object[]  pValues =new Object[pTypes.length];
+        if (tempValues.isEmpty())
+            return pValues;
+        JsonReader in = new JsonReader(new StringReader(tempValues));
+        in.setLenient(true);
+        try {
+            if (in.peek() == JsonToken.NULL)
+                return pValues;
+            in.beginArray();
+            for (int i = 0; in.hasNext(); i++)
+                pValues[i] = gson.fromJson(in, pTypes[i]);
+            in.endArray();
+        } catch (IOException e) {
+            throw new JsonSyntaxException(e);
+        }
+        return pValues;
+    }
+
+    /**
+     * Convert a result to JSON in a buffer the thread reuses, so that a large result is
+     * not copied each time a new StringWriter grows.
+     */
+    private static String encodeResult(Object result)
+    {
+        StringBuilder buffer = resultBuffer.get();
+        buffer.setLength(0);
+        gson.toJson(result, buffer);
+        String json = buffer.toString();
+        if (buffer.capacity() > RESULT_BUFFER_KEEP)
+            resultBuffer.remove();
+        return json;
+    }
+
     /** Close the Stream and Socket */
     private static void releaseConnection() {
         try {
@@ -243,7 +502,6 @@ public class DynamicLinker {
             if(writer != null)
                 writer.close();
             client.close();
-            server.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,137 @@
+package org.meicorl.unikernel.worker;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.meicorl.unikernel.common.AsyncLog;
+
+/**
+ * The classes an app loaded, in the order it loaded them: app classes, Libdroid classes
+ * and the classes of the libraries they use. The profile is kept per apk content, so that
+ * the next registration of the same apk loads and initialises these classes on a
+ * background thread instead of the first request discovering them one by one.
+ *
+ * Profiles are files named after the SHA-256 of the apk in -Dlinker.profile.dir (default
+ * the apk directory), one class name per line. -Dlinker.preload=false only records them.
+ * @author MeiCorl
+ */
+class LoadProfile {
+	private static final boolean PRELOAD = !"false".equals(System.getProperty("linker.preload"));
+
+	private final File file;
+	// classes in the file
+	private int        saved = 0;
+
+	/**
+	 * @param digest the digest of the apk, see {@link #digest(File)}
+	 * @param dir the directory of the profiles
+	 */
+	LoadProfile(String digest, String dir) {
+		file = new File(System.getProperty("linker.profile.dir", dir), digest + ".profile");
+	}
+
+	/**
+	 * Start loading and initialising the classes of the profile, if there is one, on a
+	 * background thread.
+	 */
+	void preload(final ClassLoader classLoader) {
+		final List<String> classes = read();
+		saved = classes.size();
+		if (!PRELOAD || classes.isEmpty())
+			return;
+		Thread preloader = new Thread("preloader") {
+			@Override
+			public void run() {
+				long start = System.nanoTime();
+				int loaded = 0;
+				for (String name : classes) {
+					try {
+						Class.forName(name, true, classLoader);
+						loaded++;
+					} catch (ClassNotFoundException | LinkageError | RuntimeException e) {
+						// the request that needs it fails the same way
+						AsyncLog.debug("Could not preload %s: %s", name, e);
+					}
+				}
+				AsyncLog.info("Preloaded %d of %d classes of %s in %d ms", loaded, classes.size(), file.getName(),
+						(System.nanoTime() - start) / 1000000);
+			}
+		};
+		preloader.setDaemon(true);
+		preloader.start();
+	}
+
+	/**
+	 * Write the classes loaded so far, unless the profile already has as many.
+	 * @param classes the names of the classes in load order
+	 */
+	void save(List<String> classes) {
+		if (classes.size() <= saved)
+			return;
+		File temp = new File(file.getPath() + ".tmp");
+		try (PrintWriter out = new PrintWriter(temp)) {
+			for (String name : classes) {
+				// the boot class loader has those anyway
+				if (!name.startsWith("java."))
+					out.println(name);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		// replace the old profile at once, a linker reading it never sees half a file
+		if (!temp.renameTo(file)) {
+			AsyncLog.warn("Could not write the class profile %s", file);
+			return;
+		}
+		AsyncLog.debug("Saved %d classes to %s", classes.size(), file);
+		saved = classes.size();
+	}
+
+	private List<String> read() {
+		List<String> classes = new ArrayList<>();
+		if (!file.exists())
+			return classes;
+		try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (!line.isEmpty())
+					classes.add(line);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return classes;
+	}
+
+	/**
+	 * @return the SHA-256 of the apk content in hex, which names its profile
+	 */
+	static String digest(File apk) throws IOException {
+		MessageDigest sha;
+		try {
+			sha = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		try (InputStream in = new FileInputStream(apk)) {
+			byte[] buffer = new byte[65536];
+			int n;
+			while ((n = in.read(buffer)) != -1)
+				sha.update(buffer, 0, n);
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : sha.digest())
+			hex.append(String.format("%02x", b & 0xff));
+		return hex.toString();
+	}
+}
@@ -0,0 +1,136 @@
+package org.meicorl.unikernel.worker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.icedrobot.daneel.loader.DaneelClassLoader;
+import org.meicorl.unikernel.common.AsyncLog;
+
+import com.google.gson.Gson;
+
+/**
+ * The class loaders of the apks registered lately, by the SHA-256 of the apk. An app that
+ * registers again gets the loader of its last session back, with its classes translated
+ * and compiled, even if other apps ran on this worker in between.
+ *
+ * A loader holds the parsed dex files of its apk and the classes translated from them. The
+ * cache counts that as the size of the dex files plus the bytecode produced, and drops the
+ * least recently used loaders while all of them together take more than
+ * -Dlinker.loaders.memory MB (default a quarter of the maximum heap). The loader in use is
+ * never dropped. Once no call uses a dropped loader anymore, its classes can unload.
+ * @author MeiCorl
+ */
+class LoaderCache {
+	private static final long BUDGET = Long.getLong("linker.loaders.memory",
+			Runtime.getRuntime().maxMemory() / 4 >> 20) << 20;
+
+	/**
+	 * The loader of one apk, the profile of the classes it loads and the Gson for its
+	 * calls. Gson keeps the type adapters of the app classes it has seen, one shared by
+	 * all apks would keep dropped loaders from unloading.
+	 */
+	static class Entry {
+		final String            apk;
+		final DaneelClassLoader classLoader;
+		final LoadProfile       profile;
+		final Gson              gson = new Gson();
+		private final long      dexSize;
+
+		private Entry(String apk, DaneelClassLoader classLoader, LoadProfile profile, long dexSize) {
+			this.apk = apk;
+			this.classLoader = classLoader;
+			this.profile = profile;
+			this.dexSize = dexSize;
+		}
+
+		long size() {
+			return dexSize + classLoader.getStats().getBytes();
+		}
+	}
+
+	// least recently used first
+	private static final Map<String, Entry> loaders = new LinkedHashMap<>(16, 0.75f, true);
+
+	// metrics
+	private static long hits = 0;
+	private static long misses = 0;
+	private static long evictions = 0;
+
+	private LoaderCache() {
+	}
+
+	/**
+	 * Get the loader of the apk, or create it and start preloading the classes of its
+	 * profile. Then drop other loaders as long as the cache is over its budget.
+	 * @param parent the parent of a new loader
+	 * @param profileDir the directory of the profiles
+	 * @throws IOException if the apk cannot be read
+	 */
+	static synchronized Entry get(File apk, ClassLoader parent, String profileDir) throws IOException {
+		String digest = LoadProfile.digest(apk);
+		Entry entry = loaders.get(digest);
+		if (entry != null) {
+			hits++;
+			AsyncLog.info("Reusing the class loader of %s", apk.getName());
+		} else {
+			misses++;
+			entry = new Entry(apk.getPath(), new DaneelClassLoader(parent, apk), new LoadProfile(digest, profileDir),
+					dexSize(apk));
+			// load the classes the last sessions of this apk needed in the background
+			entry.profile.preload(entry.classLoader);
+			loaders.put(digest, entry);
+		}
+		evict(entry);
+		return entry;
+	}
+
+	static synchronized String stats() {
+		long size = 0;
+		for (Entry entry : loaders.values())
+			size += entry.size();
+		return "loaders: " + loaders.size() + " cached (" + (size >> 10) + " of " + (BUDGET >> 10) + " KB), " + hits
+				+ " hits, " + misses + " misses, " + evictions + " evictions\n";
+	}
+
+	private static void evict(Entry current) {
+		long size = 0;
+		for (Entry entry : loaders.values())
+			size += entry.size();
+		Iterator<Entry> it = loaders.values().iterator();
+		while (size > BUDGET && it.hasNext()) {
+			Entry entry = it.next();
+			if (entry == current)
+				continue;
+			size -= entry.size();
+			it.remove();
+			evictions++;
+			entry.profile.save(entry.classLoader.getLoadOrder());
+			AsyncLog.info("Dropped the class loader of %s, translation statistics:\n%s", entry.apk,
+					entry.classLoader.getStats());
+		}
+	}
+
+	/**
+	 * @return the size of the dex files in the apk, or of the file if it is a dex file
+	 */
+	private static long dexSize(File apk) throws IOException {
+		if (apk.getName().endsWith(".dex"))
+			return apk.length();
+		long size = 0;
+		try (ZipFile zip = new ZipFile(apk)) {
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				if (entry.getName().matches("classes\\d*\\.dex") && entry.getSize() > 0)
+					size += entry.getSize();
+			}
+		}
+		return size;
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Daneel - Dalvik to Java bytecode compiler
+ * Copyright (C) 2011  IcedRobot team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * This file is subject to the "Classpath" exception:
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under terms
+ * of your choice, provided that you also meet, for each linked independent
+ * module, the terms and conditions of the license of that module.  An
+ * independent module is a module which is not derived from or based on
+ * this library.  If you modify this library, you may extend this exception
+ * to your version of the library, but you are not obligated to do so.  If
+ * you do not wish to do so, delete this exception statement from your
+ * version.
+ */
+
+package org.icedrobot.daneel.rewriter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.objectweb.asm.Opcodes.*;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+public class MethodOptimizerTest {
+
+    /**
+     * Emits the body of a static method <code>()I</code>.
+     */
+    private interface Body {
+        void emit(MethodVisitor mv);
+    }
+
+    @Test
+    public void foldsConstantsThroughRegisterCopies() throws Exception {
+        // v0 = 6; v1 = v0 * 7; return v1, as the rewriter emits it
+        MethodNode method = optimize(new Body() {
+            @Override
+            public void emit(MethodVisitor mv) {
+                mv.visitLdcInsn(6);
+                mv.visitVarInsn(ISTORE, 0);
+                mv.visitVarInsn(ILOAD, 0);
+                mv.visitLdcInsn(7);
+                mv.visitInsn(IMUL);
+                mv.visitVarInsn(ISTORE, 1);
+                mv.visitVarInsn(ILOAD, 1);
+                mv.visitInsn(IRETURN);
+            }
+        });
+        assertArrayEquals(new int[] { BIPUSH, IRETURN }, opcodes(method));
+        assertEquals(42, ((IntInsnNode) method.instructions.getFirst()).operand);
+        assertEquals(42, run(method));
+    }
+
+    @Test
+    public void foldsChainedOperations() throws Exception {
+        // ((6 * 7) - 1) << 1
+        MethodNode method = optimize(new Body() {
+            @Override
+            public void emit(MethodVisitor mv) {
+                mv.visitLdcInsn(6);
+                mv.visitLdcInsn(7);
+                mv.visitInsn(IMUL);
+                mv.visitLdcInsn(1);
+                mv.visitInsn(ISUB);
+                mv.visitLdcInsn(1);
+                mv.visitInsn(ISHL);
+                mv.visitInsn(INEG);
+                mv.visitInsn(IRETURN);
+            }
+        });
+        assertArrayEquals(new int[] { BIPUSH, IRETURN }, opcodes(method));
+        assertEquals(-82, run(method));
+    }
+
+    @Test
+    public void keepsConstantsThatDoNotFitAShortInLdc() throws Exception {
+        MethodNode method = optimize(new Body() {
+            @Override
+            public void emit(MethodVisitor mv) {
+                mv.visitLdcInsn(1000);
+                mv.visitLdcInsn(1000);
+                mv.visitInsn(IMUL);
+                mv.visitInsn(IRETURN);
+            }
+        });
+        assertArrayEquals(new int[] { LDC, IRETURN }, opcodes(method));
+        assertEquals(1000000, run(method));
+    }
+
+    @Test
+    public void leavesDivisionByZeroToTheRuntime() throws Exception {
+        MethodNode method = optimize(new Body() {
+            @Override
+            public void emit(MethodVisitor mv) {
+                mv.visitLdcInsn(1);
+                mv.visitLdcInsn(0);
+                mv.visitInsn(IDIV);
+                mv.visitInsn(IRETURN);
+            }
+        });
+        assertArrayEquals(new int[] { ICONST_1, ICONST_0, IDIV, IRETURN },
+                opcodes(method));
+        try {
+            run(method);
+            fail("expected an ArithmeticException");
+        } catch (InvocationTargetException e) {
+            assertTrue(e.getCause() instanceof ArithmeticException);
+        }
+    }
+
+    /**
+     * Passes the body through the optimizer.
+     * 
+     * @return The optimized method.
+     */
+    private static MethodNode optimize(Body body) {
+        MethodNode result = new MethodNode(ACC_PUBLIC | ACC_STATIC, "compute",
+                "()I", null, null);
+        MethodOptimizer optimizer = new MethodOptimizer(ACC_PUBLIC
+                | ACC_STATIC, "compute", "()I", result);
+        optimizer.visitCode();
+        body.emit(optimizer);
+        optimizer.visitMaxs(2, 2);
+        optimizer.visitEnd();
+        return result;
+    }
+
+    private static int[] opcodes(MethodNode method) {
+        List<Integer> opcodes = new ArrayList<Integer>();
+        for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn
+                .getNext()) {
+            if (insn.getOpcode() >= 0) {
+                opcodes.add(insn.getOpcode());
+            }
+        }
+        int[] result = new int[opcodes.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = opcodes.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Defines a class with the method and calls it.
+     * 
+     * @return The value the method returns.
+     */
+    private static int run(MethodNode method) throws Exception {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_5, ACC_PUBLIC, "Folded", null, "java/lang/Object", null);
+        method.accept(cw);
+        cw.visitEnd();
+        final byte[] bytes = cw.toByteArray();
+        Class<?> clazz = new ClassLoader(MethodOptimizerTest.class
+                .getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name)
+                    throws ClassNotFoundException {
+                if (!name.equals("Folded")) {
+                    throw new ClassNotFoundException(name);
+                }
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+        }.loadClass("Folded");
+        Method compute = clazz.getMethod("compute");
+        return (Integer) compute.invoke(null);
+    }
+}
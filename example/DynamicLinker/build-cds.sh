@@ -0,0 +1,58 @@
+#!/bin/bash
+# Builds the class list of the class data sharing (AppCDS) archive of the DynamicLinker
+# image: the classes the linker loads until it listens, found by a training run on this
+# host, plus every class of Unikernel-Server.jar (Daneel, ASM, Gson, Unikernel-Common) and
+# Libdroid.jar.
+#
+# The archive itself is dumped by the image, booted once with the "cds" command of
+# module.py, so that it refers to the jars at their paths in the image:
+#   ./build-cds.sh                      # writes linker.classlist
+#   sudo ./scripts/build image=DynamicLinker.cds && sudo ./scripts/run.py
+#                                       # dumps /linker.jsa into build/release/usr.img
+#   sudo ./scripts/imgedit.py setargs build/release/usr.img "<command of default in module.py>"
+# With OSV=<osv tree> the script runs the last two steps as well. The archive needs a JDK
+# 11 or later in the image, and the training run a JDK of the same version.
+#
+# Usage: ./build-cds.sh [java]
+set -e
+cd "$(dirname "$0")"
+JAVA=${1:-java}
+CP=Unikernel-Server.jar:Libdroid.jar
+MAIN=org.meicorl.unikernel.worker.DynamicLinker
+
+# the linker logs through AsyncLog of Unikernel-Common, see Step 1 of the README
+unzip -Z1 Unikernel-Server.jar | grep -q '^org/meicorl/unikernel/common/AsyncLog\.class$' || {
+	echo "Unikernel-Server.jar lacks the classes of Unikernel-Common" >&2
+	exit 1
+}
+
+work=$(mktemp -d)
+trap 'kill $linker 2>/dev/null; rm -rf "$work"' EXIT
+
+# training run: start the linker on a free port and stop it as soon as it listens
+port=$(( 20000 + RANDOM % 10000 ))
+"$JAVA" -Xshare:off -XX:DumpLoadedClassList="$work/boot.classlist" -Dlinker.port=$port \
+	-Dlinker.apk.dir="$work/" -Dlinker.libdroid=Libdroid.jar -cp $CP $MAIN > "$work/linker.log" 2>&1 &
+linker=$!
+for i in $(seq 100); do
+	grep -q "Listening" "$work/linker.log" && break
+	kill -0 $linker 2>/dev/null || { cat "$work/linker.log"; exit 1; }
+	sleep 0.1
+done
+grep "Listening" "$work/linker.log"
+kill $linker; wait $linker 2>/dev/null || true
+
+# the classes of the first requests, in the jars
+for jar in Unikernel-Server.jar Libdroid.jar; do
+	unzip -Z1 $jar | grep '\.class$' | grep -v '^test/' | sed 's/\.class$//'
+done > "$work/jars.classlist"
+awk '!seen[$0]++' "$work/boot.classlist" "$work/jars.classlist" | grep -v '^#' > linker.classlist
+echo "linker.classlist: $(wc -l < linker.classlist) classes"
+
+if [ -n "$OSV" ]; then
+	default=$(sed -n "s/^default = api.run('\(.*\)')$/\1/p" module.py)
+	cd "$OSV"
+	./scripts/build image=DynamicLinker.cds
+	./scripts/run.py
+	./scripts/imgedit.py setargs build/release/usr.img "$default"
+fi
@@ -1,5 +1,19 @@
+import os
+
 from osv.modules import api
 
 api.require('java')
 
-default = api.run('/java.so -jar /Unikernel-Server.jar')
+# The DynamicLinker announces itself as soon as it listens. By default it
+# reaches its own node through the gateway of the default libvirt network,
+# where the NodeAgent (or the Scheduler, when it runs on the node) listens and
+# relays it to the Scheduler. Set LINKER_READY_ADDRESS=host:port when building
+# the image for a node whose unikernels reach them elsewhere, e.g. on a
+# bridged network. Libdroid is on the class path so that its classes are in
+# the class data sharing archive /linker.jsa, see build-cds.sh; without the
+# archive the JVM starts as before.
+ready = os.environ.get('LINKER_READY_ADDRESS', '192.168.122.1:6036')
+default = api.run('/java.so -Xshare:auto -XX:SharedArchiveFile=/linker.jsa -Dlinker.ready.address=' + ready + ' -cp /Unikernel-Server.jar:/libAndroid/Libdroid.jar org.meicorl.unikernel.worker.DynamicLinker')
+
+# boot once to dump the archive of the classes in /linker.classlist into the image
+cds = api.run('/java.so -Xshare:dump -XX:SharedClassListFile=/linker.classlist -XX:SharedArchiveFile=/linker.jsa -cp /Unikernel-Server.jar:/libAndroid/Libdroid.jar')
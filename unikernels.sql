@@ -29,15 +29,32 @@ SET time_zone = "+00:00";
 CREATE TABLE `unikernels` (
   `name` varchar(20) NOT NULL DEFAULT '',
   `status` int(1) UNSIGNED DEFAULT '1',
-  `ip` varchar(255) DEFAULT NULL
+  `ip` varchar(255) DEFAULT NULL,
+  `host` varchar(255) NOT NULL DEFAULT ''
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
 
 --
 -- 转存表中的数据 `unikernels`
 --
 
-INSERT INTO `unikernels` (`name`, `status`, `ip`) VALUES
-('vm1', 1, '202.114.6.143');
+INSERT INTO `unikernels` (`name`, `status`, `ip`, `host`) VALUES
+('vm1', 1, '202.114.6.143', '');
+
+-- `host` is the hypervisor node of the unikernel, '' for the Scheduler host. The
+-- Scheduler boots it with virsh -c qemu+ssh://<host>/system, and the NodeAgent of
+-- the node reports under the same name (-Dagent.name):
+-- INSERT INTO `unikernels` (`name`, `status`, `ip`, `host`) VALUES
+-- ('edge1-vm1', 0, '192.168.1.101', 'edge1'),
+-- ('edge2-vm1', 0, '192.168.1.201', 'edge2');
+--
+-- Tables created before the column was added:
+-- ALTER TABLE `unikernels` ADD `host` varchar(255) NOT NULL DEFAULT '';
+
+-- With -Dscheduler.driver=local the workers are DynamicLinker processes on the
+-- Scheduler host, each listening on its own port:
+-- INSERT INTO `unikernels` (`name`, `status`, `ip`) VALUES
+-- ('local1', 0, '127.0.0.1:7001'),
+-- ('local2', 0, '127.0.0.1:7002');
 
 --
 -- Indexes for dumped tables